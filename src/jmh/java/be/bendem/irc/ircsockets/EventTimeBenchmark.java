@@ -0,0 +1,45 @@
+package be.bendem.irc.ircsockets;
+
+import org.kitteh.irc.client.library.event.helper.ServerMessageEvent;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.Collections;
+
+@State(Scope.Benchmark)
+public class EventTimeBenchmark {
+
+    private ServerMessageEvent untagged;
+    private ServerMessageEvent tagged;
+    private ServerMessageEvent lateTag;
+
+    @Setup
+    public void setup() {
+        untagged = Fakes.event(Collections.singletonList(Fakes.serverMessage()));
+        tagged = Fakes.event(Collections.singletonList(Fakes.serverMessage(Fakes.timeTag(Instant.now()))));
+        lateTag = Fakes.event(Arrays.asList(
+            Fakes.serverMessage(Fakes.tag("account"), Fakes.tag("msgid")),
+            Fakes.serverMessage(Fakes.tag("account"), Fakes.tag("msgid"), Fakes.timeTag(Instant.now()))
+        ));
+    }
+
+    @Benchmark
+    public long untagged() {
+        return EventManager.getEventTime(untagged.getOriginalMessages(), System.currentTimeMillis());
+    }
+
+    @Benchmark
+    public long tagged() {
+        return EventManager.getEventTime(tagged.getOriginalMessages(), System.currentTimeMillis());
+    }
+
+    @Benchmark
+    public long lateTag() {
+        return EventManager.getEventTime(lateTag.getOriginalMessages(), System.currentTimeMillis());
+    }
+
+}
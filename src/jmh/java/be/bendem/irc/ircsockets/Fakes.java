@@ -0,0 +1,98 @@
+package be.bendem.irc.ircsockets;
+
+import org.java_websocket.WebSocket;
+import org.kitteh.irc.client.library.element.MessageTag;
+import org.kitteh.irc.client.library.element.ServerMessage;
+import org.kitteh.irc.client.library.event.helper.ServerMessageEvent;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Proxy;
+import java.net.InetSocketAddress;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * In memory stand-ins for library types, built as proxies so they don't
+ * depend on the exact shape of the library interfaces.
+ */
+public final class Fakes {
+
+    private Fakes() {
+    }
+
+    public static ServerMessageEvent event(List<ServerMessage> messages) {
+        return proxy(ServerMessageEvent.class, (proxy, method, args) ->
+            method.getName().equals("getOriginalMessages") ? messages : null);
+    }
+
+    public static ServerMessage serverMessage(MessageTag... tags) {
+        List<MessageTag> list = Collections.unmodifiableList(Arrays.asList(tags));
+        return proxy(ServerMessage.class, (proxy, method, args) ->
+            method.getName().equals("getTags") ? list : null);
+    }
+
+    public static MessageTag tag(String name) {
+        return proxy(MessageTag.class, (proxy, method, args) ->
+            method.getName().equals("getName") ? name : null);
+    }
+
+    public static MessageTag.Time timeTag(Instant time) {
+        return proxy(MessageTag.Time.class, (proxy, method, args) -> {
+            switch(method.getName()) {
+                case "getTime":
+                    return time;
+                case "getName":
+                    return "time";
+                default:
+                    return null;
+            }
+        });
+    }
+
+    /**
+     * A connection which is always open and only counts what is sent to it.
+     */
+    public static WebSocket webSocket(LongAdder sentBytes) {
+        InetSocketAddress address = new InetSocketAddress("127.0.0.1", 0);
+        return proxy(WebSocket.class, (proxy, method, args) -> {
+            switch(method.getName()) {
+                case "send":
+                    if(args[0] instanceof String) {
+                        sentBytes.add(((String) args[0]).length());
+                    }
+                    return null;
+                case "isOpen":
+                    return true;
+                case "isClosing":
+                case "isClosed":
+                case "hasBufferedData":
+                    return false;
+                case "getRemoteSocketAddress":
+                case "getLocalSocketAddress":
+                    return address;
+                default:
+                    return null;
+            }
+        });
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T proxy(Class<T> type, InvocationHandler handler) {
+        return (T) Proxy.newProxyInstance(Fakes.class.getClassLoader(), new Class<?>[] {type}, (proxy, method, args) -> {
+            switch(method.getName()) {
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "equals":
+                    return proxy == args[0];
+                case "toString":
+                    return type.getSimpleName() + "@" + Integer.toHexString(System.identityHashCode(proxy));
+                default:
+                    return handler.invoke(proxy, method, args);
+            }
+        });
+    }
+
+}
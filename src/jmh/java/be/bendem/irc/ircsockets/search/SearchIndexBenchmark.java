@@ -0,0 +1,86 @@
+package be.bendem.irc.ircsockets.search;
+
+import be.bendem.irc.ircsockets.ws.protocol.EventMessage;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Measures queries over an index of synthetic events whose words follow a
+ * skewed distribution, a few words are in most events and most words are rare.
+ */
+@State(Scope.Benchmark)
+public class SearchIndexBenchmark {
+
+    private static final int WORDS = 50_000;
+    private static final int NICKS = 500;
+    private static final int CHANNELS = 20;
+
+    @Param({"100000", "1000000"})
+    public int events;
+
+    private SearchIndex index;
+    private List<String> rare;
+    private List<String> commonAndRare;
+    private List<String> common;
+    private List<String> nickInChannel;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        index = new SearchIndex(Long.MAX_VALUE, 1);
+        Random random = new Random(42);
+        long time = System.currentTimeMillis() - events;
+        for(int i = 0; i < events; ++i) {
+            StringBuilder text = new StringBuilder();
+            for(int j = 0, words = 4 + random.nextInt(12); j < words; ++j) {
+                double skewed = random.nextDouble();
+                text.append('w').append((int) (skewed * skewed * skewed * WORDS)).append(' ');
+            }
+            String nick = "nick" + random.nextInt(NICKS);
+            index.add(new EventMessage("network", EventMessage.Kind.MESSAGE, time + i,
+                "#channel-" + random.nextInt(CHANNELS), nick, nick, text.toString()));
+            if(i % (16 * 1024) == 0) {
+                index.refresh();
+            }
+        }
+        index.refresh();
+
+        rare = SearchIndex.parse("w40000", null);
+        commonAndRare = SearchIndex.parse("w0 w30000", null);
+        common = SearchIndex.parse("w0 w1", null);
+        nickInChannel = SearchIndex.parse("nick:nick42 w2", "network:#channel-3");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        index.kill();
+    }
+
+    @Benchmark
+    public SearchIndex.Result rareTerm() {
+        return index.search(rare, 0, Long.MAX_VALUE, Long.MAX_VALUE, 100);
+    }
+
+    @Benchmark
+    public SearchIndex.Result commonAndRareTerms() {
+        return index.search(commonAndRare, 0, Long.MAX_VALUE, Long.MAX_VALUE, 100);
+    }
+
+    @Benchmark
+    public SearchIndex.Result commonTerms() {
+        return index.search(common, 0, Long.MAX_VALUE, Long.MAX_VALUE, 100);
+    }
+
+    @Benchmark
+    public SearchIndex.Result nickInChannel() {
+        return index.search(nickInChannel, 0, Long.MAX_VALUE, Long.MAX_VALUE, 100);
+    }
+
+}
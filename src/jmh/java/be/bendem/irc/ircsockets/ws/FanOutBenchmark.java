@@ -0,0 +1,82 @@
+package be.bendem.irc.ircsockets.ws;
+
+import be.bendem.irc.ircsockets.Fakes;
+import be.bendem.irc.ircsockets.ws.protocol.EventMessage;
+import be.bendem.irc.ircsockets.ws.protocol.Message;
+import org.java_websocket.WebSocket;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Measures the work the dispatcher does to fan a batch of messages out to
+ * in memory connections, from serialization to the connection queues.
+ */
+@State(Scope.Benchmark)
+public class FanOutBenchmark {
+
+    @Param({"1", "100", "1000", "10000"})
+    public int subscribers;
+
+    @Param({"1", "4"})
+    public int channels;
+
+    @Param({"1", "32"})
+    public int batchSize;
+
+    private Server server;
+    private Dispatcher dispatcher;
+    private String[] targets;
+    private LongAdder sentBytes;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        ServerOptions options = new ServerOptions();
+        options.batchSize = batchSize;
+        options.dispatchThreads = 1;
+        options.clientQueueSize = Integer.MAX_VALUE;
+        options.clientQueueBytes = 0;
+
+        server = new Server(null, 0, false, options);
+        dispatcher = new Dispatcher(server, options);
+        sentBytes = new LongAdder();
+
+        // Every connection listens to one of the channels
+        for(int i = 0; i < subscribers * channels; ++i) {
+            WebSocket conn = Fakes.webSocket(sentBytes);
+            server.addConnection(conn);
+            server.onMessage(conn, "{\"_type\":\"listen_request\",\"channels\":[\"network:#channel-" + i % channels + "\"]}");
+        }
+
+        targets = new String[batchSize];
+        for(int i = 0; i < batchSize; ++i) {
+            targets[i] = "#channel-" + i % channels;
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        server.kill();
+    }
+
+    @Benchmark
+    public long fanOut() {
+        // Messages memoize their json, new ones are needed to include serialization
+        List<Message> batch = new ArrayList<>(batchSize);
+        long now = System.currentTimeMillis();
+        for(int i = 0; i < batchSize; ++i) {
+            batch.add(new EventMessage("network", EventMessage.Kind.MESSAGE, now, targets[i], "nick", "nick", "message number %d", i));
+        }
+        dispatcher.send(batch);
+        return sentBytes.sum();
+    }
+
+}
@@ -0,0 +1,62 @@
+package be.bendem.irc.ircsockets.ws;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Three producers (the irc clients) and one consumer (a dispatch thread),
+ * producers back off when the queue is full so both queues stay bounded.
+ */
+@State(Scope.Group)
+public class RingBufferBenchmark {
+
+    private static final int CAPACITY = 64 * 1024;
+    private static final Object ELEMENT = new Object();
+
+    @Param({"BLOCKING", "YIELDING", "BUSY_SPIN"})
+    public RingBuffer.WaitStrategy waitStrategy;
+
+    private RingBuffer<Object> ringBuffer;
+    private BlockingQueue<Object> linkedQueue;
+
+    @Setup
+    public void setup() {
+        ringBuffer = new RingBuffer<>(CAPACITY, waitStrategy);
+        linkedQueue = new LinkedBlockingQueue<>(CAPACITY);
+    }
+
+    @Benchmark
+    @Group("ringBuffer")
+    @GroupThreads(3)
+    public boolean ringBufferOffer() {
+        return ringBuffer.offer(ELEMENT);
+    }
+
+    @Benchmark
+    @Group("ringBuffer")
+    public Object ringBufferTake() throws InterruptedException {
+        return ringBuffer.take();
+    }
+
+    @Benchmark
+    @Group("linkedQueue")
+    @GroupThreads(3)
+    public boolean linkedQueueOffer() {
+        return linkedQueue.offer(ELEMENT);
+    }
+
+    @Benchmark
+    @Group("linkedQueue")
+    public Object linkedQueueTake() throws InterruptedException {
+        return linkedQueue.take();
+    }
+
+}
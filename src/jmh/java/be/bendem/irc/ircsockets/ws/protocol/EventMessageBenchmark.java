@@ -0,0 +1,63 @@
+package be.bendem.irc.ircsockets.ws.protocol;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+@State(Scope.Benchmark)
+public class EventMessageBenchmark {
+
+    private static final String MESSAGE = "some <message> with \"quotes\" and \u00fcnicode";
+
+    private long time;
+    private List<String> channels;
+
+    @Setup
+    public void setup() {
+        time = System.currentTimeMillis();
+        channels = IntStream.range(0, 50).mapToObj(i -> "#channel-" + i).collect(Collectors.toList());
+    }
+
+    @Benchmark
+    public EventMessage createPlain() {
+        return new EventMessage("network", EventMessage.Kind.MESSAGE, time, "#channel", "nick", "nick", "hello world");
+    }
+
+    @Benchmark
+    public EventMessage createFormatted() {
+        return new EventMessage("network", EventMessage.Kind.PART, time, "#channel", "nick", "<--", "%s has left (%s)", "nick", "Quit: bye");
+    }
+
+    // Messages memoize their json, each serialization benchmark uses a new one
+
+    @Benchmark
+    public String eventToJson() {
+        return new EventMessage("network", EventMessage.Kind.MESSAGE, time, "#channel", "nick", "nick", MESSAGE).toJson();
+    }
+
+    @Benchmark
+    public String eventToJsonTree() {
+        return new EventMessage("network", EventMessage.Kind.MESSAGE, time, "#channel", "nick", "nick", MESSAGE).toJsonTree();
+    }
+
+    @Benchmark
+    public String formattedEventToJson() {
+        return new EventMessage("network", EventMessage.Kind.PART, time, "#channel", "nick", "<--", "%s has left (%s)", "nick", "Quit: bye").toJson();
+    }
+
+    @Benchmark
+    public String channelListToJson() {
+        return new ChannelListMessage("0", channels).toJson();
+    }
+
+    @Benchmark
+    public String channelListToJsonTree() {
+        return new ChannelListMessage("0", channels).toJsonTree();
+    }
+
+}
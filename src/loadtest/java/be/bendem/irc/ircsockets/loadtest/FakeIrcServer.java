@@ -0,0 +1,332 @@
+package be.bendem.irc.ircsockets.loadtest;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Plaintext irc server stand-in speaking just enough of the protocol for a
+ * client to register, negotiate server-time and join channels. Channels are
+ * populated with fake users driven by a {@link TrafficGenerator}.
+ */
+public class FakeIrcServer {
+
+    private static final String NAME = "irc.loadtest";
+    private static final String HOST = "loadtest";
+    private static final DateTimeFormatter TIME_TAG = DateTimeFormatter
+        .ofPattern("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'")
+        .withZone(ZoneOffset.UTC);
+
+    private final ServerSocket socket;
+    private final Set<Connection> connections;
+    // Fake users of each channel, the connected clients are not part of it
+    private final Map<String, Set<String>> members;
+    private final Thread acceptor;
+    private volatile boolean running = true;
+
+    public FakeIrcServer(int port) throws IOException {
+        this.socket = new ServerSocket(port);
+        this.connections = ConcurrentHashMap.newKeySet();
+        this.members = new ConcurrentHashMap<>();
+        this.acceptor = new Thread(this::accept, "fake-irc-acceptor");
+    }
+
+    public void start() {
+        acceptor.start();
+    }
+
+    public int getPort() {
+        return socket.getLocalPort();
+    }
+
+    private void accept() {
+        while(running) {
+            try {
+                Connection connection = new Connection(socket.accept());
+                connections.add(connection);
+                new Thread(connection, "fake-irc-" + connection.socket.getPort()).start();
+            } catch(SocketException e) {
+                // Closed by kill
+                break;
+            } catch(IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * @return the channels joined by at least one registered client
+     */
+    public Set<String> getJoinedChannels() {
+        Set<String> channels = new HashSet<>();
+        for(Connection connection : connections) {
+            channels.addAll(connection.channels);
+        }
+        return channels;
+    }
+
+    public List<String> getMembers(String channel) {
+        Set<String> nicks = members.get(channel);
+        return nicks == null ? Collections.emptyList() : new ArrayList<>(nicks);
+    }
+
+    public void join(String channel, String nick) {
+        members.computeIfAbsent(channel, k -> ConcurrentHashMap.newKeySet()).add(nick);
+        send(channel, nick, "JOIN " + channel);
+    }
+
+    public void part(String channel, String nick, String reason) {
+        Set<String> nicks = members.get(channel);
+        if(nicks != null && nicks.remove(nick)) {
+            send(channel, nick, "PART " + channel + " :" + reason);
+        }
+    }
+
+    public void quit(String nick, String reason) {
+        for(Map.Entry<String, Set<String>> channel : members.entrySet()) {
+            if(channel.getValue().remove(nick)) {
+                // Fake users are only ever in one channel
+                send(channel.getKey(), nick, "QUIT :" + reason);
+            }
+        }
+    }
+
+    public void privmsg(String channel, String nick, String message) {
+        send(channel, nick, "PRIVMSG " + channel + " :" + message);
+    }
+
+    private void send(String channel, String nick, String command) {
+        String time = TIME_TAG.format(Instant.now());
+        for(Connection connection : connections) {
+            if(connection.channels.contains(channel)) {
+                connection.write(
+                    (connection.serverTime ? "@time=" + time + " " : "")
+                        + ':' + nick + '!' + nick + '@' + HOST + ' ' + command
+                );
+            }
+        }
+    }
+
+    /**
+     * Writes everything sent since the last flush, lines are buffered so
+     * a whole generator tick goes out at once.
+     */
+    public void flush() {
+        connections.forEach(Connection::flush);
+    }
+
+    public void kill() {
+        running = false;
+        try {
+            socket.close();
+        } catch(IOException e) {
+            e.printStackTrace();
+        }
+        connections.forEach(Connection::close);
+    }
+
+    private class Connection implements Runnable {
+
+        private final Socket socket;
+        private final Writer out;
+        private final Set<String> channels;
+        private String nick;
+        private boolean user = false;
+        private boolean negotiating = false;
+        private boolean registered = false;
+        private volatile boolean serverTime = false;
+
+        private Connection(Socket socket) throws IOException {
+            this.socket = socket;
+            this.out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8), 64 * 1024);
+            this.channels = ConcurrentHashMap.newKeySet();
+        }
+
+        @Override
+        public void run() {
+            try(BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8))) {
+                String line;
+                while((line = in.readLine()) != null) {
+                    handle(line);
+                    flush();
+                }
+            } catch(IOException e) {
+                if(running) {
+                    System.err.println("[WARN] Fake irc connection lost: " + e.getMessage());
+                }
+            } finally {
+                connections.remove(this);
+                close();
+            }
+        }
+
+        private void handle(String line) {
+            // Clients don't send tags nor prefixes
+            String[] parts = line.split(" :", 2);
+            List<String> params = new ArrayList<>(Arrays.asList(parts[0].split(" ")));
+            if(parts.length == 2) {
+                params.add(parts[1]);
+            }
+            String command = params.remove(0).toUpperCase();
+
+            switch(command) {
+                case "CAP":
+                    handleCap(params);
+                    break;
+                case "NICK":
+                    nick = params.get(0);
+                    register();
+                    break;
+                case "USER":
+                    user = true;
+                    register();
+                    break;
+                case "PING":
+                    reply("PONG " + NAME + " :" + (params.isEmpty() ? NAME : params.get(0)));
+                    break;
+                case "JOIN":
+                    for(String channel : params.get(0).split(",")) {
+                        join(channel);
+                    }
+                    break;
+                case "PART":
+                    for(String channel : params.get(0).split(",")) {
+                        if(channels.remove(channel)) {
+                            write(':' + nick + '!' + nick + '@' + HOST + " PART " + channel);
+                        }
+                    }
+                    break;
+                case "WHO":
+                    numeric("315", params.get(0) + " :End of /WHO list.");
+                    break;
+                case "MODE":
+                    if(params.size() == 1 && params.get(0).startsWith("#")) {
+                        numeric("324", params.get(0) + " +nt");
+                    } else if(params.size() > 1 && params.get(1).equals("b")) {
+                        numeric("368", params.get(0) + " :End of channel ban list");
+                    }
+                    break;
+                case "QUIT":
+                    close();
+                    break;
+                default:
+                    // PASS, USERHOST and anything else don't matter here
+                    break;
+            }
+        }
+
+        private void handleCap(List<String> params) {
+            switch(params.get(0).toUpperCase()) {
+                case "LS":
+                    negotiating = true;
+                    reply("CAP * LS :server-time");
+                    break;
+                case "REQ":
+                    String requested = params.get(params.size() - 1).trim();
+                    if(requested.equals("server-time")) {
+                        serverTime = true;
+                        reply("CAP * ACK :" + requested);
+                    } else {
+                        reply("CAP * NAK :" + requested);
+                    }
+                    break;
+                case "LIST":
+                    reply("CAP * LIST :" + (serverTime ? "server-time" : ""));
+                    break;
+                case "END":
+                    negotiating = false;
+                    register();
+                    break;
+            }
+        }
+
+        private void register() {
+            if(registered || negotiating || nick == null || !user) {
+                return;
+            }
+            registered = true;
+
+            numeric("001", ":Welcome to the load test network " + nick);
+            numeric("002", ":Your host is " + NAME);
+            numeric("003", ":This server was created for load tests");
+            numeric("004", NAME + " fake iowx bklmnopstv");
+            numeric("005", "CHANTYPES=# PREFIX=(ov)@+ CHANMODES=b,k,l,mnpst NETWORK=loadtest CASEMAPPING=ascii :are supported by this server");
+            numeric("375", ":- " + NAME + " Message of the day -");
+            numeric("372", ":- Nothing to see here");
+            numeric("376", ":End of /MOTD command.");
+        }
+
+        private void join(String channel) {
+            channels.add(channel);
+            write(':' + nick + '!' + nick + '@' + HOST + " JOIN " + channel);
+            numeric("332", channel + " :Load test channel");
+
+            StringBuilder names = new StringBuilder(nick);
+            for(String member : getMembers(channel)) {
+                if(names.length() > 400) {
+                    numeric("353", "= " + channel + " :" + names);
+                    names.setLength(0);
+                } else {
+                    names.append(' ');
+                }
+                names.append(member);
+            }
+            numeric("353", "= " + channel + " :" + names);
+            numeric("366", channel + " :End of /NAMES list.");
+        }
+
+        private void numeric(String numeric, String params) {
+            reply(numeric + ' ' + (nick == null ? "*" : nick) + ' ' + params);
+        }
+
+        private void reply(String message) {
+            write(':' + NAME + ' ' + message);
+        }
+
+        private synchronized void write(String line) {
+            try {
+                out.write(line);
+                out.write("\r\n");
+            } catch(IOException e) {
+                close();
+            }
+        }
+
+        private synchronized void flush() {
+            try {
+                out.flush();
+            } catch(IOException e) {
+                close();
+            }
+        }
+
+        private void close() {
+            channels.clear();
+            try {
+                socket.close();
+            } catch(IOException e) {
+                e.printStackTrace();
+            }
+        }
+
+    }
+
+}
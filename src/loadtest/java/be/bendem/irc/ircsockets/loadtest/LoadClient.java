@@ -0,0 +1,137 @@
+package be.bendem.irc.ircsockets.loadtest;
+
+import be.bendem.irc.ircsockets.Application;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import org.java_websocket.client.WebSocketClient;
+import org.java_websocket.handshake.ServerHandshake;
+
+import java.net.URI;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Supplier;
+
+/**
+ * Headless websocket client listening to a few channels and recording the
+ * latency of the generated messages it receives.
+ */
+public class LoadClient extends WebSocketClient {
+
+    private static final String LOAD_MESSAGE = "\"message\":\"" + TrafficGenerator.MARKER;
+    private static final String EVENT = "\"_type\":\"event\"";
+    private static final String SKIPPED = "\"skipped\":";
+    private static final String SKIPPED_TYPE = "\"_type\":\"skipped\"";
+    private static final String CHANNEL_LIST_TYPE = "\"_type\":\"channel_list\"";
+
+    private final List<String> channels;
+    private final Supplier<Results> results;
+    private volatile Set<String> available = Collections.emptySet();
+    private volatile boolean closed = false;
+
+    public LoadClient(URI uri, List<String> channels, Supplier<Results> results) {
+        super(uri);
+        this.channels = channels;
+        this.results = results;
+    }
+
+    @Override
+    public void onOpen(ServerHandshake handshake) {
+        JsonObject request = new JsonObject();
+        request.addProperty("_type", "listen_request");
+        request.add("channels", channels.stream()
+            .collect(JsonArray::new, (array, channel) -> array.add(Application.GSON.toJsonTree(channel)), JsonArray::addAll));
+        send(Application.GSON.toJson(request));
+    }
+
+    @Override
+    public void onMessage(String message) {
+        long now = System.nanoTime();
+        Results current = results.get();
+        current.frames.increment();
+        current.chars.add(message.length());
+
+        // Events are counted by scanning the payload, parsing every message
+        // would make the clients the bottleneck
+        int events = 0;
+        for(int i = message.indexOf(EVENT); i >= 0; i = message.indexOf(EVENT, i + EVENT.length())) {
+            ++events;
+        }
+        int loadMessages = 0;
+        int stale = 0;
+        for(int i = message.indexOf(LOAD_MESSAGE); i >= 0; i = message.indexOf(LOAD_MESSAGE, i + 1)) {
+            int start = i + LOAD_MESSAGE.length();
+            int end = start;
+            while(end < message.length() && Character.isDigit(message.charAt(end))) {
+                ++end;
+            }
+            long generated = Long.parseLong(message.substring(start, end));
+            if(generated >= current.started) {
+                current.latency.record(now - generated);
+                ++loadMessages;
+            } else {
+                ++stale;
+            }
+        }
+        current.receivedMessages.add(loadMessages);
+        current.receivedEvents.add(events - loadMessages - stale);
+
+        if(message.contains(SKIPPED_TYPE)) {
+            int start = message.indexOf(SKIPPED) + SKIPPED.length();
+            int end = start;
+            while(end < message.length() && Character.isDigit(message.charAt(end))) {
+                ++end;
+            }
+            current.skipped.add(Long.parseLong(message.substring(start, end)));
+        }
+        if(message.contains(CHANNEL_LIST_TYPE)) {
+            readChannelList(message);
+        }
+    }
+
+    private void readChannelList(String message) {
+        JsonElement json = new JsonParser().parse(message);
+        Iterable<JsonElement> messages = json.isJsonArray() ? json.getAsJsonArray() : Collections.singletonList(json);
+        for(JsonElement element : messages) {
+            JsonObject object = element.getAsJsonObject();
+            if(object.get("_type").getAsString().equals("channel_list")) {
+                Set<String> channels = new HashSet<>();
+                object.getAsJsonArray("channels").forEach(channel -> channels.add(channel.getAsString()));
+                available = channels;
+            }
+        }
+    }
+
+    /**
+     * Whether the server is in every channel this client listens to.
+     */
+    public boolean isReady() {
+        return available.containsAll(channels);
+    }
+
+    public List<String> getChannels() {
+        return channels;
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    @Override
+    public void onClose(int code, String reason, boolean remote) {
+        closed = true;
+        if(remote) {
+            System.err.printf("[WARN] Load client closed by the server (%d: %s)%n", code, reason);
+        }
+    }
+
+    @Override
+    public void onError(Exception ex) {
+        System.err.println("[ERROR] Load client error");
+        ex.printStackTrace();
+    }
+
+}
@@ -0,0 +1,409 @@
+package be.bendem.irc.ircsockets.loadtest;
+
+import be.bendem.irc.ircsockets.Application;
+import be.bendem.irc.ircsockets.NetworkConfig;
+import be.bendem.irc.ircsockets.metrics.Histogram;
+import be.bendem.irc.ircsockets.ws.ServerOptions;
+import be.bendem.irc.ircsockets.ws.protocol.Message;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Drives an application through a fake irc network and a pool of websocket
+ * clients, raising the message rate step by step until the application can't
+ * keep up anymore.
+ *
+ * The application either runs in this process (--in-process) or is started
+ * separately with the network config written by the load test, everything
+ * runs on the local machine.
+ */
+public class LoadTest {
+
+    private static final String NETWORK = "load";
+
+    private final Options options;
+    private final FakeIrcServer irc;
+    private final List<String> channels;
+    private final Map<String, Integer> subscribers;
+    private final List<LoadClient> clients;
+    private final TrafficGenerator generator;
+    private Application application;
+    private volatile Results current = new Results();
+
+    public static void main(String[] args) throws Exception {
+        Options options = new Options();
+
+        for(int i = 0; i < args.length; ++i) {
+            switch(args[i]) {
+                case "--irc-port":
+                    checkIndex(i, args.length);
+                    options.ircPort = Integer.parseInt(args[++i]);
+                    break;
+                case "--ws-url":
+                    checkIndex(i, args.length);
+                    options.wsUrl = args[++i];
+                    break;
+                case "--in-process":
+                    options.inProcess = true;
+                    break;
+                case "--config":
+                    checkIndex(i, args.length);
+                    options.config = args[++i];
+                    break;
+                case "--report":
+                    checkIndex(i, args.length);
+                    options.report = args[++i];
+                    break;
+                case "--channels":
+                    checkIndex(i, args.length);
+                    options.channels = Integer.parseInt(args[++i]);
+                    break;
+                case "--users-per-channel":
+                    checkIndex(i, args.length);
+                    options.usersPerChannel = Integer.parseInt(args[++i]);
+                    break;
+                case "--clients":
+                    checkIndex(i, args.length);
+                    options.clients = Integer.parseInt(args[++i]);
+                    break;
+                case "--channels-per-client":
+                    checkIndex(i, args.length);
+                    options.channelsPerClient = Integer.parseInt(args[++i]);
+                    break;
+                case "--message-size":
+                    checkIndex(i, args.length);
+                    options.messageSize = Integer.parseInt(args[++i]);
+                    break;
+                case "--rate":
+                    checkIndex(i, args.length);
+                    options.rate = Double.parseDouble(args[++i]);
+                    break;
+                case "--rate-step":
+                    checkIndex(i, args.length);
+                    options.rateStep = Double.parseDouble(args[++i]);
+                    break;
+                case "--steps":
+                    checkIndex(i, args.length);
+                    options.steps = Integer.parseInt(args[++i]);
+                    break;
+                case "--join-rate":
+                    checkIndex(i, args.length);
+                    options.joinRate = Double.parseDouble(args[++i]);
+                    break;
+                case "--part-rate":
+                    checkIndex(i, args.length);
+                    options.partRate = Double.parseDouble(args[++i]);
+                    break;
+                case "--quit-rate":
+                    checkIndex(i, args.length);
+                    options.quitRate = Double.parseDouble(args[++i]);
+                    break;
+                case "--warmup":
+                    checkIndex(i, args.length);
+                    options.warmup = Long.parseLong(args[++i]);
+                    break;
+                case "--duration":
+                    checkIndex(i, args.length);
+                    options.duration = Long.parseLong(args[++i]);
+                    break;
+                case "--drain":
+                    checkIndex(i, args.length);
+                    options.drain = Long.parseLong(args[++i]);
+                    break;
+                case "--max-latency":
+                    checkIndex(i, args.length);
+                    options.maxLatency = Long.parseLong(args[++i]);
+                    break;
+                case "--min-delivery":
+                    checkIndex(i, args.length);
+                    options.minDelivery = Double.parseDouble(args[++i]);
+                    break;
+                case "--connect-timeout":
+                    checkIndex(i, args.length);
+                    options.connectTimeout = Long.parseLong(args[++i]);
+                    break;
+                default:
+                    System.err.println("Ignored option " + args[i]);
+            }
+        }
+
+        LoadTest test = new LoadTest(options);
+        int status = 0;
+        try {
+            List<StepReport> reports = test.run();
+            print(reports);
+            if(options.report != null) {
+                try(Writer writer = Files.newBufferedWriter(Paths.get(options.report), StandardCharsets.UTF_8)) {
+                    Application.GSON.toJson(reports, writer);
+                }
+            }
+        } catch(Exception e) {
+            e.printStackTrace();
+            status = 1;
+        } finally {
+            test.kill();
+        }
+        System.exit(status);
+    }
+
+    private static void checkIndex(int i, int length) {
+        if(i + 1 == length) {
+            throw new RuntimeException("Missing parameter value");
+        }
+    }
+
+    public LoadTest(Options options) throws IOException, URISyntaxException {
+        this.options = options;
+        this.irc = new FakeIrcServer(options.ircPort);
+        this.channels = new ArrayList<>(options.channels);
+        for(int i = 0; i < options.channels; ++i) {
+            channels.add("#load-" + i);
+        }
+
+        // Client i listens to the channelsPerClient channels following channel i
+        this.subscribers = new HashMap<>();
+        this.clients = new ArrayList<>(options.clients);
+        URI uri = new URI(options.wsUrl);
+        for(int i = 0; i < options.clients; ++i) {
+            List<String> keys = new ArrayList<>(options.channelsPerClient);
+            for(int j = 0; j < Math.min(options.channelsPerClient, channels.size()); ++j) {
+                String channel = channels.get((i + j) % channels.size());
+                keys.add(Message.routingKey(NETWORK, channel));
+                subscribers.merge(channel, 1, Integer::sum);
+            }
+            clients.add(new LoadClient(uri, keys, () -> current));
+        }
+
+        this.generator = new TrafficGenerator(irc, channels, options.usersPerChannel, options.messageSize, new TrafficGenerator.Listener() {
+            @Override
+            public void onMessage(String channel) {
+                Results results = current;
+                results.generatedMessages.increment();
+                results.expectedMessages.add(subscribers.getOrDefault(channel, 0));
+            }
+
+            @Override
+            public void onEvent(String channel) {
+                current.generatedEvents.increment();
+            }
+        });
+    }
+
+    public List<StepReport> run() throws IOException, InterruptedException {
+        irc.start();
+        generator.start();
+
+        Path config = Paths.get(options.config);
+        writeConfig(config);
+        URI uri = URI.create(options.wsUrl);
+        if(options.inProcess) {
+            ServerOptions serverOptions = new ServerOptions();
+            application = new Application(readConfig(config), uri.getPort(), false, false, serverOptions);
+        } else {
+            System.out.printf(
+                "Waiting for the application, start it with --config %s --no-ws-ssl --ws-port %d%n",
+                config.toAbsolutePath(), uri.getPort()
+            );
+        }
+
+        await("the application to join every channel", () -> irc.getJoinedChannels().containsAll(channels));
+        System.out.println("Connecting " + clients.size() + " clients");
+        for(LoadClient client : clients) {
+            if(!client.connectBlocking()) {
+                throw new IOException("Could not connect to " + options.wsUrl);
+            }
+        }
+        await("the clients to receive the channel list", () -> clients.stream().allMatch(LoadClient::isReady));
+
+        List<StepReport> reports = new ArrayList<>();
+        for(int step = 0; step < options.steps; ++step) {
+            double rate = options.rate + step * options.rateStep;
+            StepReport report = runStep(rate);
+            reports.add(report);
+            System.out.println(report);
+
+            if(!report.sustained) {
+                break;
+            }
+        }
+        return reports;
+    }
+
+    private StepReport runStep(double rate) throws InterruptedException {
+        generator.setRates(rate, options.joinRate, options.partRate, options.quitRate);
+        TimeUnit.SECONDS.sleep(options.warmup);
+
+        Results results = new Results();
+        current = results;
+        TimeUnit.SECONDS.sleep(options.duration);
+
+        // Let the messages in flight arrive before looking at what was received
+        generator.setRates(0, 0, 0, 0);
+        TimeUnit.SECONDS.sleep(options.drain);
+        current = new Results();
+
+        return new StepReport(rate, options.duration, results, options);
+    }
+
+    private void await(String what, BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(options.connectTimeout);
+        while(!condition.getAsBoolean()) {
+            if(System.nanoTime() > deadline) {
+                throw new RuntimeException("Timed out waiting for " + what);
+            }
+            TimeUnit.MILLISECONDS.sleep(100);
+        }
+    }
+
+    private void writeConfig(Path path) throws IOException {
+        NetworkConfig network = new NetworkConfig();
+        network.name = NETWORK;
+        network.host = "localhost";
+        network.port = irc.getPort();
+        network.ssl = false;
+        network.nick = "loadtest";
+        network.channels = channels;
+
+        NetworkConfig.File file = new NetworkConfig.File();
+        file.networks = Collections.singletonList(network);
+
+        if(path.getParent() != null) {
+            Files.createDirectories(path.getParent());
+        }
+        try(Writer writer = Files.newBufferedWriter(path, StandardCharsets.UTF_8)) {
+            Application.GSON.toJson(file, writer);
+        }
+    }
+
+    private static List<NetworkConfig> readConfig(Path path) throws IOException {
+        return Application.GSON.fromJson(new String(Files.readAllBytes(path), StandardCharsets.UTF_8), NetworkConfig.File.class).networks;
+    }
+
+    public void kill() {
+        generator.kill();
+        clients.forEach(LoadClient::close);
+        if(application != null) {
+            application.kill();
+        }
+        irc.kill();
+    }
+
+    private static void print(List<StepReport> reports) {
+        System.out.println();
+        System.out.printf("%10s %10s %10s %8s %10s %9s %9s %9s %9s%n",
+            "rate", "generated", "received", "ratio", "recv/s", "p50 ms", "p99 ms", "max ms", "skipped");
+        StepReport best = null;
+        for(StepReport report : reports) {
+            System.out.printf("%10.0f %10d %10d %8.4f %10.0f %9.2f %9.2f %9.2f %9d%s%n",
+                report.rate, report.generated, report.received, report.deliveryRatio, report.throughput,
+                report.p50, report.p99, report.max, report.skipped,
+                report.sustained ? "" : "  <- breaking point");
+            if(report.sustained) {
+                best = report;
+            }
+        }
+        System.out.println();
+        System.out.println(best == null
+            ? "No step was sustained"
+            : String.format("Highest sustained rate: %.0f messages/s (%.0f deliveries/s)", best.rate, best.throughput));
+    }
+
+    public static class Options {
+
+        public int ircPort = 16667;
+        public String wsUrl = "ws://localhost:18043";
+        public boolean inProcess = false;
+        // Network config file the application is started with
+        public String config = "build/loadtest/networks.json";
+        public String report = null;
+
+        public int channels = 50;
+        public int usersPerChannel = 20;
+        public int clients = 200;
+        public int channelsPerClient = 5;
+        public int messageSize = 100;
+
+        // Channel messages per second of the first step and how much each step adds
+        public double rate = 500;
+        public double rateStep = 500;
+        public int steps = 20;
+        public double joinRate = 5;
+        public double partRate = 4;
+        public double quitRate = 1;
+
+        // Seconds
+        public long warmup = 5;
+        public long duration = 20;
+        public long drain = 3;
+        public long connectTimeout = 60;
+
+        // A step is sustained if its p99 latency (ms) and the ratio of messages delivered stay within these bounds
+        public long maxLatency = 1000;
+        public double minDelivery = 0.999;
+
+    }
+
+    public static class StepReport {
+
+        private final double rate;
+        private final long generated;
+        private final long expected;
+        private final long received;
+        private final long events;
+        private final long skipped;
+        private final long frames;
+        private final double deliveryRatio;
+        private final double throughput;
+        private final double p50;
+        private final double p90;
+        private final double p99;
+        private final double max;
+        private final boolean sustained;
+
+        private StepReport(double rate, long seconds, Results results, Options options) {
+            Histogram.Snapshot latency = results.latency.snapshot();
+            this.rate = rate;
+            this.generated = results.generatedMessages.sum();
+            this.expected = results.expectedMessages.sum();
+            this.received = results.receivedMessages.sum();
+            this.events = results.receivedEvents.sum();
+            this.skipped = results.skipped.sum();
+            this.frames = results.frames.sum();
+            this.deliveryRatio = expected == 0 ? 1 : received / (double) expected;
+            this.throughput = received / (double) seconds;
+            this.p50 = millis(latency.getQuantile(0.5));
+            this.p90 = millis(latency.getQuantile(0.9));
+            this.p99 = millis(latency.getQuantile(0.99));
+            this.max = millis(latency.getMax());
+            this.sustained = deliveryRatio >= options.minDelivery && p99 <= options.maxLatency;
+        }
+
+        private static double millis(long nanos) {
+            return nanos / (double) TimeUnit.MILLISECONDS.toNanos(1);
+        }
+
+        @Override
+        public String toString() {
+            return String.format(
+                "rate %.0f/s: %d/%d messages received (%.4f), %d other events, %d frames, %d skipped, p50 %.2fms, p90 %.2fms, p99 %.2fms, max %.2fms",
+                rate, received, expected, deliveryRatio, events, frames, skipped, p50, p90, p99, max
+            );
+        }
+
+    }
+
+}
@@ -0,0 +1,25 @@
+package be.bendem.irc.ircsockets.loadtest;
+
+import be.bendem.irc.ircsockets.metrics.Histogram;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * What happened during one step of a load test, recorded concurrently by the
+ * generator and every client.
+ */
+public class Results {
+
+    final Histogram latency = new Histogram("latency", "Time between a message being generated and a client receiving it");
+    final LongAdder generatedMessages = new LongAdder();
+    final LongAdder generatedEvents = new LongAdder();
+    final LongAdder expectedMessages = new LongAdder();
+    final LongAdder receivedMessages = new LongAdder();
+    final LongAdder receivedEvents = new LongAdder();
+    final LongAdder skipped = new LongAdder();
+    final LongAdder frames = new LongAdder();
+    final LongAdder chars = new LongAdder();
+    // Messages generated before are left out
+    final long started = System.nanoTime();
+
+}
@@ -0,0 +1,159 @@
+package be.bendem.irc.ircsockets.loadtest;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Emits channel messages, joins, parts and quits through a {@link FakeIrcServer}
+ * at the configured rates, spread evenly over the channels. Messages carry the
+ * time they were generated at so the clients can compute their latency.
+ */
+public class TrafficGenerator implements Runnable {
+
+    public static final String MARKER = "load ";
+
+    private static final long TICK = 5;
+
+    private final FakeIrcServer server;
+    private final List<String> channels;
+    private final String padding;
+    private final Thread thread;
+    private final Listener listener;
+    private volatile double messageRate = 0;
+    private volatile double joinRate = 0;
+    private volatile double partRate = 0;
+    private volatile double quitRate = 0;
+    private volatile boolean running = true;
+    private long nextUser = 0;
+    private int nextChannel = 0;
+
+    public TrafficGenerator(FakeIrcServer server, List<String> channels, int usersPerChannel, int messageSize, Listener listener) {
+        this.server = server;
+        this.channels = channels;
+        this.listener = listener;
+        this.thread = new Thread(this, "traffic-generator");
+
+        char[] padding = new char[Math.max(messageSize - 32, 0)];
+        Arrays.fill(padding, 'x');
+        this.padding = new String(padding);
+
+        // Users present before anyone joins the channels
+        for(String channel : channels) {
+            for(int i = 0; i < usersPerChannel; ++i) {
+                server.join(channel, nextNick());
+            }
+        }
+    }
+
+    public void start() {
+        thread.start();
+    }
+
+    /**
+     * Changes the amount of each event generated per second.
+     */
+    public void setRates(double messages, double joins, double parts, double quits) {
+        messageRate = messages;
+        joinRate = joins;
+        partRate = parts;
+        quitRate = quits;
+    }
+
+    @Override
+    public void run() {
+        double messages = 0;
+        double joins = 0;
+        double parts = 0;
+        double quits = 0;
+        long last = System.nanoTime();
+
+        while(running) {
+            try {
+                Thread.sleep(TICK);
+            } catch(InterruptedException e) {
+                break;
+            }
+
+            long now = System.nanoTime();
+            double elapsed = (now - last) / (double) TimeUnit.SECONDS.toNanos(1);
+            last = now;
+
+            messages += messageRate * elapsed;
+            joins += joinRate * elapsed;
+            parts += partRate * elapsed;
+            quits += quitRate * elapsed;
+
+            for(; joins >= 1; --joins) {
+                String channel = nextChannel();
+                server.join(channel, nextNick());
+                listener.onEvent(channel);
+            }
+            for(; parts >= 1; --parts) {
+                String channel = nextChannel();
+                String nick = randomMember(channel);
+                if(nick != null) {
+                    server.part(channel, nick, "load test");
+                    listener.onEvent(channel);
+                }
+            }
+            for(; quits >= 1; --quits) {
+                String channel = nextChannel();
+                String nick = randomMember(channel);
+                if(nick != null) {
+                    server.quit(nick, "load test");
+                    listener.onEvent(channel);
+                }
+            }
+            for(; messages >= 1; --messages) {
+                String channel = nextChannel();
+                String nick = randomMember(channel);
+                server.privmsg(channel, nick == null ? "talker" : nick, MARKER + System.nanoTime() + ' ' + padding);
+                listener.onMessage(channel);
+            }
+
+            server.flush();
+        }
+    }
+
+    private String nextChannel() {
+        String channel = channels.get(nextChannel);
+        nextChannel = (nextChannel + 1) % channels.size();
+        return channel;
+    }
+
+    private String nextNick() {
+        return "user" + nextUser++;
+    }
+
+    private String randomMember(String channel) {
+        List<String> members = server.getMembers(channel);
+        return members.isEmpty() ? null : members.get(ThreadLocalRandom.current().nextInt(members.size()));
+    }
+
+    public void kill() {
+        running = false;
+        thread.interrupt();
+        try {
+            thread.join();
+        } catch(InterruptedException e) {
+            e.printStackTrace();
+        }
+    }
+
+    public interface Listener {
+
+        /**
+         * Called for every channel message generated.
+         */
+        void onMessage(String channel);
+
+        /**
+         * Called for every join, part and quit generated.
+         */
+        void onEvent(String channel);
+
+    }
+
+}
@@ -1,37 +1,48 @@
 package be.bendem.irc.ircsockets;
 
+import be.bendem.irc.ircsockets.relay.Upstream;
+import be.bendem.irc.ircsockets.ws.ClientConnection;
+import be.bendem.irc.ircsockets.ws.Dispatcher;
+import be.bendem.irc.ircsockets.ws.RingBuffer;
 import be.bendem.irc.ircsockets.ws.Server;
+import be.bendem.irc.ircsockets.ws.ServerOptions;
+import be.bendem.irc.ircsockets.ws.protocol.ChannelListMessage;
 import be.bendem.irc.ircsockets.ws.protocol.Message;
 import com.google.gson.Gson;
 import org.java_websocket.WebSocketImpl;
 import org.kitteh.irc.client.library.Client;
 import org.kitteh.irc.client.library.ClientBuilder;
 
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashSet;
-import java.util.Set;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 
 public class Application {
 
     public static final Gson GSON = new Gson();
 
-    private final Client client;
+    private final Map<String, Network> networks;
     private final Server server;
-    private final BlockingQueue<Message> messageQueue;
+    private final Ingest ingest;
+    private final Coalescer coalescer;
+    private final ChannelList channelList;
+    private final Upstream upstream;
 
     public static void main(String[] args) {
         int wsPort = 8043;
-        int ircPort = 6667;
         boolean debug = false;
-        boolean ircSsl = true;
         boolean wsSsl = true;
-        String startupChannel = null;
-        String host = null;
-        String username = null;
-        String password = null;
-        String nick = null;
-        Set<String> userAccounts = new HashSet<>();
+        String config = null;
+        NetworkConfig network = new NetworkConfig();
+        ServerOptions options = new ServerOptions();
 
         for(int i = 0; i < args.length; ++i) {
             switch(args[i]) {
@@ -39,25 +50,33 @@ public class Application {
                     checkIndex(i, args.length);
                     wsPort = Integer.parseInt(args[++i]);
                     break;
+                case "--config":
+                    checkIndex(i, args.length);
+                    config = args[++i];
+                    break;
+                case "--network":
+                    checkIndex(i, args.length);
+                    network.name = args[++i];
+                    break;
                 case "--irc-port":
                     checkIndex(i, args.length);
-                    ircPort = Integer.parseInt(args[++i]);
+                    network.port = Integer.parseInt(args[++i]);
                     break;
                 case "--host":
                     checkIndex(i, args.length);
-                    host = args[++i];
+                    network.host = args[++i];
                     break;
                 case "--username":
                     checkIndex(i, args.length);
-                    username = args[++i];
+                    network.username = args[++i];
                     break;
                 case "--password":
                     checkIndex(i, args.length);
-                    password = args[++i];
+                    network.password = args[++i];
                     break;
                 case "--nick":
                     checkIndex(i, args.length);
-                    nick = args[++i];
+                    network.nick = args[++i];
                     break;
                 case "--debug":
                 case "-d":
@@ -67,24 +86,182 @@ public class Application {
                     wsSsl = false;
                     break;
                 case "--no-irc-ssl":
-                    ircSsl = false;
+                    network.ssl = false;
                     break;
                 case "--channel":
                 case "-c":
                     checkIndex(i, args.length);
-                    startupChannel = args[++i];
+                    network.channels.add(args[++i]);
                     break;
                 case "--user-account":
                 case "-u":
                     checkIndex(i, args.length);
-                    userAccounts.add(args[++i]);
+                    network.userAccounts.add(args[++i]);
+                    break;
+                case "--batch-size":
+                    checkIndex(i, args.length);
+                    options.batchSize = Integer.parseInt(args[++i]);
+                    break;
+                case "--batch-linger":
+                    checkIndex(i, args.length);
+                    options.batchLinger = Long.parseLong(args[++i]);
+                    break;
+                case "--client-queue-size":
+                    checkIndex(i, args.length);
+                    options.clientQueueSize = Integer.parseInt(args[++i]);
+                    break;
+                case "--client-queue-bytes":
+                    checkIndex(i, args.length);
+                    options.clientQueueBytes = Long.parseLong(args[++i]);
+                    break;
+                case "--slow-consumer-policy":
+                    checkIndex(i, args.length);
+                    options.slowConsumerPolicy = ClientConnection.SlowConsumerPolicy.valueOf(args[++i].toUpperCase());
+                    break;
+                case "--dispatch-threads":
+                    checkIndex(i, args.length);
+                    options.dispatchThreads = Integer.parseInt(args[++i]);
+                    break;
+                case "--dispatch-queue-size":
+                    checkIndex(i, args.length);
+                    options.dispatchQueueSize = Integer.parseInt(args[++i]);
+                    break;
+                case "--dispatch-overflow-policy":
+                    checkIndex(i, args.length);
+                    options.dispatchOverflowPolicy = Dispatcher.OverflowPolicy.valueOf(args[++i].toUpperCase());
+                    break;
+                case "--dispatch-wait-strategy":
+                    checkIndex(i, args.length);
+                    options.dispatchWaitStrategy = RingBuffer.WaitStrategy.valueOf(args[++i].toUpperCase());
+                    break;
+                case "--ingest-threads":
+                    checkIndex(i, args.length);
+                    options.ingestThreads = Integer.parseInt(args[++i]);
+                    break;
+                case "--ingest-queue-size":
+                    checkIndex(i, args.length);
+                    options.ingestQueueSize = Integer.parseInt(args[++i]);
+                    break;
+                case "--ingest-overflow-policy":
+                    checkIndex(i, args.length);
+                    options.ingestOverflowPolicy = Dispatcher.OverflowPolicy.valueOf(args[++i].toUpperCase());
+                    break;
+                case "--coalesce-threshold":
+                    checkIndex(i, args.length);
+                    options.coalesceThreshold = Integer.parseInt(args[++i]);
+                    break;
+                case "--coalesce-window":
+                    checkIndex(i, args.length);
+                    options.coalesceWindow = Long.parseLong(args[++i]);
+                    break;
+                case "--scrollback-events":
+                    checkIndex(i, args.length);
+                    options.scrollbackEvents = Integer.parseInt(args[++i]);
+                    break;
+                case "--scrollback-channel-bytes":
+                    checkIndex(i, args.length);
+                    options.scrollbackChannelBytes = Long.parseLong(args[++i]);
+                    break;
+                case "--scrollback-total-bytes":
+                    checkIndex(i, args.length);
+                    options.scrollbackTotalBytes = Long.parseLong(args[++i]);
+                    break;
+                case "--store-dir":
+                    checkIndex(i, args.length);
+                    options.storeDirectory = args[++i];
+                    break;
+                case "--store-segment-bytes":
+                    checkIndex(i, args.length);
+                    options.storeSegmentBytes = Integer.parseInt(args[++i]);
+                    break;
+                case "--store-segment-age":
+                    checkIndex(i, args.length);
+                    options.storeSegmentAge = Long.parseLong(args[++i]);
+                    break;
+                case "--store-retention":
+                    checkIndex(i, args.length);
+                    options.storeRetention = Long.parseLong(args[++i]);
+                    break;
+                case "--store-max-bytes":
+                    checkIndex(i, args.length);
+                    options.storeMaxBytes = Long.parseLong(args[++i]);
+                    break;
+                case "--search-max-bytes":
+                    checkIndex(i, args.length);
+                    options.searchMaxBytes = Long.parseLong(args[++i]);
+                    break;
+                case "--no-deflate":
+                    options.deflate = false;
+                    break;
+                case "--deflate-level":
+                    checkIndex(i, args.length);
+                    options.deflateLevel = Integer.parseInt(args[++i]);
+                    break;
+                case "--binary-symbols":
+                    checkIndex(i, args.length);
+                    options.binarySymbols = Integer.parseInt(args[++i]);
+                    break;
+                case "--deflate-min-size":
+                    checkIndex(i, args.length);
+                    options.deflateMinSize = Integer.parseInt(args[++i]);
+                    break;
+                case "--deflate-context-takeover":
+                    options.deflateServerContextTakeover = true;
+                    break;
+                case "--deflate-no-client-context-takeover":
+                    options.deflateClientContextTakeover = false;
+                    break;
+                case "--deflate-client-window-bits":
+                    checkIndex(i, args.length);
+                    options.deflateClientWindowBits = Integer.parseInt(args[++i]);
+                    break;
+                case "--deflate-max-message-size":
+                    checkIndex(i, args.length);
+                    options.deflateMaxMessageSize = Integer.parseInt(args[++i]);
+                    break;
+                case "--metrics-port":
+                    checkIndex(i, args.length);
+                    options.metricsPort = Integer.parseInt(args[++i]);
+                    break;
+                case "--metrics-host":
+                    checkIndex(i, args.length);
+                    options.metricsHost = args[++i];
+                    break;
+                case "--relay-port":
+                    checkIndex(i, args.length);
+                    options.relayPort = Integer.parseInt(args[++i]);
+                    break;
+                case "--relay-host":
+                    checkIndex(i, args.length);
+                    options.relayHost = args[++i];
+                    break;
+                case "--upstream":
+                    checkIndex(i, args.length);
+                    options.upstream = args[++i];
                     break;
                 default:
                     System.err.println("Ignored option " + args[i]);
             }
         }
 
-        new Application(wsPort, startupChannel, debug, ircSsl, wsSsl, ircPort, host, username, password, nick, userAccounts);
+        List<NetworkConfig> networks;
+        if(options.upstream != null) {
+            // Relays get their events from the ingest node
+            networks = Collections.emptyList();
+        } else if(config != null) {
+            try(Reader reader = Files.newBufferedReader(Paths.get(config), StandardCharsets.UTF_8)) {
+                networks = GSON.fromJson(reader, NetworkConfig.File.class).networks;
+            } catch(IOException e) {
+                throw new RuntimeException("Could not read " + config, e);
+            }
+        } else {
+            if(network.name == null) {
+                network.name = network.host;
+            }
+            networks = Collections.singletonList(network);
+        }
+
+        new Application(networks, wsPort, debug, wsSsl, options);
     }
 
     private static void checkIndex(int i, int length) {
@@ -93,67 +270,147 @@ public class Application {
         }
     }
 
-    public Application(int wsPort, String startupChannel, boolean debug, boolean ircSsl, boolean wsSsl, int ircPort,
-                       String host, String username, String password, String nick, Set<String> userAccounts) {
+    public Application(List<NetworkConfig> configs, int wsPort, boolean debug, boolean wsSsl, ServerOptions options) {
+        if(configs.isEmpty() && options.upstream == null) {
+            throw new RuntimeException("No network configured");
+        }
+
+        channelList = new ChannelList();
+        ingest = new Ingest(
+            options.ingestThreads > 0 ? options.ingestThreads : configs.size(),
+            options.ingestQueueSize, options.ingestOverflowPolicy
+        );
+        coalescer = new Coalescer(message -> getServer().dispatch(message), options.coalesceThreshold, options.coalesceWindow);
+        networks = new LinkedHashMap<>();
+        for(NetworkConfig config : configs) {
+            if(config.name == null || config.name.contains(":")) {
+                throw new RuntimeException("Invalid network name " + config.name);
+            }
+            if(networks.containsKey(config.name)) {
+                throw new RuntimeException("Duplicate network name " + config.name);
+            }
+
+            Network network = new Network(config.name, createClient(config, debug));
+            network.getClient().getEventManager().registerEventListener(
+                new EventManager(this, network, new HashSet<>(config.userAccounts), ingest.getLane(networks.size()))
+            );
+            networks.put(config.name, network);
+        }
+        if(debug) {
+            WebSocketImpl.DEBUG = true;
+        }
+
+        server = new Server(this, wsPort, wsSsl, options);
+
+        if(options.upstream != null) {
+            int colon = options.upstream.lastIndexOf(':');
+            if(colon <= 0) {
+                server.kill();
+                throw new RuntimeException("Invalid upstream " + options.upstream);
+            }
+            upstream = new Upstream(this, options.upstream.substring(0, colon), Integer.parseInt(options.upstream.substring(colon + 1)));
+        } else {
+            upstream = null;
+        }
+    }
+
+    private static Client createClient(NetworkConfig config, boolean debug) {
         // TODO Nullcheck stuff
         ClientBuilder builder = Client.builder()
-            .server(host)
-            .server(ircPort)
+            .server(config.host)
+            .server(config.port)
             .listenException(Throwable::printStackTrace);
 
-        if(nick != null) {
+        if(config.nick != null) {
             builder
-                .nick(nick)
-                .realName(nick)
-                .name(nick);
+                .nick(config.nick)
+                .realName(config.nick)
+                .name(config.nick);
         }
 
-        if(username != null) {
-            builder.user(username);
+        if(config.username != null) {
+            builder.user(config.username);
         }
 
-        if(password != null) {
-            builder.serverPassword(password);
+        if(config.password != null) {
+            builder.serverPassword(config.password);
         }
 
-        if(ircSsl) {
+        if(config.ssl) {
             builder.secure(true);
         }
 
         if(debug) {
-            WebSocketImpl.DEBUG = true;
             builder
-                .listenInput(i -> System.out.println("> " + i))
-                .listenOutput(i -> System.out.println("< " + i));
+                .listenInput(i -> System.out.println("[" + config.name + "] > " + i))
+                .listenOutput(i -> System.out.println("[" + config.name + "] < " + i));
         }
 
-        client = builder.build();
-
-        if(startupChannel != null) {
-            client.addChannel(startupChannel);
-        }
+        Client client = builder.build();
+        config.channels.forEach(client::addChannel);
+        return client;
+    }
 
-        client.getEventManager().registerEventListener(new EventManager(this, userAccounts));
+    public Collection<Network> getNetworks() {
+        return networks.values();
+    }
 
-        messageQueue = new LinkedBlockingQueue<>();
-        server = new Server(this, messageQueue, wsPort, wsSsl);
+    public Network getNetwork(String name) {
+        return networks.get(name);
     }
 
-    public Client getClient() {
-        return client;
+    public ChannelList getChannelList() {
+        return channelList;
     }
 
     public Server getServer() {
         return server;
     }
 
+    public Ingest getIngest() {
+        return ingest;
+    }
+
+    public Coalescer getCoalescer() {
+        return coalescer;
+    }
+
     public void addMessage(Message message) {
-        messageQueue.offer(message);
+        coalescer.dispatch(message);
+    }
+
+    /**
+     * Called once a client listens to a channel, relays ask their ingest node
+     * for its events.
+     */
+    public void channelWanted(String channel) {
+        if(upstream != null) {
+            upstream.want(channel);
+        }
+    }
+
+    /**
+     * Replaces the channel list with the one of the ingest node of this relay.
+     */
+    public void setChannels(Collection<String> channels) {
+        ChannelListMessage updated = channelList.set(channels);
+        if(updated != null) {
+            server.dispatch(updated);
+        }
     }
 
     public void kill() {
+        if(upstream != null) {
+            upstream.kill();
+        }
+        ingest.kill();
+        coalescer.kill();
         server.kill();
-        client.shutdown();
+        shutdownClients();
+    }
+
+    public void shutdownClients() {
+        networks.values().forEach(network -> network.getClient().shutdown());
     }
 
 }
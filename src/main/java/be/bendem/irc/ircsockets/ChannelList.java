@@ -0,0 +1,115 @@
+package be.bendem.irc.ircsockets;
+
+import be.bendem.irc.ircsockets.ws.SharedFrame;
+import be.bendem.irc.ircsockets.ws.protocol.ChannelListMessage;
+import be.bendem.irc.ircsockets.ws.protocol.Message;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * The channels of every network by routing key, kept up to date from the
+ * joins and parts of the clients and serialized once per change instead of
+ * once per connection.
+ *
+ * The version of the list is a hash of its content so a client which got
+ * the same list before, even from a previous run of the server, can tell it
+ * doesn't need it again.
+ */
+public class ChannelList {
+
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private final Set<String> channels;
+    private volatile Snapshot current;
+
+    public ChannelList() {
+        this.channels = new TreeSet<>();
+        update();
+    }
+
+    /**
+     * @return the new list, null if the channel was already listed
+     */
+    public synchronized ChannelListMessage add(String network, String channel) {
+        return channels.add(Message.routingKey(network, channel)) ? update() : null;
+    }
+
+    /**
+     * @return the new list, null if the channel wasn't listed
+     */
+    public synchronized ChannelListMessage remove(String network, String channel) {
+        return channels.remove(Message.routingKey(network, channel)) ? update() : null;
+    }
+
+    /**
+     * Replaces the whole list, relays use it with the list of their ingest node.
+     *
+     * @return the new list, null if it didn't change
+     */
+    public synchronized ChannelListMessage set(Collection<String> routingKeys) {
+        Set<String> updated = new TreeSet<>(routingKeys);
+        if(updated.equals(channels)) {
+            return null;
+        }
+        channels.clear();
+        channels.addAll(updated);
+        return update();
+    }
+
+    private ChannelListMessage update() {
+        long hash = FNV_OFFSET;
+        for(String channel : channels) {
+            for(int i = 0; i < channel.length(); ++i) {
+                hash = (hash ^ channel.charAt(i)) * FNV_PRIME;
+            }
+            // Separator, so ["ab", "c"] and ["a", "bc"] differ
+            hash = (hash ^ '\n') * FNV_PRIME;
+        }
+
+        String version = Long.toHexString(hash);
+        ChannelListMessage updated = new ChannelListMessage(version, new ArrayList<>(channels));
+        current = new Snapshot(version, updated, new SharedFrame(updated.toJson()));
+        return updated;
+    }
+
+    /**
+     * @return the current list, its version, message and frame always match
+     */
+    public Snapshot getSnapshot() {
+        return current;
+    }
+
+    public static final class Snapshot {
+
+        private final String version;
+        private final ChannelListMessage message;
+        private final SharedFrame frame;
+
+        private Snapshot(String version, ChannelListMessage message, SharedFrame frame) {
+            this.version = version;
+            this.message = message;
+            this.frame = frame;
+        }
+
+        public String getVersion() {
+            return version;
+        }
+
+        public ChannelListMessage getMessage() {
+            return message;
+        }
+
+        /**
+         * @return the list, serialized
+         */
+        public SharedFrame getFrame() {
+            return frame;
+        }
+
+    }
+
+}
@@ -0,0 +1,243 @@
+package be.bendem.irc.ircsockets;
+
+import be.bendem.irc.ircsockets.ws.protocol.EventMessage;
+import be.bendem.irc.ircsockets.ws.protocol.Message;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+/**
+ * Summarizes bursts of joins, parts and quits. Once a channel gets more than
+ * threshold of them within a window, the following ones are held back and
+ * sent as one event per window listing the nicks (i.e. "42 users have quit
+ * (netsplit a.net b.net): ..."). Channels stay in burst mode until a window
+ * sees no more than threshold of them again.
+ *
+ * Every message goes through here so a held back burst is always sent before
+ * anything that happened after it in the same channel. Channels are locked on
+ * their own, messages of channels without a burst are sent right away.
+ */
+public class Coalescer {
+
+    // Quit messages of users lost in a netsplit are the names of the two servers
+    private static final Pattern NETSPLIT = Pattern.compile("^([^\\s.]+\\.\\S+) ([^\\s.]+\\.\\S+)$");
+
+    private enum Membership {
+        JOIN(EventMessage.Kind.JOIN, "-->", "%d users have joined: %s"),
+        PART(EventMessage.Kind.PART, "<--", "%d users have left (%s): %s"),
+        QUIT(EventMessage.Kind.QUIT, "<--", "%d users have quit (%s): %s");
+
+        private final EventMessage.Kind kind;
+        private final String prefix;
+        private final String template;
+
+        Membership(EventMessage.Kind kind, String prefix, String template) {
+            this.kind = kind;
+            this.prefix = prefix;
+            this.template = template;
+        }
+    }
+
+    private final Consumer<Message> output;
+    private final int threshold;
+    private final long window;
+    // Channels which got membership events in the last two windows, a burst is
+    // locked while anything of its channel is sent
+    private final Map<String, Burst> bursts;
+    private final ScheduledExecutorService scheduler;
+
+    /**
+     * @param threshold membership events per window and channel sent as is, 0 or less disables coalescing
+     * @param window in milliseconds
+     */
+    public Coalescer(Consumer<Message> output, int threshold, long window) {
+        this.output = output;
+        this.threshold = threshold;
+        this.window = window;
+        this.bursts = new ConcurrentHashMap<>();
+        this.scheduler = Executors.newSingleThreadScheduledExecutor();
+        if(threshold > 0 && window > 0) {
+            scheduler.scheduleAtFixedRate(this::removeCalm, window, window, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    public void join(EventMessage message) {
+        add(new Pending(Membership.JOIN, message, null));
+    }
+
+    public void part(EventMessage message, String reason) {
+        add(new Pending(Membership.PART, message, reason));
+    }
+
+    public void quit(EventMessage message, String reason) {
+        add(new Pending(Membership.QUIT, message, reason));
+    }
+
+    /**
+     * Sends any other message, after the burst held back for its channel.
+     */
+    public void dispatch(Message message) {
+        if(threshold > 0 && message.getTarget().isPresent()) {
+            Burst burst = bursts.get(message.getTarget().get());
+            if(burst != null) {
+                synchronized(burst) {
+                    burst.flush();
+                    output.accept(message);
+                }
+                return;
+            }
+        }
+        output.accept(message);
+    }
+
+    private void add(Pending event) {
+        if(threshold <= 0) {
+            output.accept(event.message);
+            return;
+        }
+
+        String key = event.message.getTarget().get();
+        while(true) {
+            Burst burst = bursts.computeIfAbsent(key, k -> new Burst(System.currentTimeMillis()));
+            synchronized(burst) {
+                // Removed meanwhile, the channel gets a new one
+                if(burst.removed) {
+                    continue;
+                }
+                add(burst, event);
+                return;
+            }
+        }
+    }
+
+    private void add(Burst burst, Pending event) {
+        long now = System.currentTimeMillis();
+        if(now - burst.windowStart >= window) {
+            // A quiet window in between ends the burst
+            burst.bursting = burst.count > threshold && now - burst.windowStart < 2 * window;
+            burst.windowStart = now;
+            burst.count = 0;
+        }
+
+        ++burst.count;
+        if(!burst.bursting && burst.count <= threshold) {
+            output.accept(event.message);
+            return;
+        }
+
+        if(burst.pending.isEmpty()) {
+            scheduler.schedule(() -> {
+                synchronized(burst) {
+                    burst.flush();
+                }
+            }, window, TimeUnit.MILLISECONDS);
+        }
+        burst.pending.add(event);
+    }
+
+    /**
+     * Forgets the channels whose last window is over and didn't burst, a new
+     * window wouldn't start in burst mode either.
+     */
+    private void removeCalm() {
+        long now = System.currentTimeMillis();
+        for(Map.Entry<String, Burst> entry : bursts.entrySet()) {
+            Burst burst = entry.getValue();
+            synchronized(burst) {
+                if(burst.pending.isEmpty() && (now - burst.windowStart >= 2 * window
+                        || now - burst.windowStart >= window && burst.count <= threshold)) {
+                    burst.removed = true;
+                    bursts.remove(entry.getKey(), burst);
+                }
+            }
+        }
+    }
+
+    public void kill() {
+        scheduler.shutdownNow();
+        for(Burst burst : bursts.values()) {
+            synchronized(burst) {
+                burst.flush();
+            }
+        }
+        bursts.clear();
+    }
+
+    private static String describe(String reason) {
+        Matcher matcher = NETSPLIT.matcher(reason == null ? "" : reason);
+        return matcher.matches() ? "netsplit " + matcher.group(1) + ' ' + matcher.group(2) : reason;
+    }
+
+    private class Burst {
+
+        private final List<Pending> pending;
+        private long windowStart;
+        private int count = 0;
+        private boolean bursting = false;
+        private boolean removed = false;
+
+        private Burst(long windowStart) {
+            this.pending = new ArrayList<>();
+            this.windowStart = windowStart;
+        }
+
+        /**
+         * Sends one event per kind and reason held back.
+         */
+        private void flush() {
+            if(pending.isEmpty()) {
+                return;
+            }
+
+            Map<String, List<Pending>> groups = new LinkedHashMap<>();
+            for(Pending event : pending) {
+                String reason = event.membership == Membership.JOIN ? "" : describe(event.reason);
+                groups.computeIfAbsent(event.membership.name() + ' ' + reason, k -> new ArrayList<>()).add(event);
+            }
+            pending.clear();
+
+            for(List<Pending> group : groups.values()) {
+                Pending first = group.get(0);
+                if(group.size() == 1) {
+                    output.accept(first.message);
+                    continue;
+                }
+
+                String nicks = group.stream().map(event -> event.message.getNick()).collect(Collectors.joining(", "));
+                EventMessage message = first.message;
+                Membership membership = first.membership;
+                output.accept(membership == Membership.JOIN
+                    ? new EventMessage(message.getNetwork(), membership.kind, message.getTime(), message.getChannel(), null,
+                        membership.prefix, membership.template, group.size(), nicks)
+                    : new EventMessage(message.getNetwork(), membership.kind, message.getTime(), message.getChannel(), null,
+                        membership.prefix, membership.template, group.size(), describe(first.reason), nicks));
+            }
+        }
+
+    }
+
+    private static class Pending {
+
+        private final Membership membership;
+        private final EventMessage message;
+        private final String reason;
+
+        private Pending(Membership membership, EventMessage message, String reason) {
+            this.membership = membership;
+            this.message = message;
+            this.reason = reason;
+        }
+
+    }
+
+}
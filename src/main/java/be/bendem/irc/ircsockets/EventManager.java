@@ -5,8 +5,11 @@ import be.bendem.irc.ircsockets.ws.protocol.EventMessage;
 import org.java_websocket.WebSocket;
 import org.kitteh.irc.client.library.element.Actor;
 import org.kitteh.irc.client.library.element.Channel;
+import org.kitteh.irc.client.library.element.ChannelModeStatusList;
 import org.kitteh.irc.client.library.element.MessageReceiver;
 import org.kitteh.irc.client.library.element.MessageTag;
+import org.kitteh.irc.client.library.element.ServerMessage;
+import org.kitteh.irc.client.library.element.Topic;
 import org.kitteh.irc.client.library.element.User;
 import org.kitteh.irc.client.library.event.channel.ChannelCTCPEvent;
 import org.kitteh.irc.client.library.event.channel.ChannelJoinEvent;
@@ -16,27 +19,29 @@ import org.kitteh.irc.client.library.event.channel.ChannelPartEvent;
 import org.kitteh.irc.client.library.event.channel.ChannelTopicEvent;
 import org.kitteh.irc.client.library.event.client.RequestedChannelJoinCompleteEvent;
 import org.kitteh.irc.client.library.event.helper.MessageEvent;
-import org.kitteh.irc.client.library.event.helper.ServerMessageEvent;
 import org.kitteh.irc.client.library.event.user.PrivateMessageEvent;
 import org.kitteh.irc.client.library.event.user.UserQuitEvent;
 import org.kitteh.irc.lib.net.engio.mbassy.listener.Handler;
 
-import java.time.Instant;
+import java.util.List;
 import java.util.Optional;
 import java.util.Set;
 import java.util.function.Consumer;
 import java.util.function.Function;
 import java.util.stream.Collectors;
-import java.util.stream.Stream;
 
 public class EventManager {
 
     private final Application app;
+    private final Network network;
     private final Set<String> userAccounts;
+    private final Ingest.Lane lane;
 
-    public EventManager(Application app, Set<String> userAccounts) {
+    public EventManager(Application app, Network network, Set<String> userAccounts, Ingest.Lane lane) {
         this.app = app;
+        this.network = network;
         this.userAccounts = userAccounts;
+        this.lane = lane;
     }
 
     @Handler
@@ -71,12 +76,12 @@ public class EventManager {
                     target.sendMessage("no channel provided, asshole");
                     break;
                 }
-                app.getClient().addChannel(args[1]);
+                network.getClient().addChannel(args[1]);
                 break;
 
             case "!leave":
             case "!part":
-                execForChannel(channel, args, target, app.getClient()::removeChannel);
+                execForChannel(channel, args, target, network.getClient()::removeChannel);
                 break;
 
             case "!close":
@@ -84,7 +89,7 @@ public class EventManager {
                 break;
 
             case "!list":
-                String channels = app.getClient().getChannels().stream()
+                String channels = network.getClient().getChannels().stream()
                     .map(Channel::getName)
                     .sorted()
                     .collect(Collectors.joining(", "));
@@ -94,17 +99,21 @@ public class EventManager {
                 break;
 
             case "!spam":
-                execForChannel(channel, args, target, ch -> {
-                    EventMessage yolo = new EventMessage(
-                        Instant.now(),
-                        ch,
-                        "*spam",
-                        "yolo"
-                    );
+                execForChannel(channel, args, target, ch -> lane.submit(() -> {
+                    // Events are numbered when dispatched, each of them is its own instance
+                    long now = System.currentTimeMillis();
                     for(int i = 0; i < 20; ++i) {
-                        app.addMessage(yolo);
+                        app.addMessage(new EventMessage(
+                            network.getName(),
+                            EventMessage.Kind.OTHER,
+                            now,
+                            ch,
+                            null,
+                            "*spam",
+                            "yolo"
+                        ));
                     }
-                });
+                }));
                 break;
 
             default:
@@ -131,8 +140,14 @@ public class EventManager {
 
     @Handler
     public void onClientJoin(RequestedChannelJoinCompleteEvent e) {
-        System.out.println("Joined " + e.getChannel().getName());
-        app.addMessage(new ChannelListMessage(e.getClient()));
+        String channel = e.getChannel().getName();
+        lane.submit(() -> {
+            System.out.println("Joined " + channel);
+            ChannelListMessage channels = app.getChannelList().add(network.getName(), channel);
+            if(channels != null) {
+                app.addMessage(channels);
+            }
+        });
     }
 
     @Handler
@@ -140,23 +155,33 @@ public class EventManager {
         if(!e.getActor().getNick().equals(e.getClient().getNick())) {
             return;
         }
-        System.out.println("Parted " + e.getChannel().getName());
 
-        Stream<String> channels = e.getClient().getChannels().stream()
-            .filter(c -> c != e.getChannel())
-            .map(Channel::getName);
-
-        app.addMessage(new ChannelListMessage(channels));
+        String channel = e.getChannel().getName();
+        lane.submit(() -> {
+            System.out.println("Parted " + channel);
+            ChannelListMessage channels = app.getChannelList().remove(network.getName(), channel);
+            if(channels != null) {
+                app.addMessage(channels);
+            }
+        });
     }
 
     @Handler(priority = 1) // Receive the message before handling commands
     public void onChannelMessage(ChannelMessageEvent e) {
-        app.addMessage(new EventMessage(
-            getEventTime(e),
-            e.getChannel(),
-            e.getActor(),
-            e.getMessage()
-        ));
+        long received = System.currentTimeMillis();
+        List<ServerMessage> originals = e.getOriginalMessages();
+        String channel = e.getChannel().getName();
+        String nick = e.getActor().getNick();
+        String message = e.getMessage();
+        lane.submit(() -> app.addMessage(new EventMessage(
+            network.getName(),
+            EventMessage.Kind.MESSAGE,
+            getEventTime(originals, received),
+            channel,
+            nick,
+            nick,
+            message
+        )));
     }
 
     @Handler
@@ -165,62 +190,105 @@ public class EventManager {
             return;
         }
 
-        app.addMessage(new EventMessage(
-            getEventTime(e),
-            e.getChannel(),
+        long received = System.currentTimeMillis();
+        List<ServerMessage> originals = e.getOriginalMessages();
+        String channel = e.getChannel().getName();
+        String nick = e.getActor().getNick();
+        String message = e.getMessage();
+        lane.submit(() -> app.addMessage(new EventMessage(
+            network.getName(),
+            EventMessage.Kind.ACTION,
+            getEventTime(originals, received),
+            channel,
+            nick,
             "*",
             "%s %s",
-            e.getActor().getNick(),
-            e.getMessage().substring("ACTION ".length())
-        ));
+            nick,
+            message.substring("ACTION ".length())
+        )));
     }
 
     @Handler
     public void onChannelJoin(ChannelJoinEvent e) {
-        app.addMessage(new EventMessage(
-            getEventTime(e),
-            e.getChannel(),
+        long received = System.currentTimeMillis();
+        List<ServerMessage> originals = e.getOriginalMessages();
+        String channel = e.getChannel().getName();
+        String nick = e.getActor().getNick();
+        lane.submit(() -> app.getCoalescer().join(new EventMessage(
+            network.getName(),
+            EventMessage.Kind.JOIN,
+            getEventTime(originals, received),
+            channel,
+            nick,
             "-->",
             "%s has joined",
-            e.getActor().getNick()
-        ));
+            nick
+        )));
     }
 
     @Handler
     public void onChannelPart(ChannelPartEvent e) {
-        app.addMessage(new EventMessage(
-            getEventTime(e),
-            e.getChannel(),
+        long received = System.currentTimeMillis();
+        List<ServerMessage> originals = e.getOriginalMessages();
+        String channel = e.getChannel().getName();
+        String nick = e.getActor().getNick();
+        String reason = e.getMessage();
+        lane.submit(() -> app.getCoalescer().part(new EventMessage(
+            network.getName(),
+            EventMessage.Kind.PART,
+            getEventTime(originals, received),
+            channel,
+            nick,
             "<--",
             "%s has left (%s)",
-            e.getActor().getNick(),
-            e.getMessage()
-        ));
+            nick,
+            reason
+        ), reason));
     }
 
     @Handler
     public void onChannelUserQuit(UserQuitEvent e) {
-        e.getActor().getChannels().forEach(channel ->
-            app.addMessage(new EventMessage(
-                getEventTime(e),
-                channel,
-                "<--",
-                "%s has quit (%s)",
-                e.getActor().getNick(),
-                e.getMessage()
-            )));
+        long received = System.currentTimeMillis();
+        List<ServerMessage> originals = e.getOriginalMessages();
+        Set<String> channels = e.getActor().getChannels();
+        String nick = e.getActor().getNick();
+        String reason = e.getMessage();
+        lane.submit(() -> {
+            long time = getEventTime(originals, received);
+            for(String channel : channels) {
+                app.getCoalescer().quit(new EventMessage(
+                    network.getName(),
+                    EventMessage.Kind.QUIT,
+                    time,
+                    channel,
+                    nick,
+                    "<--",
+                    "%s has quit (%s)",
+                    nick,
+                    reason
+                ), reason);
+            }
+        });
     }
 
     @Handler
     public void onChannelMode(ChannelModeEvent e) {
-        app.addMessage(new EventMessage(
-            getEventTime(e),
-            e.getChannel(),
+        long received = System.currentTimeMillis();
+        List<ServerMessage> originals = e.getOriginalMessages();
+        String channel = e.getChannel().getName();
+        String actor = e.getActor().getName();
+        ChannelModeStatusList statuses = e.getStatusList();
+        lane.submit(() -> app.addMessage(new EventMessage(
+            network.getName(),
+            EventMessage.Kind.MODE,
+            getEventTime(originals, received),
+            channel,
+            actor,
             "---",
             "%s set mode %s",
-            e.getActor().getName(),
-            e.getStatusList().getStatusString()
-        ));
+            actor,
+            statuses.getStatusString()
+        )));
     }
 
     @Handler
@@ -229,24 +297,40 @@ public class EventManager {
             return;
         }
 
-        app.addMessage(new EventMessage(
-            getEventTime(e),
-            e.getChannel(),
-            "---",
-            "%s set topic to '%s'",
-            e.getTopic().getSetter().map(Actor::getName).orElse("??"),
-            e.getTopic().getValue().orElseGet(() -> "<none>")
-        ));
+        long received = System.currentTimeMillis();
+        List<ServerMessage> originals = e.getOriginalMessages();
+        String channel = e.getChannel().getName();
+        Topic topic = e.getTopic();
+        lane.submit(() -> {
+            String setter = topic.getSetter().map(Actor::getName).orElse("??");
+            app.addMessage(new EventMessage(
+                network.getName(),
+                EventMessage.Kind.TOPIC,
+                getEventTime(originals, received),
+                channel,
+                setter,
+                "---",
+                "%s set topic to '%s'",
+                setter,
+                topic.getValue().orElse("<none>")
+            ));
+        });
     }
 
-    private Instant getEventTime(ServerMessageEvent e) {
-        return e.getOriginalMessages().stream()
-            .flatMap(m -> m.getTags().stream())
-                .filter(tag -> tag instanceof MessageTag.Time)
-                .map(tag -> (MessageTag.Time) tag)
-                .findFirst()
-                    .map(MessageTag.Time::getTime)
-                    .orElseGet(Instant::now);
+    /**
+     * @param received epoch millis the event was received at, used when the server didn't tag it
+     * @return epoch millis
+     */
+    static long getEventTime(List<ServerMessage> messages, long received) {
+        for(int i = 0; i < messages.size(); ++i) {
+            List<MessageTag> tags = messages.get(i).getTags();
+            for(int j = 0; j < tags.size(); ++j) {
+                if(tags.get(j) instanceof MessageTag.Time) {
+                    return ((MessageTag.Time) tags.get(j)).getTime().toEpochMilli();
+                }
+            }
+        }
+        return received;
     }
 
 }
@@ -0,0 +1,142 @@
+package be.bendem.irc.ircsockets;
+
+import be.bendem.irc.ircsockets.ws.Dispatcher;
+import be.bendem.irc.ircsockets.ws.RingBuffer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Turns irc events into messages away from the input threads of the irc
+ * clients. Handlers only capture the fields they need and queue a task doing
+ * the rest (reading the time tag, formatting, routing), a slow moment there
+ * doesn't delay reading from the irc socket anymore.
+ *
+ * Every network is given a lane whose tasks run in order on its own thread,
+ * networks share threads once there are more of them than threads. What
+ * happens to the tasks of a full lane depends on the
+ * {@link Dispatcher.OverflowPolicy}, waiting holds up the input thread.
+ */
+public class Ingest {
+
+    private final Dispatcher.OverflowPolicy overflowPolicy;
+    private final Thread[] threads;
+    private final List<RingBuffer<Runnable>> queues;
+    private final LongAdder dropped;
+    private final LongAdder waits;
+    private volatile boolean running = true;
+
+    /**
+     * @param threads amount of lanes, at least one
+     */
+    public Ingest(int threads, int queueSize, Dispatcher.OverflowPolicy overflowPolicy) {
+        this.overflowPolicy = overflowPolicy;
+        this.threads = new Thread[Math.max(1, threads)];
+        this.queues = new ArrayList<>(this.threads.length);
+        this.dropped = new LongAdder();
+        this.waits = new LongAdder();
+
+        for(int i = 0; i < this.threads.length; ++i) {
+            RingBuffer<Runnable> queue = new RingBuffer<>(queueSize, RingBuffer.WaitStrategy.BLOCKING);
+            queues.add(queue);
+            this.threads[i] = new Thread(() -> run(queue), "ingest-" + i);
+            this.threads[i].start();
+        }
+    }
+
+    /**
+     * @return the lane of the index-th network
+     */
+    public Lane getLane(int index) {
+        return new Lane(queues.get(index % queues.size()));
+    }
+
+    /**
+     * @return the amount of tasks waiting in every lane
+     */
+    public long getQueueDepth() {
+        long depth = 0;
+        for(RingBuffer<Runnable> queue : queues) {
+            depth += queue.size();
+        }
+        return depth;
+    }
+
+    public long getDropped() {
+        return dropped.sum();
+    }
+
+    public long getWaits() {
+        return waits.sum();
+    }
+
+    /**
+     * Stops the lanes, tasks still queued are dropped.
+     */
+    public void kill() {
+        running = false;
+        for(Thread thread : threads) {
+            thread.interrupt();
+        }
+        for(Thread thread : threads) {
+            if(thread == Thread.currentThread()) {
+                continue;
+            }
+            try {
+                thread.join();
+            } catch(InterruptedException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private void run(RingBuffer<Runnable> queue) {
+        while(running) {
+            Runnable task;
+            try {
+                task = queue.take();
+            } catch(InterruptedException e) {
+                break;
+            }
+
+            try {
+                task.run();
+            } catch(RuntimeException e) {
+                System.err.println("[ERROR] Could not handle irc event");
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * The tasks of a network, run in the order they were submitted.
+     */
+    public class Lane {
+
+        private final RingBuffer<Runnable> queue;
+
+        private Lane(RingBuffer<Runnable> queue) {
+            this.queue = queue;
+        }
+
+        public void submit(Runnable task) {
+            if(queue.offer(task)) {
+                return;
+            }
+
+            if(overflowPolicy == Dispatcher.OverflowPolicy.DROP_NEWEST) {
+                dropped.increment();
+                return;
+            }
+            waits.increment();
+            try {
+                queue.put(task);
+            } catch(InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+    }
+
+}
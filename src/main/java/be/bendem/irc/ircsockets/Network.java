@@ -0,0 +1,26 @@
+package be.bendem.irc.ircsockets;
+
+import org.kitteh.irc.client.library.Client;
+
+/**
+ * An irc network the application is connected to.
+ */
+public class Network {
+
+    private final String name;
+    private final Client client;
+
+    public Network(String name, Client client) {
+        this.name = name;
+        this.client = client;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public Client getClient() {
+        return client;
+    }
+
+}
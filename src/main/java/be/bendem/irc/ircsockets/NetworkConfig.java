@@ -0,0 +1,30 @@
+package be.bendem.irc.ircsockets;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Connection settings of one irc network, read from the networks array of
+ * the file passed with --config or built from the command line flags.
+ */
+public class NetworkConfig {
+
+    // Used in routing keys, can't contain ':'
+    public String name;
+    public String host;
+    public int port = 6667;
+    public boolean ssl = true;
+    public String nick;
+    public String username;
+    public String password;
+    public List<String> channels = new ArrayList<>();
+    // Accounts allowed to use the bot commands
+    public List<String> userAccounts = new ArrayList<>();
+
+    public static class File {
+
+        public List<NetworkConfig> networks = new ArrayList<>();
+
+    }
+
+}
@@ -0,0 +1,60 @@
+package be.bendem.irc.ircsockets.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Messages dispatched to a channel, the rates are computed over the last
+ * sampling interval.
+ */
+public class ChannelRate {
+
+    private final LongAdder messages;
+    private final LongAdder bytes;
+    // Only written by the sampling thread
+    private long lastMessages = 0;
+    private long lastBytes = 0;
+    private volatile double messageRate = 0;
+    private volatile double byteRate = 0;
+
+    ChannelRate() {
+        this.messages = new LongAdder();
+        this.bytes = new LongAdder();
+    }
+
+    void record(int size) {
+        messages.increment();
+        bytes.add(size);
+    }
+
+    void sample(double seconds) {
+        long currentMessages = messages.sum();
+        long currentBytes = bytes.sum();
+        messageRate = (currentMessages - lastMessages) / seconds;
+        byteRate = (currentBytes - lastBytes) / seconds;
+        lastMessages = currentMessages;
+        lastBytes = currentBytes;
+    }
+
+    public long getMessages() {
+        return messages.sum();
+    }
+
+    public long getBytes() {
+        return bytes.sum();
+    }
+
+    /**
+     * @return messages per second
+     */
+    public double getMessageRate() {
+        return messageRate;
+    }
+
+    /**
+     * @return approximate json bytes per second
+     */
+    public double getByteRate() {
+        return byteRate;
+    }
+
+}
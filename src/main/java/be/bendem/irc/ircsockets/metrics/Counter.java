@@ -0,0 +1,40 @@
+package be.bendem.irc.ircsockets.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A monotonically increasing value, cheap to increment from many threads.
+ */
+public class Counter {
+
+    private final String name;
+    private final String help;
+    private final LongAdder value;
+
+    Counter(String name, String help) {
+        this.name = name;
+        this.help = help;
+        this.value = new LongAdder();
+    }
+
+    public void increment() {
+        value.increment();
+    }
+
+    public void add(long amount) {
+        value.add(amount);
+    }
+
+    public long get() {
+        return value.sum();
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getHelp() {
+        return help;
+    }
+
+}
@@ -0,0 +1,32 @@
+package be.bendem.irc.ircsockets.metrics;
+
+import java.util.function.LongSupplier;
+
+/**
+ * A value read from its source each time metrics are collected.
+ */
+public class Gauge {
+
+    private final String name;
+    private final String help;
+    private final LongSupplier value;
+
+    Gauge(String name, String help, LongSupplier value) {
+        this.name = name;
+        this.help = help;
+        this.value = value;
+    }
+
+    public long get() {
+        return value.getAsLong();
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getHelp() {
+        return help;
+    }
+
+}
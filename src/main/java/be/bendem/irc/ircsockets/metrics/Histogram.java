@@ -0,0 +1,119 @@
+package be.bendem.irc.ircsockets.metrics;
+
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Distribution of durations in nanoseconds using power of two buckets, good
+ * enough to tell apart microseconds from milliseconds without locking or
+ * allocating when recording.
+ */
+public class Histogram {
+
+    // Bucket i counts the values below 2^i nanoseconds, the last one goes up to ~18 minutes
+    static final int BUCKETS = 41;
+
+    private final String name;
+    private final String help;
+    private final LongAdder[] buckets;
+    private final LongAdder sum;
+    private final LongAccumulator max;
+
+    public Histogram(String name, String help) {
+        this.name = name;
+        this.help = help;
+        this.buckets = new LongAdder[BUCKETS + 1];
+        for(int i = 0; i < buckets.length; ++i) {
+            buckets[i] = new LongAdder();
+        }
+        this.sum = new LongAdder();
+        this.max = new LongAccumulator(Math::max, 0);
+    }
+
+    public void record(long nanos) {
+        long value = Math.max(nanos, 0);
+        buckets[Math.min(64 - Long.numberOfLeadingZeros(value), BUCKETS)].increment();
+        sum.add(value);
+        max.accumulate(value);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getHelp() {
+        return help;
+    }
+
+    /**
+     * Reads the buckets one by one, values recorded meanwhile may or may not
+     * be part of the snapshot.
+     */
+    public Snapshot snapshot() {
+        long[] counts = new long[buckets.length];
+        long count = 0;
+        for(int i = 0; i < buckets.length; ++i) {
+            counts[i] = buckets[i].sum();
+            count += counts[i];
+        }
+        return new Snapshot(counts, count, sum.sum(), max.get());
+    }
+
+    /**
+     * @return the exclusive upper bound of a bucket in nanoseconds
+     */
+    static long upperBound(int bucket) {
+        return bucket >= BUCKETS ? Long.MAX_VALUE : 1L << bucket;
+    }
+
+    public static class Snapshot {
+
+        private final long[] counts;
+        private final long count;
+        private final long sum;
+        private final long max;
+
+        private Snapshot(long[] counts, long count, long sum, long max) {
+            this.counts = counts;
+            this.count = count;
+            this.sum = sum;
+            this.max = max;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public long getSum() {
+            return sum;
+        }
+
+        public long getMax() {
+            return max;
+        }
+
+        /**
+         * Amount of values recorded in a bucket.
+         */
+        long getCount(int bucket) {
+            return counts[bucket];
+        }
+
+        /**
+         * @return the upper bound of the bucket containing the quantile, never more than the max
+         */
+        public long getQuantile(double quantile) {
+            long rank = (long) Math.ceil(quantile * count);
+            long seen = 0;
+            for(int i = 0; i < counts.length; ++i) {
+                seen += counts[i];
+                if(seen >= rank && seen > 0) {
+                    return Math.min(upperBound(i), max);
+                }
+            }
+            return max;
+        }
+
+    }
+
+}
@@ -0,0 +1,169 @@
+package be.bendem.irc.ircsockets.metrics;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * Recorders updated on the hot paths of the server. Counters and histograms
+ * are striped adders, recording never blocks, reading them sums the stripes.
+ */
+public class Metrics {
+
+    private static final String PREFIX = "ircsockets_";
+
+    private final List<Counter> counters = new ArrayList<>();
+    private final List<Histogram> histograms = new ArrayList<>();
+    private final List<Gauge> gauges = new CopyOnWriteArrayList<>();
+    private final Map<String, ChannelRate> channels = new ConcurrentHashMap<>();
+    private final long started = System.nanoTime();
+    private long lastSample = started;
+
+    public final Counter dispatchDropped = counter("dispatch_dropped_total", "Messages dropped because the queue of their dispatch thread was full");
+    public final Counter dispatchWaits = counter("dispatch_waits_total", "Messages which had to wait for room in the queue of their dispatch thread");
+    public final Counter connectionsOpened = counter("connections_opened_total", "Websocket connections opened");
+    public final Counter connectionsClosed = counter("connections_closed_total", "Websocket connections closed");
+    public final Counter slowDisconnects = counter("slow_consumer_disconnects_total", "Connections closed because their queue was full");
+    public final Counter framesSent = counter("frames_sent_total", "Frames handed to the websocket library");
+    public final Counter frameBytesSent = counter("frame_bytes_sent_total", "Uncompressed bytes of the frames handed to the websocket library");
+    public final Counter framesDropped = counter("frames_dropped_total", "Queued frames dropped to make room for newer ones");
+    public final Counter framesSkipped = counter("frames_skipped_total", "Frames not queued because the queue was full");
+    public final Counter resumes = counter("resumed_channels_total", "Channels resumed by reconnecting connections");
+    public final Counter resumeGaps = counter("resume_gaps_total", "Channels resumed with events which were not kept anymore");
+    public final Histogram eventLatency = histogram("event_latency_seconds", "Time between an event and the frame holding it being handed to the websocket of a connection");
+    public final Histogram serialization = histogram("serialization_seconds", "Time spent serializing the payload of a frame");
+
+    private Counter counter(String name, String help) {
+        Counter counter = new Counter(name, help);
+        counters.add(counter);
+        return counter;
+    }
+
+    private Histogram histogram(String name, String help) {
+        Histogram histogram = new Histogram(name, help);
+        histograms.add(histogram);
+        return histogram;
+    }
+
+    /**
+     * Registers a value owned by another component.
+     */
+    public void gauge(String name, String help, LongSupplier value) {
+        gauges.add(new Gauge(name, help, value));
+    }
+
+    /**
+     * Records a message dispatched to a channel.
+     *
+     * @param size approximate size of the message
+     */
+    public void channelMessage(String channel, int size) {
+        ChannelRate rate = channels.get(channel);
+        if(rate == null) {
+            rate = channels.computeIfAbsent(channel, k -> new ChannelRate());
+        }
+        rate.record(size);
+    }
+
+    /**
+     * Updates the channel rates, needs to be called periodically from a
+     * single thread.
+     */
+    public void sample() {
+        long now = System.nanoTime();
+        double seconds = (now - lastSample) / (double) TimeUnit.SECONDS.toNanos(1);
+        lastSample = now;
+        if(seconds <= 0) {
+            return;
+        }
+        channels.values().forEach(rate -> rate.sample(seconds));
+    }
+
+    public long getUptime() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started);
+    }
+
+    public List<Counter> getCounters() {
+        return Collections.unmodifiableList(counters);
+    }
+
+    public List<Gauge> getGauges() {
+        return Collections.unmodifiableList(gauges);
+    }
+
+    public List<Histogram> getHistograms() {
+        return Collections.unmodifiableList(histograms);
+    }
+
+    public Map<String, ChannelRate> getChannels() {
+        return Collections.unmodifiableMap(channels);
+    }
+
+    /**
+     * Writes every metric in the prometheus text format.
+     */
+    public String scrape() {
+        StringBuilder builder = new StringBuilder(4096);
+
+        header(builder, "uptime_seconds", "Time since the server started", "gauge");
+        sample(builder, "uptime_seconds", null, getUptime() / 1000.0);
+
+        for(Counter counter : counters) {
+            header(builder, counter.getName(), counter.getHelp(), "counter");
+            sample(builder, counter.getName(), null, counter.get());
+        }
+
+        for(Gauge gauge : gauges) {
+            header(builder, gauge.getName(), gauge.getHelp(), "gauge");
+            sample(builder, gauge.getName(), null, gauge.get());
+        }
+
+        for(Histogram histogram : histograms) {
+            Histogram.Snapshot snapshot = histogram.snapshot();
+            String name = histogram.getName();
+            header(builder, name, histogram.getHelp(), "histogram");
+            long cumulative = 0;
+            for(int i = 0; i < Histogram.BUCKETS; ++i) {
+                cumulative += snapshot.getCount(i);
+                sample(builder, name + "_bucket", "le=\"" + seconds(Histogram.upperBound(i)) + '"', cumulative);
+            }
+            sample(builder, name + "_bucket", "le=\"+Inf\"", snapshot.getCount());
+            sample(builder, name + "_sum", null, seconds(snapshot.getSum()));
+            sample(builder, name + "_count", null, snapshot.getCount());
+        }
+
+        header(builder, "channel_messages_total", "Messages dispatched to a channel", "counter");
+        channels.forEach((channel, rate) -> sample(builder, "channel_messages_total", channelLabel(channel), rate.getMessages()));
+        header(builder, "channel_bytes_total", "Approximate json bytes dispatched to a channel", "counter");
+        channels.forEach((channel, rate) -> sample(builder, "channel_bytes_total", channelLabel(channel), rate.getBytes()));
+
+        return builder.toString();
+    }
+
+    private static void header(StringBuilder builder, String name, String help, String type) {
+        builder.append("# HELP ").append(PREFIX).append(name).append(' ').append(help).append('\n');
+        builder.append("# TYPE ").append(PREFIX).append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void sample(StringBuilder builder, String name, String labels, Object value) {
+        builder.append(PREFIX).append(name);
+        if(labels != null) {
+            builder.append('{').append(labels).append('}');
+        }
+        builder.append(' ').append(value).append('\n');
+    }
+
+    private static String channelLabel(String channel) {
+        return "channel=\"" + channel.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n") + '"';
+    }
+
+    public static double seconds(long nanos) {
+        return nanos / (double) TimeUnit.SECONDS.toNanos(1);
+    }
+
+}
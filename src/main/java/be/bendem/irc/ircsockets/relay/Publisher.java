@@ -0,0 +1,292 @@
+package be.bendem.irc.ircsockets.relay;
+
+import be.bendem.irc.ircsockets.ws.Scrollback;
+import be.bendem.irc.ircsockets.ws.protocol.ChannelListMessage;
+import be.bendem.irc.ircsockets.ws.protocol.EventMessage;
+import be.bendem.irc.ircsockets.ws.protocol.Message;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.function.Supplier;
+
+/**
+ * Ingest side of the relay protocol, publishes the events of the channels
+ * each relay asks for along with the channel list.
+ *
+ * Each relay has a thread reading its requests and a thread writing its
+ * frames from a bounded queue. A relay which can't keep up is disconnected,
+ * it resumes after the last event it received once it reconnects.
+ */
+public class Publisher {
+
+    private static final int QUEUE_SIZE = 64 * 1024;
+
+    private final ServerSocket serverSocket;
+    private final Scrollback scrollback;
+    private final Supplier<ChannelListMessage> channelList;
+    private final Set<Relay> relays;
+    private final Thread acceptor;
+    private volatile boolean running = true;
+
+    public Publisher(String host, int port, Scrollback scrollback, Supplier<ChannelListMessage> channelList) throws IOException {
+        this.scrollback = scrollback;
+        this.channelList = channelList;
+        this.relays = ConcurrentHashMap.newKeySet();
+        this.serverSocket = new ServerSocket();
+        serverSocket.bind(new InetSocketAddress(host, port));
+
+        acceptor = new Thread(this::accept, "relay-acceptor");
+        acceptor.start();
+        System.out.println("[DEBUG] Publishing events to relays on " + host + ':' + port);
+    }
+
+    /**
+     * Called by the dispatcher, events while it holds the scrollback lock of
+     * their channel so relays get them in sequence order.
+     */
+    public void publish(Message message) {
+        for(Relay relay : relays) {
+            relay.publish(message);
+        }
+    }
+
+    public int getRelays() {
+        return relays.size();
+    }
+
+    public void kill() {
+        running = false;
+        try {
+            serverSocket.close();
+        } catch(IOException e) {
+            e.printStackTrace();
+        }
+        relays.forEach(Relay::close);
+        try {
+            acceptor.join();
+        } catch(InterruptedException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void accept() {
+        while(running) {
+            try {
+                Socket socket = serverSocket.accept();
+                socket.setTcpNoDelay(true);
+                System.out.println("[DEBUG] Relay connected from " + socket.getRemoteSocketAddress());
+
+                Relay relay = new Relay(socket);
+                String epoch = scrollback.getEpoch();
+                relay.send(out -> {
+                    out.writeByte(RelayProtocol.HELLO);
+                    RelayProtocol.writeString(out, epoch);
+                });
+                // Registered before getting the list, a change in between is sent after it
+                relays.add(relay);
+                ChannelListMessage channels = channelList.get();
+                relay.send(out -> RelayProtocol.writeChannels(out, channels.getChannels()));
+                relay.start();
+            } catch(IOException e) {
+                if(running) {
+                    System.err.println("[ERROR] Could not accept relay");
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    private interface Frame {
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    private class Relay {
+
+        private final Socket socket;
+        private final DataInputStream in;
+        private final DataOutputStream out;
+        private final BlockingQueue<Frame> queue;
+        // Guarded by this, channels being subscribed hold their live events
+        // until what the relay missed is queued
+        private final Set<String> channels;
+        private final Map<String, List<EventMessage>> held;
+        private final Thread reader;
+        private final Thread writer;
+        private volatile boolean closed = false;
+
+        private Relay(Socket socket) throws IOException {
+            this.socket = socket;
+            this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            this.queue = new LinkedBlockingQueue<>(QUEUE_SIZE);
+            this.channels = new HashSet<>();
+            this.held = new HashMap<>();
+            this.reader = new Thread(this::read, "relay-reader-" + socket.getRemoteSocketAddress());
+            this.writer = new Thread(this::write, "relay-writer-" + socket.getRemoteSocketAddress());
+        }
+
+        private void start() {
+            reader.start();
+            writer.start();
+        }
+
+        private void publish(Message message) {
+            if(message instanceof ChannelListMessage) {
+                List<String> list = ((ChannelListMessage) message).getChannels();
+                send(out -> RelayProtocol.writeChannels(out, list));
+                return;
+            }
+            if(!(message instanceof EventMessage)) {
+                return;
+            }
+
+            EventMessage event = (EventMessage) message;
+            String target = event.getTarget().get();
+            synchronized(this) {
+                List<EventMessage> pending = held.get(target);
+                if(pending != null) {
+                    pending.add(event);
+                } else if(channels.contains(target)) {
+                    send(out -> RelayProtocol.writeEvent(out, event));
+                }
+            }
+        }
+
+        private void send(Frame frame) {
+            if(!closed && !queue.offer(frame)) {
+                System.err.println("[WARN] Relay " + socket.getRemoteSocketAddress() + " can't keep up, disconnecting it");
+                close();
+            }
+        }
+
+        private void read() {
+            try {
+                while(!closed) {
+                    byte type = in.readByte();
+                    switch(type) {
+                        case RelayProtocol.SUBSCRIBE:
+                            subscribe(RelayProtocol.readString(in), RelayProtocol.readString(in), in.readLong());
+                            break;
+                        case RelayProtocol.UNSUBSCRIBE:
+                            String channel = RelayProtocol.readString(in);
+                            synchronized(this) {
+                                channels.remove(channel);
+                            }
+                            break;
+                        default:
+                            throw new IOException("Unknown frame " + type);
+                    }
+                }
+            } catch(IOException e) {
+                if(!closed) {
+                    System.out.println("[DEBUG] Relay " + socket.getRemoteSocketAddress() + " disconnected: " + e);
+                }
+            } finally {
+                close();
+            }
+        }
+
+        /**
+         * Sends what the relay missed since sequence (everything kept if it
+         * is negative) then the live events of the channel.
+         */
+        private void subscribe(String channel, String epoch, long sequence) {
+            synchronized(this) {
+                if(channels.contains(channel)) {
+                    return;
+                }
+            }
+
+            Runnable subscription = () -> {
+                synchronized(this) {
+                    held.put(channel, new ArrayList<>());
+                }
+            };
+            List<Message> missed;
+            long gap = -1;
+            if(sequence < 0) {
+                missed = scrollback.subscribe(channel, Integer.MAX_VALUE, events -> subscription.run());
+            } else {
+                Scrollback.Catchup catchup = scrollback.resume(channel, epoch, sequence, c -> subscription.run());
+                missed = catchup.getEvents();
+                if(missed == null) {
+                    gap = catchup.getSequence();
+                    missed = Collections.emptyList();
+                }
+            }
+
+            synchronized(this) {
+                if(gap >= 0) {
+                    long continuesAfter = gap;
+                    send(out -> {
+                        out.writeByte(RelayProtocol.GAP);
+                        RelayProtocol.writeString(out, channel);
+                        out.writeLong(continuesAfter);
+                    });
+                }
+                for(Message message : missed) {
+                    if(message instanceof EventMessage) {
+                        send(out -> RelayProtocol.writeEvent(out, (EventMessage) message));
+                    }
+                }
+                for(EventMessage event : held.remove(channel)) {
+                    send(out -> RelayProtocol.writeEvent(out, event));
+                }
+                channels.add(channel);
+            }
+        }
+
+        private void write() {
+            try {
+                while(!closed) {
+                    Frame frame = queue.take();
+                    do {
+                        frame.write(out);
+                    } while((frame = queue.poll()) != null);
+                    out.flush();
+                }
+            } catch(IOException e) {
+                if(!closed) {
+                    System.err.println("[ERROR] Could not write to relay " + socket.getRemoteSocketAddress());
+                    e.printStackTrace();
+                }
+            } catch(InterruptedException ignored) {
+                // Closed
+            } finally {
+                close();
+            }
+        }
+
+        private void close() {
+            if(closed) {
+                return;
+            }
+            closed = true;
+            relays.remove(this);
+            writer.interrupt();
+            try {
+                socket.close();
+            } catch(IOException e) {
+                e.printStackTrace();
+            }
+        }
+
+    }
+
+}
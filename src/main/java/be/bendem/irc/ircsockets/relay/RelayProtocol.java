@@ -0,0 +1,117 @@
+package be.bendem.irc.ircsockets.relay;
+
+import be.bendem.irc.ircsockets.ws.protocol.EventMessage;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Stream spoken between an ingest node and its relays over tcp. Every frame
+ * starts with its type:
+ * <ul>
+ *     <li>{@link #HELLO} (ingest): epoch of its sequences</li>
+ *     <li>{@link #CHANNELS} (ingest): count, routing keys</li>
+ *     <li>{@link #EVENT} (ingest): network, channel, kind, epoch milliseconds, nick, prefix, message, sequence</li>
+ *     <li>{@link #GAP} (ingest): routing key, sequence the channel continues after</li>
+ *     <li>{@link #SUBSCRIBE} (relay): routing key, epoch, last sequence received or -1</li>
+ *     <li>{@link #UNSUBSCRIBE} (relay): routing key</li>
+ * </ul>
+ * Numbers are big endian, strings are an int byte length (-1 for null)
+ * followed by utf-8 bytes.
+ */
+final class RelayProtocol {
+
+    static final byte HELLO = 1;
+    static final byte CHANNELS = 2;
+    static final byte EVENT = 3;
+    static final byte GAP = 4;
+    static final byte SUBSCRIBE = 10;
+    static final byte UNSUBSCRIBE = 11;
+
+    // Bigger strings are a corrupted stream rather than an irc line
+    private static final int MAX_STRING_LENGTH = 16 * 1024 * 1024;
+    private static final EventMessage.Kind[] KINDS = EventMessage.Kind.values();
+
+    private RelayProtocol() {
+    }
+
+    static void writeString(DataOutputStream out, String value) throws IOException {
+        if(value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if(length == -1) {
+            return null;
+        }
+        if(length < 0 || length > MAX_STRING_LENGTH) {
+            throw new IOException("Invalid string length " + length);
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    static void writeChannels(DataOutputStream out, List<String> channels) throws IOException {
+        out.writeByte(CHANNELS);
+        out.writeInt(channels.size());
+        for(String channel : channels) {
+            writeString(out, channel);
+        }
+    }
+
+    static List<String> readChannels(DataInputStream in) throws IOException {
+        int count = in.readInt();
+        if(count < 0) {
+            throw new IOException("Invalid channel count " + count);
+        }
+        List<String> channels = new ArrayList<>(Math.min(count, 1024));
+        for(int i = 0; i < count; ++i) {
+            channels.add(readString(in));
+        }
+        return channels;
+    }
+
+    /**
+     * Writes the formatted message, the relay doesn't need the template.
+     */
+    static void writeEvent(DataOutputStream out, EventMessage event) throws IOException {
+        out.writeByte(EVENT);
+        writeString(out, event.getNetwork());
+        writeString(out, event.getChannel());
+        out.writeByte(event.getKind().ordinal());
+        out.writeLong(event.getTime());
+        writeString(out, event.getNick());
+        writeString(out, event.getPrefix());
+        writeString(out, event.getMessage());
+        out.writeLong(event.getSequence());
+    }
+
+    static EventMessage readEvent(DataInputStream in) throws IOException {
+        String network = readString(in);
+        String channel = readString(in);
+        int kind = in.readUnsignedByte();
+        if(kind >= KINDS.length) {
+            throw new IOException("Invalid event kind " + kind);
+        }
+        long time = in.readLong();
+        String nick = readString(in);
+        String prefix = readString(in);
+        String message = readString(in);
+
+        EventMessage event = new EventMessage(network, KINDS[kind], time, channel, nick, prefix, message);
+        event.setSequence(in.readLong());
+        return event;
+    }
+
+}
@@ -0,0 +1,240 @@
+package be.bendem.irc.ircsockets.relay;
+
+import be.bendem.irc.ircsockets.Application;
+import be.bendem.irc.ircsockets.ws.protocol.EventMessage;
+import be.bendem.irc.ircsockets.ws.protocol.GapMessage;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Relay side of the relay protocol. Only the channels the clients of this
+ * relay listen to are asked for, their events are dispatched as if they came
+ * from irc and keep the sequences of the ingest node, so clients can resume
+ * on any relay of the same ingest node.
+ *
+ * The connection is retried until the relay is killed, every channel then
+ * resumes after the last event received. Channels nobody listens to anymore
+ * are released periodically. Subscriptions and releases are written by a
+ * single sender thread, in the order they happen, so the websocket threads
+ * never wait on the ingest node.
+ */
+public class Upstream {
+
+    private static final long MIN_RETRY = TimeUnit.SECONDS.toMillis(1);
+    private static final long MAX_RETRY = TimeUnit.SECONDS.toMillis(30);
+    private static final long RELEASE_INTERVAL = 10;
+
+    private final Application app;
+    private final String host;
+    private final int port;
+    // Only modified by the sender
+    private final Set<String> wanted;
+    // Guarded by this, the channels subscribed to on the current connection
+    private final Set<String> subscribed;
+    private final Map<String, Long> sequences;
+    private final Thread reader;
+    private final ScheduledExecutorService sender;
+    private volatile boolean running = true;
+    private volatile Socket socket;
+    // Guarded by this, null while disconnected
+    private DataOutputStream out;
+    private String epoch;
+
+    public Upstream(Application app, String host, int port) {
+        this.app = app;
+        this.host = host;
+        this.port = port;
+        this.wanted = ConcurrentHashMap.newKeySet();
+        this.subscribed = new HashSet<>();
+        this.sequences = new ConcurrentHashMap<>();
+
+        reader = new Thread(this::run, "relay-upstream");
+        reader.start();
+        sender = Executors.newSingleThreadScheduledExecutor();
+        sender.scheduleWithFixedDelay(this::release, RELEASE_INTERVAL, RELEASE_INTERVAL, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Asks for the events of a channel, called once a client listens to it.
+     */
+    public void want(String channel) {
+        send(() -> {
+            if(wanted.add(channel)) {
+                subscribe(Collections.singleton(channel));
+            }
+        });
+    }
+
+    private void send(Runnable task) {
+        try {
+            sender.execute(task);
+        } catch(RejectedExecutionException e) {
+            // Killed, nothing is sent anymore
+        }
+    }
+
+    /**
+     * Subscribes to the channels not subscribed to yet on the current connection.
+     */
+    private synchronized void subscribe(Collection<String> channels) {
+        if(out == null) {
+            return;
+        }
+        try {
+            for(String channel : channels) {
+                if(!subscribed.add(channel)) {
+                    continue;
+                }
+                out.writeByte(RelayProtocol.SUBSCRIBE);
+                RelayProtocol.writeString(out, channel);
+                RelayProtocol.writeString(out, epoch);
+                out.writeLong(sequences.getOrDefault(channel, -1L));
+            }
+            out.flush();
+        } catch(IOException e) {
+            // The reader notices and resubscribes everything
+            System.err.println("[WARN] Could not subscribe to " + channels + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Releases the channels without listeners. A client listening in between
+     * calls {@link #want(String)} after subscribing, which runs after this
+     * and asks for the channel again.
+     */
+    private synchronized void release() {
+        for(String channel : new ArrayList<>(wanted)) {
+            if(app.getServer().hasSubscribers(channel)) {
+                continue;
+            }
+
+            wanted.remove(channel);
+            if(!subscribed.remove(channel) || out == null) {
+                continue;
+            }
+            try {
+                out.writeByte(RelayProtocol.UNSUBSCRIBE);
+                RelayProtocol.writeString(out, channel);
+                out.flush();
+            } catch(IOException e) {
+                System.err.println("[WARN] Could not unsubscribe from " + channel + ": " + e.getMessage());
+            }
+        }
+    }
+
+    public void kill() {
+        running = false;
+        sender.shutdownNow();
+        reader.interrupt();
+        Socket current = socket;
+        if(current != null) {
+            try {
+                current.close();
+            } catch(IOException e) {
+                e.printStackTrace();
+            }
+        }
+        try {
+            reader.join();
+        } catch(InterruptedException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void run() {
+        long retry = MIN_RETRY;
+        while(running) {
+            try(Socket connection = new Socket(host, port)) {
+                socket = connection;
+                connection.setTcpNoDelay(true);
+                read(connection);
+            } catch(IOException e) {
+                if(running) {
+                    System.err.println("[WARN] Lost ingest node " + host + ':' + port + ": " + e);
+                }
+            } finally {
+                synchronized(this) {
+                    if(out != null) {
+                        // Something was received, the next disconnection waits from the start
+                        retry = MIN_RETRY;
+                    }
+                    out = null;
+                    subscribed.clear();
+                }
+            }
+
+            if(!running) {
+                break;
+            }
+            try {
+                Thread.sleep(retry);
+            } catch(InterruptedException e) {
+                break;
+            }
+            retry = Math.min(retry * 2, MAX_RETRY);
+        }
+    }
+
+    private void read(Socket connection) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(connection.getInputStream()));
+        if(in.readByte() != RelayProtocol.HELLO) {
+            throw new IOException("Not an ingest node");
+        }
+        String hello = RelayProtocol.readString(in);
+        if(!hello.equals(epoch)) {
+            // The ingest node restarted, its sequences start over
+            System.out.println("[DEBUG] Ingest node epoch is " + hello);
+            sequences.clear();
+            epoch = hello;
+            app.getServer().setEpoch(hello);
+        }
+
+        synchronized(this) {
+            out = new DataOutputStream(new BufferedOutputStream(connection.getOutputStream()));
+        }
+        send(() -> subscribe(wanted));
+        System.out.println("[DEBUG] Connected to ingest node " + host + ':' + port);
+
+        while(running) {
+            byte type = in.readByte();
+            switch(type) {
+                case RelayProtocol.CHANNELS:
+                    app.setChannels(RelayProtocol.readChannels(in));
+                    break;
+                case RelayProtocol.EVENT:
+                    EventMessage event = RelayProtocol.readEvent(in);
+                    sequences.put(event.getTarget().get(), event.getSequence());
+                    // Already coalesced by the ingest node
+                    app.getServer().dispatch(event);
+                    break;
+                case RelayProtocol.GAP:
+                    String channel = RelayProtocol.readString(in);
+                    long sequence = in.readLong();
+                    System.err.println("[WARN] Events of " + channel + " up to " + sequence + " were missed");
+                    sequences.put(channel, sequence);
+                    // In order with the events, resuming from before it gets a gap as well
+                    app.getServer().dispatch(new GapMessage(channel, sequence));
+                    break;
+                default:
+                    throw new IOException("Unknown frame " + type);
+            }
+        }
+    }
+
+}
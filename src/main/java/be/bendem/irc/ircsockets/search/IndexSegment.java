@@ -0,0 +1,197 @@
+package be.bendem.irc.ircsockets.search;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Immutable part of the index covering consecutive documents. Documents are
+ * identified by their position in the segment, the global id of a document
+ * is the base of its segment plus its position.
+ */
+final class IndexSegment {
+
+    // Rough cost of a map entry, the term string and the postings array
+    private static final int TERM_OVERHEAD = 96;
+    // Time, reference and header of the event bytes of a document
+    private static final int DOCUMENT_OVERHEAD = 32;
+
+    private final long base;
+    private final long[] times;
+    private final byte[][] events;
+    private final Map<String, byte[]> postings;
+    private final long minTime;
+    private final long maxTime;
+    private final long bytes;
+
+    private IndexSegment(long base, long[] times, byte[][] events, Map<String, byte[]> postings) {
+        this.base = base;
+        this.times = times;
+        this.events = events;
+        this.postings = postings;
+
+        long min = Long.MAX_VALUE;
+        long max = Long.MIN_VALUE;
+        long size = 0;
+        for(int i = 0; i < times.length; ++i) {
+            min = Math.min(min, times[i]);
+            max = Math.max(max, times[i]);
+            size += events[i].length + DOCUMENT_OVERHEAD;
+        }
+        for(Map.Entry<String, byte[]> entry : postings.entrySet()) {
+            size += TERM_OVERHEAD + 2 * entry.getKey().length() + entry.getValue().length;
+        }
+        this.minTime = min;
+        this.maxTime = max;
+        this.bytes = size;
+    }
+
+    long getBase() {
+        return base;
+    }
+
+    int size() {
+        return times.length;
+    }
+
+    long getBytes() {
+        return bytes;
+    }
+
+    boolean overlaps(long from, long to) {
+        return minTime <= to && maxTime >= from;
+    }
+
+    /**
+     * Adds the documents of this segment matching every term and the time
+     * range to results, newest first, until it holds limit documents.
+     */
+    void search(List<String> terms, long from, long to, long before, int limit, List<Hit> results) {
+        int end = (int) Math.min(size(), before - base);
+        if(end <= 0 || !overlaps(from, to)) {
+            return;
+        }
+
+        Postings.Reader[] readers = new Postings.Reader[terms.size()];
+        for(int i = 0; i < readers.length; ++i) {
+            byte[] encoded = postings.get(terms.get(i));
+            if(encoded == null) {
+                return;
+            }
+            readers[i] = new Postings.Reader(encoded);
+        }
+        // Leading with the rarest term skips the most
+        Arrays.sort(readers, (a, b) -> Integer.compare(a.count(), b.count()));
+
+        int[] matches = new int[Math.min(readers[0].count(), end)];
+        int count = 0;
+        int doc = readers[0].next();
+        while(doc < end) {
+            int i = 1;
+            for(; i < readers.length; ++i) {
+                int other = readers[i].advance(doc);
+                if(other != doc) {
+                    doc = readers[0].advance(other);
+                    break;
+                }
+            }
+            if(i == readers.length) {
+                matches[count++] = doc;
+                doc = readers[0].next();
+            }
+        }
+
+        for(int i = count - 1; i >= 0 && results.size() < limit; --i) {
+            int match = matches[i];
+            if(times[match] >= from && times[match] <= to) {
+                results.add(new Hit(base + match, new String(events[match], StandardCharsets.UTF_8)));
+            }
+        }
+    }
+
+    /**
+     * A matching document, its global id and its json.
+     */
+    static final class Hit {
+
+        final long id;
+        final String event;
+
+        Hit(long id, String event) {
+            this.id = id;
+            this.event = event;
+        }
+
+    }
+
+    /**
+     * Accumulates documents, either new ones or the documents of segments
+     * being merged, only used by the indexer thread.
+     */
+    static final class Builder {
+
+        private final long base;
+        private long[] times = new long[64];
+        private byte[][] events = new byte[64][];
+        private final Map<String, Postings.Writer> postings = new HashMap<>();
+        private int size = 0;
+
+        Builder(long base) {
+            this.base = base;
+        }
+
+        int size() {
+            return size;
+        }
+
+        void add(long time, byte[] event, Collection<String> terms) {
+            int doc = addDocument(time, event);
+            for(String term : terms) {
+                postings.computeIfAbsent(term, k -> new Postings.Writer()).add(doc);
+            }
+        }
+
+        /**
+         * Appends the documents of a segment directly following the ones
+         * already added.
+         */
+        void add(IndexSegment segment) {
+            if(segment.base != base + size) {
+                throw new IllegalArgumentException("Merged segments must be consecutive");
+            }
+
+            int offset = size;
+            for(int i = 0; i < segment.size(); ++i) {
+                addDocument(segment.times[i], segment.events[i]);
+            }
+            segment.postings.forEach((term, encoded) -> {
+                Postings.Writer writer = postings.computeIfAbsent(term, k -> new Postings.Writer());
+                Postings.Reader reader = new Postings.Reader(encoded);
+                for(int doc = reader.next(); doc != Postings.NO_MORE_DOCS; doc = reader.next()) {
+                    writer.add(offset + doc);
+                }
+            });
+        }
+
+        private int addDocument(long time, byte[] event) {
+            if(size == times.length) {
+                times = Arrays.copyOf(times, size * 2);
+                events = Arrays.copyOf(events, size * 2);
+            }
+            times[size] = time;
+            events[size] = event;
+            return size++;
+        }
+
+        IndexSegment build() {
+            Map<String, byte[]> encoded = new HashMap<>(postings.size() * 4 / 3 + 1);
+            postings.forEach((term, writer) -> encoded.put(term, writer.toBytes()));
+            return new IndexSegment(base, Arrays.copyOf(times, size), Arrays.copyOf(events, size), encoded);
+        }
+
+    }
+
+}
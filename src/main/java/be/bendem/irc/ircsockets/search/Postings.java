@@ -0,0 +1,126 @@
+package be.bendem.irc.ircsockets.search;
+
+import java.util.Arrays;
+
+/**
+ * Sorted document ids of a term, encoded as the amount of ids followed by
+ * the difference between each id and the previous one in a variable amount
+ * of bytes (7 bits per byte, the high bit telling whether more bytes follow).
+ * Most gaps fit in one or two bytes instead of four.
+ */
+final class Postings {
+
+    static final int NO_MORE_DOCS = Integer.MAX_VALUE;
+
+    private Postings() {
+    }
+
+    private static int writeVarInt(byte[] bytes, int offset, int value) {
+        while((value & ~0x7F) != 0) {
+            bytes[offset++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        bytes[offset++] = (byte) value;
+        return offset;
+    }
+
+    private static int varIntSize(int value) {
+        int size = 1;
+        while((value & ~0x7F) != 0) {
+            value >>>= 7;
+            ++size;
+        }
+        return size;
+    }
+
+    /**
+     * Appends increasing ids, only used by the indexer thread.
+     */
+    static final class Writer {
+
+        private byte[] bytes = new byte[8];
+        private int length = 0;
+        private int count = 0;
+        private int last = -1;
+
+        void add(int doc) {
+            if(doc <= last) {
+                throw new IllegalArgumentException("Documents must be added in order");
+            }
+            if(length + 5 > bytes.length) {
+                bytes = Arrays.copyOf(bytes, bytes.length * 2);
+            }
+            length = writeVarInt(bytes, length, doc - last);
+            last = doc;
+            ++count;
+        }
+
+        byte[] toBytes() {
+            byte[] encoded = new byte[varIntSize(count) + length];
+            int offset = writeVarInt(encoded, 0, count);
+            System.arraycopy(bytes, 0, encoded, offset, length);
+            return encoded;
+        }
+
+    }
+
+    /**
+     * Decodes the ids in order, skipping ahead is linear but only costs a few
+     * byte reads per skipped id.
+     */
+    static final class Reader {
+
+        private final byte[] bytes;
+        private final int count;
+        private int offset = 0;
+        private int read = 0;
+        private int doc = -1;
+
+        Reader(byte[] bytes) {
+            this.bytes = bytes;
+            this.count = readVarInt();
+        }
+
+        int count() {
+            return count;
+        }
+
+        int doc() {
+            return doc;
+        }
+
+        /**
+         * @return the next id, {@link #NO_MORE_DOCS} once they are all read
+         */
+        int next() {
+            if(read == count) {
+                return doc = NO_MORE_DOCS;
+            }
+            ++read;
+            return doc += readVarInt();
+        }
+
+        /**
+         * @return the first id at least equal to target
+         */
+        int advance(int target) {
+            while(doc < target) {
+                next();
+            }
+            return doc;
+        }
+
+        private int readVarInt() {
+            int value = 0;
+            for(int shift = 0; ; shift += 7) {
+                byte b = bytes[offset++];
+                value |= (b & 0x7F) << shift;
+                if(b >= 0) {
+                    return value;
+                }
+            }
+        }
+
+    }
+
+}
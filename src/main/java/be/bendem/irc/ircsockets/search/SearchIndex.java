@@ -0,0 +1,358 @@
+package be.bendem.irc.ircsockets.search;
+
+import be.bendem.irc.ircsockets.ws.protocol.EventMessage;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * In memory full text index of the events of every channel. Events are
+ * indexed by their words, the nick of their author ({@code nick:<nick>}) and
+ * their routing key ({@code channel:<key>}).
+ *
+ * Events are indexed by a dedicated thread into a segment which becomes
+ * searchable once full or after at most a second. Small segments are merged
+ * with their neighbours of the same size into bigger ones, or into the next
+ * one if it is bigger, so queries only look at a few of them. The oldest
+ * segments are dropped once the index uses more than its memory budget.
+ * Appending never blocks the caller, events are dropped (and counted) if the
+ * indexer can't keep up.
+ */
+public class SearchIndex {
+
+    private static final String NICK = "nick:";
+    private static final String CHANNEL = "channel:";
+    private static final int MAX_TERMS = 16;
+    private static final int MAX_TOKEN_LENGTH = 64;
+    private static final int BATCH_SIZE = 1024;
+    private static final int SEGMENT_DOCUMENTS = 16 * 1024;
+    private static final long REFRESH_INTERVAL = TimeUnit.SECONDS.toMillis(1);
+    // Amount of segments of the same size merged together and the size merged segments can't exceed
+    private static final int MERGE_FACTOR = 10;
+    private static final int MAX_MERGED_DOCUMENTS = 1024 * 1024;
+
+    private final long maxBytes;
+    private final BlockingQueue<EventMessage> queue;
+    private final LongAdder dropped;
+    private final LongAdder failed;
+    private final LongAdder evicted;
+    private final Thread indexer;
+    private volatile boolean running = true;
+    // Replaced as a whole by the indexer, never modified
+    private volatile List<IndexSegment> segments = Collections.emptyList();
+    private IndexSegment.Builder building;
+    private long lastRefresh = System.currentTimeMillis();
+
+    public SearchIndex(long maxBytes, int queueSize) {
+        this.maxBytes = maxBytes;
+        this.queue = new LinkedBlockingQueue<>(queueSize);
+        this.dropped = new LongAdder();
+        this.failed = new LongAdder();
+        this.evicted = new LongAdder();
+        this.building = new IndexSegment.Builder(0);
+
+        indexer = new Thread(this::index, "search-indexer");
+        indexer.start();
+    }
+
+    /**
+     * Queues an event, its json is built by the indexer thread.
+     */
+    public void append(EventMessage message) {
+        if(!queue.offer(message)) {
+            dropped.increment();
+        }
+    }
+
+    /**
+     * Turns a query into the terms a document has to contain. Words are
+     * split like the text of events, {@code nick:} and {@code channel:}
+     * words are kept whole.
+     *
+     * @param channel routing key of the only channel to search, null for all channels
+     * @throws IllegalArgumentException if the query doesn't contain any term or too many
+     */
+    public static List<String> parse(String query, String channel) {
+        Set<String> terms = new LinkedHashSet<>();
+        for(String word : query.trim().split("\\s+")) {
+            String lower = word.toLowerCase(Locale.ROOT);
+            if(lower.startsWith(NICK) || lower.startsWith(CHANNEL)) {
+                if(lower.indexOf(':') + 1 < lower.length()) {
+                    terms.add(lower);
+                }
+            } else {
+                tokenize(word, terms);
+            }
+        }
+        if(channel != null) {
+            terms.add(CHANNEL + channel.toLowerCase(Locale.ROOT));
+        }
+
+        if(terms.isEmpty()) {
+            throw new IllegalArgumentException("Empty query");
+        }
+        if(terms.size() > MAX_TERMS) {
+            throw new IllegalArgumentException("Too many terms");
+        }
+        return new ArrayList<>(terms);
+    }
+
+    private static void tokenize(String text, Set<String> tokens) {
+        StringBuilder token = new StringBuilder();
+        for(int i = 0; i <= text.length(); ++i) {
+            char c = i < text.length() ? text.charAt(i) : ' ';
+            if(Character.isLetterOrDigit(c)) {
+                if(token.length() < MAX_TOKEN_LENGTH) {
+                    token.append(Character.toLowerCase(c));
+                }
+            } else if(token.length() != 0) {
+                tokens.add(token.toString());
+                token.setLength(0);
+            }
+        }
+    }
+
+    /**
+     * Looks for the newest events containing every term between from and to
+     * (inclusive) with an id lower than before.
+     *
+     * @param terms as returned by {@link #parse(String, String)}
+     */
+    public Result search(List<String> terms, long from, long to, long before, int limit) {
+        List<IndexSegment> snapshot = segments;
+        List<IndexSegment.Hit> hits = new ArrayList<>(limit + 1);
+        // One more hit than asked tells whether there is another page
+        for(int i = snapshot.size() - 1; i >= 0 && hits.size() <= limit; --i) {
+            snapshot.get(i).search(terms, from, to, before, limit + 1, hits);
+        }
+
+        List<String> events = new ArrayList<>(Math.min(hits.size(), limit));
+        for(int i = 0; i < hits.size() && i < limit; ++i) {
+            events.add(hits.get(i).event);
+        }
+        return new Result(events, hits.size() > limit ? hits.get(limit - 1).id : -1);
+    }
+
+    /**
+     * @return the amount of searchable events
+     */
+    public long getDocuments() {
+        return segments.stream().mapToLong(IndexSegment::size).sum();
+    }
+
+    /**
+     * @return an estimation of the memory used by the searchable events
+     */
+    public long getBytes() {
+        return segments.stream().mapToLong(IndexSegment::getBytes).sum();
+    }
+
+    public long getDropped() {
+        return dropped.sum();
+    }
+
+    /**
+     * @return the amount of events which couldn't be indexed
+     */
+    public long getFailed() {
+        return failed.sum();
+    }
+
+    /**
+     * @return the amount of events removed to stay within the memory budget
+     */
+    public long getEvicted() {
+        return evicted.sum();
+    }
+
+    public void kill() {
+        running = false;
+        indexer.interrupt();
+        try {
+            indexer.join();
+        } catch(InterruptedException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void index() {
+        List<EventMessage> batch = new ArrayList<>(BATCH_SIZE);
+
+        while(running) {
+            try {
+                EventMessage message = queue.poll(REFRESH_INTERVAL, TimeUnit.MILLISECONDS);
+                if(message != null) {
+                    batch.add(message);
+                    queue.drainTo(batch, BATCH_SIZE - 1);
+                }
+            } catch(InterruptedException e) {
+                // Nothing to persist, what's left is lost with the process
+                break;
+            }
+
+            for(EventMessage message : batch) {
+                try {
+                    add(message);
+                } catch(RuntimeException e) {
+                    // Counted, only the first one is logged so bad events don't flood the logs
+                    if(failed.sum() == 0) {
+                        System.err.println("[ERROR] Could not index event of " + message.getTarget().orElse(null));
+                        e.printStackTrace();
+                    }
+                    failed.increment();
+                }
+            }
+            batch.clear();
+            refreshIfDue();
+        }
+    }
+
+    private synchronized void refreshIfDue() {
+        long now = System.currentTimeMillis();
+        if(building.size() >= SEGMENT_DOCUMENTS || building.size() != 0 && now - lastRefresh >= REFRESH_INTERVAL) {
+            refresh();
+        }
+    }
+
+    /**
+     * Indexes an event right away, the indexer thread uses it for queued
+     * events, benchmarks use it to fill the index directly.
+     */
+    synchronized void add(EventMessage message) {
+        Set<String> terms = new LinkedHashSet<>();
+        tokenize(message.getMessage(), terms);
+        if(message.getNick() != null) {
+            terms.add(NICK + message.getNick().toLowerCase(Locale.ROOT));
+        }
+        terms.add(CHANNEL + message.getTarget().get().toLowerCase(Locale.ROOT));
+
+        building.add(message.getTime(), message.toJson().getBytes(StandardCharsets.UTF_8), terms);
+    }
+
+    /**
+     * Makes the events added since the last refresh searchable.
+     */
+    synchronized void refresh() {
+        lastRefresh = System.currentTimeMillis();
+        if(building.size() == 0) {
+            return;
+        }
+
+        IndexSegment segment = building.build();
+        building = new IndexSegment.Builder(segment.getBase() + segment.size());
+
+        List<IndexSegment> updated = new ArrayList<>(segments);
+        updated.add(segment);
+        merge(updated);
+
+        long total = updated.stream().mapToLong(IndexSegment::getBytes).sum();
+        while(!updated.isEmpty() && total > maxBytes) {
+            IndexSegment oldest = updated.remove(0);
+            total -= oldest.getBytes();
+            evicted.add(oldest.size());
+        }
+        segments = Collections.unmodifiableList(updated);
+    }
+
+    /**
+     * Merges any MERGE_FACTOR consecutive segments of the same level into
+     * one of the next level. A segment smaller than the one after it, left
+     * behind by a refresh between full segments, is folded into it. Merged
+     * segments don't go over MAX_MERGED_DOCUMENTS.
+     */
+    static void merge(List<IndexSegment> segments) {
+        boolean merged;
+        do {
+            merged = mergeRun(segments) || foldSmall(segments);
+        } while(merged);
+    }
+
+    private static boolean mergeRun(List<IndexSegment> segments) {
+        for(int first = 0; first + MERGE_FACTOR <= segments.size(); ++first) {
+            int level = level(segments.get(first));
+            int end = first + 1;
+            while(end < first + MERGE_FACTOR && level(segments.get(end)) == level) {
+                ++end;
+            }
+            if(end == first + MERGE_FACTOR && mergeRange(segments, first, end)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean foldSmall(List<IndexSegment> segments) {
+        for(int i = 0; i + 1 < segments.size(); ++i) {
+            if(level(segments.get(i)) < level(segments.get(i + 1)) && mergeRange(segments, i, i + 2)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Replaces the segments from first (inclusive) to end (exclusive) with a
+     * single one.
+     *
+     * @return false if it would be too big
+     */
+    private static boolean mergeRange(List<IndexSegment> segments, int first, int end) {
+        List<IndexSegment> merged = segments.subList(first, end);
+        if(merged.stream().mapToLong(IndexSegment::size).sum() > MAX_MERGED_DOCUMENTS) {
+            return false;
+        }
+
+        IndexSegment.Builder builder = new IndexSegment.Builder(merged.get(0).getBase());
+        merged.forEach(builder::add);
+        merged.clear();
+        segments.add(first, builder.build());
+        return true;
+    }
+
+    /**
+     * Segments of the same level have the same order of magnitude of documents.
+     */
+    private static int level(IndexSegment segment) {
+        int level = 0;
+        for(int size = segment.size(); size >= MERGE_FACTOR; size /= MERGE_FACTOR) {
+            ++level;
+        }
+        return level;
+    }
+
+    public static class Result {
+
+        private final List<String> events;
+        private final long next;
+
+        private Result(List<String> events, long next) {
+            this.events = events;
+            this.next = next;
+        }
+
+        /**
+         * @return the json of the matching events, newest first
+         */
+        public List<String> getEvents() {
+            return events;
+        }
+
+        /**
+         * @return the id to search before to get the next page, -1 if this is the last one
+         */
+        public long getNext() {
+            return next;
+        }
+
+    }
+
+}
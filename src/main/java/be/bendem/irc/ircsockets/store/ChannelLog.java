@@ -0,0 +1,92 @@
+package be.bendem.irc.ircsockets.store;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.NavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.stream.Stream;
+
+/**
+ * The segments of a single channel, ordered by the time of their first event.
+ */
+class ChannelLog {
+
+    private final String channel;
+    private final Path directory;
+    private final int segmentBytes;
+    private final long segmentMillis;
+    private final NavigableMap<Long, Segment> segments;
+    private Segment active;
+
+    ChannelLog(String channel, Path directory, int segmentBytes, long segmentMillis) throws IOException {
+        this.channel = channel;
+        this.directory = directory;
+        this.segmentBytes = segmentBytes;
+        this.segmentMillis = segmentMillis;
+        this.segments = new ConcurrentSkipListMap<>();
+
+        Files.createDirectories(directory);
+        try(Stream<Path> files = Files.list(directory)) {
+            for(Path file : (Iterable<Path>) files.filter(f -> f.toString().endsWith(".seg"))::iterator) {
+                Segment segment = Segment.open(file);
+                segments.put(segment.getFirstTime(), segment);
+            }
+        }
+        if(!segments.isEmpty()) {
+            active = segments.lastEntry().getValue();
+        }
+    }
+
+    String getChannel() {
+        return channel;
+    }
+
+    /**
+     * @return the segment the event was written to
+     */
+    Segment append(long time, byte[] json) throws IOException {
+        if(active == null || time - active.getFirstTime() > segmentMillis || !active.append(time, json)) {
+            if(active != null) {
+                active.force();
+            }
+            active = Segment.create(directory, Math.max(time, active == null ? time : active.getLastTime() + 1),
+                Math.max(segmentBytes, json.length + 64));
+            segments.put(active.getFirstTime(), active);
+
+            active.append(time, json);
+        }
+        return active;
+    }
+
+    /**
+     * Segments which may contain events between from and to, oldest first.
+     */
+    List<Segment> getSegments(long from, long to) {
+        List<Segment> result = new ArrayList<>();
+        Long start = segments.floorKey(from);
+        for(Segment segment : segments.subMap(start == null ? Long.MIN_VALUE : start, true, to, true).values()) {
+            if(segment.getLastTime() >= from) {
+                result.add(segment);
+            }
+        }
+        return result;
+    }
+
+    Collection<Segment> getSegments() {
+        return segments.values();
+    }
+
+    boolean isActive(Segment segment) {
+        return segment == active;
+    }
+
+    void delete(Segment segment) throws IOException {
+        segments.remove(segment.getFirstTime());
+        segment.delete();
+    }
+
+}
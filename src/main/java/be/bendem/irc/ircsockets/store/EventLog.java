@@ -0,0 +1,271 @@
+package be.bendem.irc.ircsockets.store;
+
+import be.bendem.irc.ircsockets.ws.protocol.Message;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Stream;
+
+/**
+ * Durable store of the serialized events of every channel, one directory of
+ * memory mapped segments per channel.
+ *
+ * Events are written by a dedicated thread which syncs the segments it wrote
+ * to once per batch, appending never blocks the caller: events are dropped
+ * (and counted) if the writer can't keep up.
+ */
+public class EventLog {
+
+    private static final int BATCH_SIZE = 1024;
+    private static final long RETENTION_INTERVAL = TimeUnit.MINUTES.toMillis(1);
+
+    private final Path directory;
+    private final int segmentBytes;
+    private final long segmentMillis;
+    private final long retentionMillis;
+    private final long maxBytes;
+    private final Map<String, ChannelLog> channels;
+    private final BlockingQueue<Entry> queue;
+    private final LongAdder dropped;
+    private final Thread writer;
+    private volatile boolean running = true;
+    private long lastRetention = 0;
+
+    public EventLog(Path directory, int segmentBytes, long segmentMillis, long retentionMillis, long maxBytes, int queueSize) throws IOException {
+        this.directory = directory;
+        this.segmentBytes = segmentBytes;
+        this.segmentMillis = segmentMillis;
+        this.retentionMillis = retentionMillis;
+        this.maxBytes = maxBytes;
+        this.channels = new ConcurrentHashMap<>();
+        this.queue = new LinkedBlockingQueue<>(queueSize);
+        this.dropped = new LongAdder();
+
+        Files.createDirectories(directory);
+        try(Stream<Path> files = Files.list(directory)) {
+            for(Path channelDirectory : (Iterable<Path>) files.filter(Files::isDirectory)::iterator) {
+                String channel = URLDecoder.decode(channelDirectory.getFileName().toString(), "UTF-8");
+                channels.put(channel, new ChannelLog(channel, channelDirectory, segmentBytes, segmentMillis));
+            }
+        }
+
+        writer = new Thread(this::write, "event-log-writer");
+        writer.start();
+    }
+
+    /**
+     * Queues an event, its json is built by the writer thread.
+     */
+    public void append(String channel, long time, Message message) {
+        if(!queue.offer(new Entry(channel, time, message))) {
+            dropped.increment();
+        }
+    }
+
+    public long getDropped() {
+        return dropped.sum();
+    }
+
+    /**
+     * Reads a page of at most pageSize events of a channel between from and
+     * to (inclusive), starting where the previous page stopped.
+     *
+     * @param cursor the cursor of the previous page, null for the first one
+     * @throws IllegalArgumentException if the cursor is invalid
+     */
+    public Page history(String channel, long from, long to, int pageSize, String cursor) {
+        // A cursor is the first time of a segment and the offset to continue from in it
+        long segmentTime = Long.MIN_VALUE;
+        int offset = 0;
+        if(cursor != null) {
+            int separator = cursor.indexOf(':');
+            try {
+                segmentTime = Long.parseLong(cursor.substring(0, Math.max(0, separator)));
+                offset = Integer.parseInt(cursor.substring(separator + 1));
+            } catch(NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid cursor " + cursor, e);
+            }
+            if(offset < 0) {
+                throw new IllegalArgumentException("Invalid cursor " + cursor);
+            }
+        }
+
+        ChannelLog log = channels.get(channel);
+        List<String> events = new ArrayList<>(pageSize);
+        if(log == null) {
+            return new Page(events, null);
+        }
+
+        for(Segment segment : log.getSegments(from, to)) {
+            // Segments deleted since the previous page are skipped along
+            if(segment.getFirstTime() < segmentTime) {
+                continue;
+            }
+
+            int next;
+            try {
+                next = segment.read(segment.getFirstTime() == segmentTime ? offset : 0, from, to, pageSize, events);
+            } catch(IllegalArgumentException e) {
+                throw new IllegalArgumentException("Invalid cursor " + cursor, e);
+            }
+            if(events.size() >= pageSize) {
+                return new Page(events, next < 0
+                    ? (segment.getFirstTime() + 1) + ":0"
+                    : segment.getFirstTime() + ":" + next);
+            }
+        }
+        return new Page(events, null);
+    }
+
+    public void kill() {
+        running = false;
+        writer.interrupt();
+        try {
+            writer.join();
+        } catch(InterruptedException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void write() {
+        List<Entry> batch = new ArrayList<>(BATCH_SIZE);
+        Set<Segment> written = new HashSet<>();
+
+        while(running || !queue.isEmpty()) {
+            try {
+                Entry entry = queue.poll(RETENTION_INTERVAL, TimeUnit.MILLISECONDS);
+                if(entry != null) {
+                    batch.add(entry);
+                    queue.drainTo(batch, BATCH_SIZE - 1);
+                }
+            } catch(InterruptedException e) {
+                // Write what's left before stopping
+                running = false;
+                queue.drainTo(batch);
+            }
+
+            for(Entry entry : batch) {
+                try {
+                    written.add(getChannelLog(entry.channel).append(entry.time, entry.message.toJson().getBytes(StandardCharsets.UTF_8)));
+                } catch(IOException | UncheckedIOException e) {
+                    System.err.println("[ERROR] Could not write event to " + entry.channel);
+                    e.printStackTrace();
+                }
+            }
+            // Group commit
+            written.forEach(Segment::force);
+            written.clear();
+            batch.clear();
+
+            long now = System.currentTimeMillis();
+            if(now - lastRetention > RETENTION_INTERVAL) {
+                lastRetention = now;
+                applyRetention(now);
+            }
+        }
+    }
+
+    private ChannelLog getChannelLog(String channel) {
+        return channels.computeIfAbsent(channel, k -> {
+            try {
+                return new ChannelLog(channel, directory.resolve(URLEncoder.encode(channel, "UTF-8")), segmentBytes, segmentMillis);
+            } catch(UnsupportedEncodingException e) {
+                throw new AssertionError(e);
+            } catch(IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+    }
+
+    private void applyRetention(long now) {
+        List<Segment> candidates = new ArrayList<>();
+        Map<Segment, ChannelLog> owners = new IdentityHashMap<>();
+        long total = 0;
+
+        for(ChannelLog log : channels.values()) {
+            for(Segment segment : log.getSegments()) {
+                total += segment.getCapacity();
+                if(!log.isActive(segment)) {
+                    candidates.add(segment);
+                    owners.put(segment, log);
+                }
+            }
+        }
+
+        candidates.sort(Comparator.comparingLong(Segment::getLastTime));
+        for(Segment segment : candidates) {
+            boolean expired = retentionMillis > 0 && segment.getLastTime() < now - retentionMillis;
+            boolean tooBig = maxBytes > 0 && total > maxBytes;
+            if(!expired && !tooBig) {
+                break;
+            }
+
+            try {
+                owners.get(segment).delete(segment);
+                total -= segment.getCapacity();
+            } catch(IOException e) {
+                System.err.println("[ERROR] Could not delete segment of " + owners.get(segment).getChannel());
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private static class Entry {
+
+        private final String channel;
+        private final long time;
+        private final Message message;
+
+        private Entry(String channel, long time, Message message) {
+            this.channel = channel;
+            this.time = time;
+            this.message = message;
+        }
+
+    }
+
+    /**
+     * Events of a channel read from the log.
+     */
+    public static class Page {
+
+        private final List<String> events;
+        private final String next;
+
+        private Page(List<String> events, String next) {
+            this.events = events;
+            this.next = next;
+        }
+
+        public List<String> getEvents() {
+            return events;
+        }
+
+        /**
+         * @return the cursor of the next page, null if this is the last one
+         */
+        public String getNext() {
+            return next;
+        }
+
+    }
+
+}
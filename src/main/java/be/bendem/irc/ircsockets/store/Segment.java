@@ -0,0 +1,276 @@
+package be.bendem.irc.ircsockets.store;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * An append only file of events mapped in memory. Each record is made of its
+ * length, the time of the event and its serialized json, a zero length marks
+ * the end of the records. Times are never lower than the time of the segment
+ * so segments can be looked up by their first time.
+ *
+ * Only one thread appends to and deletes a segment, any thread can read what
+ * was appended.
+ */
+class Segment {
+
+    private static final int HEADER = 4 + 8;
+    // Amount of bytes between two entries of the sparse index
+    private static final int INDEX_INTERVAL = 4096;
+
+    private final Path path;
+    private final long firstTime;
+    private final MappedByteBuffer buffer;
+    // Highest time seen up to an offset, kept increasing even if events are slightly out of order
+    private final NavigableMap<Long, Integer> index;
+    // Reads hold the read lock, deleting unmaps the buffer under the write lock
+    private final ReadWriteLock lock;
+    private boolean deleted = false;
+    private volatile int limit;
+    private volatile long lastTime;
+    private int lastIndexed = -INDEX_INTERVAL;
+    private boolean dirty = false;
+
+    private Segment(Path path, long firstTime, MappedByteBuffer buffer) {
+        this.path = path;
+        this.firstTime = firstTime;
+        this.buffer = buffer;
+        this.index = new ConcurrentSkipListMap<>();
+        this.lock = new ReentrantReadWriteLock();
+        this.lastTime = firstTime;
+    }
+
+    static Segment create(Path directory, long firstTime, int capacity) throws IOException {
+        Path path = directory.resolve(firstTime + ".seg");
+        try(RandomAccessFile file = new RandomAccessFile(path.toFile(), "rw")) {
+            file.setLength(capacity);
+            return new Segment(path, firstTime, file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, capacity));
+        }
+    }
+
+    static Segment open(Path path) throws IOException {
+        String name = path.getFileName().toString();
+        long firstTime = Long.parseLong(name.substring(0, name.length() - ".seg".length()));
+
+        Segment segment;
+        try(RandomAccessFile file = new RandomAccessFile(path.toFile(), "rw")) {
+            segment = new Segment(path, firstTime, file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, file.length()));
+        }
+        segment.recover();
+        return segment;
+    }
+
+    private void recover() {
+        int offset = 0;
+        while(offset + HEADER <= buffer.capacity()) {
+            int length = buffer.getInt(offset);
+            if(length <= 0 || offset + HEADER + length > buffer.capacity()) {
+                break;
+            }
+            indexRecord(offset, buffer.getLong(offset + 4));
+            offset += HEADER + length;
+        }
+        limit = offset;
+    }
+
+    /**
+     * @param time raised to the time of the segment if it is lower
+     * @return false if there is not enough room left in this segment
+     */
+    boolean append(long time, byte[] json) {
+        time = Math.max(time, firstTime);
+        int offset = limit;
+        if(offset + HEADER + json.length > buffer.capacity()) {
+            return false;
+        }
+
+        ByteBuffer target = buffer.duplicate();
+        target.position(offset + 4);
+        target.putLong(time);
+        target.put(json);
+        // The length goes last so a partially written record is never read
+        buffer.putInt(offset, json.length);
+
+        indexRecord(offset, time);
+        dirty = true;
+        limit = offset + HEADER + json.length;
+        return true;
+    }
+
+    private void indexRecord(int offset, long time) {
+        if(time > lastTime) {
+            lastTime = time;
+        }
+        if(offset - lastIndexed >= INDEX_INTERVAL) {
+            index.put(lastTime, offset);
+            lastIndexed = offset;
+        }
+    }
+
+    /**
+     * Reads the events between from and to (inclusive) starting at the provided
+     * offset, stopping once max events have been read.
+     *
+     * @param offset 0 or an offset returned by a previous read
+     * @return the offset to continue reading from or -1 if there is nothing left
+     * @throws IllegalArgumentException if no record starts at offset
+     */
+    int read(int offset, long from, long to, int max, List<String> events) {
+        lock.readLock().lock();
+        try {
+            if(deleted) {
+                return -1;
+            }
+            // Offsets come back from clients in history cursors
+            if(offset != 0 && !isRecordStart(offset, limit)) {
+                throw new IllegalArgumentException("No record at offset " + offset);
+            }
+            return readRecords(offset, from, to, max, events);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Walks the records from the last indexed one before offset.
+     */
+    private boolean isRecordStart(int offset, int end) {
+        if(offset < 0 || offset > end) {
+            return false;
+        }
+
+        int position = 0;
+        for(int indexed : index.values()) {
+            if(indexed > offset) {
+                break;
+            }
+            position = indexed;
+        }
+        while(position < offset) {
+            if(position + HEADER > end) {
+                return false;
+            }
+            int length = buffer.getInt(position);
+            if(length <= 0) {
+                return false;
+            }
+            position += HEADER + length;
+        }
+        return position == offset;
+    }
+
+    private int readRecords(int offset, long from, long to, int max, List<String> events) {
+        if(offset == 0) {
+            // Every record before the last index entry lower than from is older than from
+            Map.Entry<Long, Integer> start = index.lowerEntry(from);
+            if(start != null) {
+                offset = start.getValue();
+            }
+        }
+
+        int end = limit;
+        ByteBuffer source = buffer.duplicate();
+        while(offset < end && events.size() < max) {
+            if(offset + HEADER > end) {
+                throw new IllegalArgumentException("Truncated record at offset " + offset);
+            }
+            int length = source.getInt(offset);
+            if(length < 0 || offset + HEADER + length > end) {
+                throw new IllegalArgumentException("Invalid record length " + length + " at offset " + offset);
+            }
+            long time = source.getLong(offset + 4);
+            if(time > to) {
+                return -1;
+            }
+
+            if(time >= from) {
+                byte[] json = new byte[length];
+                source.position(offset + HEADER);
+                source.get(json);
+                events.add(new String(json, StandardCharsets.UTF_8));
+            }
+            offset += HEADER + length;
+        }
+
+        return offset < end ? offset : -1;
+    }
+
+    void force() {
+        if(dirty && !deleted) {
+            buffer.force();
+            dirty = false;
+        }
+    }
+
+    /**
+     * Unmaps the segment, waiting for the reads in progress, and deletes its
+     * file. Reading it afterwards gives nothing.
+     */
+    void delete() throws IOException {
+        lock.writeLock().lock();
+        try {
+            deleted = true;
+            unmap(buffer);
+        } finally {
+            lock.writeLock().unlock();
+        }
+        Files.deleteIfExists(path);
+    }
+
+    /**
+     * Releases the mapping now instead of whenever the buffer is collected,
+     * the file of a mapped buffer can't be deleted on every system and its
+     * space is not freed until then.
+     */
+    private static void unmap(MappedByteBuffer buffer) {
+        try {
+            try {
+                Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+                Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+                Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+                theUnsafe.setAccessible(true);
+                invokeCleaner.invoke(theUnsafe.get(null), buffer);
+            } catch(NoSuchMethodException e) {
+                // Java 8
+                Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+                cleanerMethod.setAccessible(true);
+                Object cleaner = cleanerMethod.invoke(buffer);
+                cleaner.getClass().getMethod("clean").invoke(cleaner);
+            }
+        } catch(ReflectiveOperationException | RuntimeException e) {
+            System.err.println("[WARN] Could not unmap segment, it will be when collected");
+            e.printStackTrace();
+        }
+    }
+
+    long getFirstTime() {
+        return firstTime;
+    }
+
+    long getLastTime() {
+        return lastTime;
+    }
+
+    int getCapacity() {
+        return buffer.capacity();
+    }
+
+    boolean isEmpty() {
+        return limit == 0;
+    }
+
+}
@@ -0,0 +1,305 @@
+package be.bendem.irc.ircsockets.ws;
+
+import be.bendem.irc.ircsockets.metrics.Metrics;
+import be.bendem.irc.ircsockets.ws.protocol.BinaryBuffer;
+import be.bendem.irc.ircsockets.ws.protocol.SkippedMessage;
+import be.bendem.irc.ircsockets.ws.protocol.SymbolTable;
+import org.java_websocket.WebSocket;
+import org.java_websocket.WebSocketImpl;
+import org.java_websocket.framing.CloseFrame;
+import org.java_websocket.server.WebSocketServer;
+
+import java.util.ArrayDeque;
+import java.util.BitSet;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bounded outbound queue of a connection, frames are only handed to the
+ * websocket library while its own (unbounded) queue is short enough.
+ */
+public class ClientConnection {
+
+    public enum SlowConsumerPolicy {
+        DROP_OLDEST,
+        DROP_NEWEST,
+        DISCONNECT
+    }
+
+    // Amount of frames the library can have waiting to be written before we start queuing ourselves
+    private static final int LIBRARY_BACKLOG = 16;
+
+    private final WebSocket conn;
+    private final ServerOptions options;
+    private final Metrics metrics;
+    private final Set<ClientConnection> backlogged;
+    private final Deque<SharedFrame> queue;
+    private final BitSet knownSymbols;
+    // Generation of the symbol table knownSymbols are ids of, -1 before the first binary frame
+    private long symbolGeneration = -1;
+    private volatile boolean binary = false;
+    private long queuedBytes = 0;
+    private long pendingSkipped = 0;
+
+    private long sent = 0;
+    private long dropped = 0;
+    private long skipped = 0;
+    private boolean disconnected = false;
+
+    public ClientConnection(WebSocket conn, ServerOptions options, Metrics metrics, Set<ClientConnection> backlogged) {
+        this.conn = conn;
+        this.options = options;
+        this.metrics = metrics;
+        this.backlogged = backlogged;
+        this.queue = new ArrayDeque<>();
+        this.knownSymbols = new BitSet();
+    }
+
+    public WebSocket getConnection() {
+        return conn;
+    }
+
+    /**
+     * Whether this connection negotiated the binary protocol, it then gets
+     * events as binary frames and everything else as text.
+     */
+    public boolean isBinary() {
+        return binary;
+    }
+
+    public void setBinary(boolean binary) {
+        this.binary = binary;
+    }
+
+    /**
+     * Queues a frame for this connection and tries to send it right away.
+     */
+    public synchronized void enqueue(WebSocketServer server, SharedFrame frame) {
+        if(!makeRoom(server, frame)) {
+            return;
+        }
+
+        addSkippedMarker();
+        add(frame);
+        flush(server);
+    }
+
+    /**
+     * Queues a binary frame referencing symbols, preceded by the definitions
+     * of the symbols this connection doesn't know yet. Coming from another
+     * generation than the previous frame, the connection is first told to
+     * forget the symbols it knows.
+     */
+    public synchronized void enqueue(WebSocketServer server, SharedFrame frame, SymbolTable.Generation symbols, int[] ids) {
+        if(!makeRoom(server, frame)) {
+            return;
+        }
+
+        addSkippedMarker();
+        BinaryBuffer definitions = new BinaryBuffer();
+        if(symbols.getNumber() != symbolGeneration) {
+            if(symbolGeneration != -1) {
+                definitions.forget();
+            }
+            symbolGeneration = symbols.getNumber();
+            knownSymbols.clear();
+        }
+        for(int id : ids) {
+            if(id != 0 && !knownSymbols.get(id)) {
+                knownSymbols.set(id);
+                definitions.symbol(id, symbols.getName(id));
+            }
+        }
+        if(!definitions.isEmpty()) {
+            add(SharedFrame.pinned(definitions.toByteArray()));
+        }
+        add(frame);
+        flush(server);
+    }
+
+    /**
+     * Applies the slow consumer policy if there is no room for the frame and
+     * the pending skipped marker going in before it.
+     *
+     * @return false if the frame shouldn't be queued
+     */
+    private boolean makeRoom(WebSocketServer server, SharedFrame frame) {
+        if(disconnected) {
+            return false;
+        }
+
+        long markerSize = pendingSkipped == 0 ? 0 : skippedMarker().size();
+        if(isFull(frame, markerSize)) {
+            switch(options.slowConsumerPolicy) {
+                case DROP_OLDEST:
+                    Iterator<SharedFrame> it = queue.iterator();
+                    while(it.hasNext() && isFull(frame, markerSize)) {
+                        SharedFrame oldest = it.next();
+                        if(oldest.isPinned()) {
+                            continue;
+                        }
+                        it.remove();
+                        queuedBytes -= oldest.size();
+                        ++dropped;
+                        metrics.framesDropped.increment();
+                    }
+                    if(!isFull(frame, markerSize)) {
+                        break;
+                    }
+                    // Only pinned frames are left
+                    skip(server);
+                    return false;
+                case DROP_NEWEST:
+                    skip(server);
+                    return false;
+                case DISCONNECT:
+                    System.err.printf(
+                        "[WARN] Disconnecting slow client %s (%d frames, %d bytes queued)%n",
+                        conn.getRemoteSocketAddress().getHostString(),
+                        queue.size(), queuedBytes
+                    );
+                    metrics.slowDisconnects.increment();
+                    disconnected = true;
+                    queue.clear();
+                    queuedBytes = 0;
+                    backlogged.remove(this);
+                    conn.close(CloseFrame.POLICY_VALIDATION, "Too slow");
+                    return false;
+            }
+        }
+        return true;
+    }
+
+    private void skip(WebSocketServer server) {
+        ++pendingSkipped;
+        ++skipped;
+        metrics.framesSkipped.increment();
+        flush(server);
+    }
+
+    private void add(SharedFrame frame) {
+        queue.add(frame);
+        queuedBytes += frame.size();
+    }
+
+    /**
+     * Hands as many queued frames as possible to the library, the connection
+     * stays in the backlogged set as long as frames are left in its queue.
+     */
+    public synchronized void flush(WebSocketServer server) {
+        if(disconnected) {
+            return;
+        }
+
+        long now = System.currentTimeMillis();
+        while(!queue.isEmpty() && libraryBacklog() < LIBRARY_BACKLOG) {
+            SharedFrame frame = queue.poll();
+            queuedBytes -= frame.size();
+            frame.send(server, conn);
+            ++sent;
+            metrics.framesSent.increment();
+            metrics.frameBytesSent.add(frame.size());
+            if(frame.getEventTime() != 0) {
+                metrics.eventLatency.record(TimeUnit.MILLISECONDS.toNanos(now - frame.getEventTime()));
+            }
+        }
+
+        if(queue.isEmpty() && pendingSkipped != 0) {
+            addSkippedMarker();
+            flush(server);
+            return;
+        }
+
+        if(queue.isEmpty()) {
+            backlogged.remove(this);
+        } else {
+            backlogged.add(this);
+        }
+    }
+
+    public synchronized void close() {
+        disconnected = true;
+        queue.clear();
+        queuedBytes = 0;
+        backlogged.remove(this);
+    }
+
+    private void addSkippedMarker() {
+        if(pendingSkipped == 0) {
+            return;
+        }
+
+        add(skippedMarker());
+        pendingSkipped = 0;
+    }
+
+    private SharedFrame skippedMarker() {
+        return new SharedFrame(new SkippedMessage(pendingSkipped).toJson());
+    }
+
+    /**
+     * @param markerSize the size of the skipped marker queued before the frame, 0 if there is none
+     */
+    private boolean isFull(SharedFrame frame, long markerSize) {
+        int frames = markerSize == 0 ? 1 : 2;
+        return queue.size() + frames > options.clientQueueSize
+            || options.clientQueueBytes > 0 && queuedBytes + markerSize + frame.size() > options.clientQueueBytes;
+    }
+
+    /**
+     * Amount of frames waiting to be written in the queue of the library.
+     */
+    public int libraryBacklog() {
+        if(conn instanceof WebSocketImpl) {
+            return ((WebSocketImpl) conn).outQueue.size();
+        }
+        return 0;
+    }
+
+    public synchronized long getSent() {
+        return sent;
+    }
+
+    public synchronized long getDropped() {
+        return dropped;
+    }
+
+    public synchronized long getSkipped() {
+        return skipped;
+    }
+
+    public synchronized int getQueued() {
+        return queue.size();
+    }
+
+    public synchronized long getQueuedBytes() {
+        return queuedBytes;
+    }
+
+    /**
+     * The counters of this connection, as reported to it in stats messages.
+     */
+    public synchronized Map<String, Long> getStats() {
+        Map<String, Long> stats = new LinkedHashMap<>();
+        stats.put("sent", sent);
+        stats.put("dropped", dropped);
+        stats.put("skipped", skipped);
+        stats.put("queued", (long) queue.size());
+        stats.put("queued_bytes", queuedBytes);
+        stats.put("library_queued", (long) libraryBacklog());
+        return stats;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format(
+            "sent: %d, dropped: %d, skipped: %d, queued: %d (%d bytes)",
+            sent, dropped, skipped, queue.size(), queuedBytes
+        );
+    }
+
+}
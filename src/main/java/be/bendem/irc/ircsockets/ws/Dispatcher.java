@@ -0,0 +1,445 @@
+package be.bendem.irc.ircsockets.ws;
+
+import be.bendem.irc.ircsockets.metrics.Metrics;
+import be.bendem.irc.ircsockets.relay.Publisher;
+import be.bendem.irc.ircsockets.search.SearchIndex;
+import be.bendem.irc.ircsockets.store.EventLog;
+import be.bendem.irc.ircsockets.ws.protocol.BinaryBuffer;
+import be.bendem.irc.ircsockets.ws.protocol.EventMessage;
+import be.bendem.irc.ircsockets.ws.protocol.Message;
+import be.bendem.irc.ircsockets.ws.protocol.SymbolTable;
+import org.java_websocket.WebSocket;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.StringJoiner;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Fans messages out to the connections listening to them using one thread per
+ * shard. Messages targeting a channel always go to the same shard so they are
+ * sent in order, messages without a target act as a barrier: they are sent once
+ * every shard has sent what was dispatched before them and no shard sends what
+ * was dispatched after them before they are sent. Barriers are queued to every
+ * shard under a lock so all shards see them in the same order, the n-th barrier
+ * a shard reads is the n-th barrier dispatched.
+ *
+ * Each shard reads from a bounded {@link RingBuffer}, what happens to messages
+ * dispatched to a full shard depends on the {@link OverflowPolicy}.
+ */
+public class Dispatcher {
+
+    public enum OverflowPolicy {
+        // Drops the message, never holds up the thread dispatching it
+        DROP_NEWEST,
+        // Waits for room, holding up the irc client dispatching it
+        BLOCK
+    }
+
+    private final Server server;
+    private final ServerOptions options;
+    private final Shard[] shards;
+    // By dispatch order
+    private final Map<Long, Barrier> barriers;
+    private final Object barrierLock = new Object();
+    // Guarded by barrierLock
+    private long barrierCount = 0;
+    private volatile boolean running = true;
+
+    public Dispatcher(Server server, ServerOptions options) {
+        this.server = server;
+        this.options = options;
+        this.barriers = new ConcurrentHashMap<>();
+
+        int count = options.dispatchThreads > 0
+            ? options.dispatchThreads
+            : Runtime.getRuntime().availableProcessors();
+        this.shards = new Shard[count];
+        for(int i = 0; i < count; ++i) {
+            shards[i] = new Shard(i);
+        }
+    }
+
+    public void start() {
+        for(Shard shard : shards) {
+            shard.thread.start();
+        }
+    }
+
+    public void dispatch(Message message) {
+        Metrics metrics = server.getMetrics();
+        if(message.getTarget().isPresent()) {
+            RingBuffer<Message> queue = shards[Math.floorMod(message.getTarget().get().hashCode(), shards.length)].queue;
+            if(queue.offer(message)) {
+                return;
+            }
+
+            if(options.dispatchOverflowPolicy == OverflowPolicy.DROP_NEWEST) {
+                metrics.dispatchDropped.increment();
+                return;
+            }
+            metrics.dispatchWaits.increment();
+            put(queue, message);
+            return;
+        }
+
+        // Every shard waits for a barrier, it can't be dropped from some of them
+        synchronized(barrierLock) {
+            barriers.put(barrierCount++, new Barrier(shards.length));
+            for(Shard shard : shards) {
+                if(!shard.queue.offer(message)) {
+                    metrics.dispatchWaits.increment();
+                    putUninterruptibly(shard.queue, message);
+                }
+            }
+        }
+    }
+
+    private static void put(RingBuffer<Message> queue, Message message) {
+        try {
+            queue.put(message);
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Waits for room even if interrupted, a barrier missing from a shard
+     * would hold up the others forever. The interrupt flag is restored once
+     * the message is queued.
+     */
+    private void putUninterruptibly(RingBuffer<Message> queue, Message message) {
+        boolean interrupted = false;
+        try {
+            // Stopped shards don't make room anymore
+            while(running) {
+                try {
+                    queue.put(message);
+                    return;
+                } catch(InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        } finally {
+            if(interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * @return the amount of messages waiting to be sent by every shard
+     */
+    public long getQueueDepth() {
+        long depth = 0;
+        for(Shard shard : shards) {
+            depth += shard.queue.size();
+        }
+        return depth;
+    }
+
+    /**
+     * @return whether every shard sent everything dispatched to it
+     */
+    boolean isIdle() {
+        return getQueueDepth() == 0 && barriers.isEmpty();
+    }
+
+    public void kill() {
+        running = false;
+
+        for(Shard shard : shards) {
+            shard.thread.interrupt();
+        }
+        for(Shard shard : shards) {
+            try {
+                shard.thread.join();
+            } catch(InterruptedException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private void collect(RingBuffer<Message> messageQueue, List<Message> batch) throws InterruptedException {
+        batch.add(messageQueue.take());
+        if(options.batchSize <= 1) {
+            return;
+        }
+
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(options.batchLinger);
+        while(batch.size() < options.batchSize) {
+            if(messageQueue.drainTo(batch, options.batchSize - batch.size()) > 0) {
+                continue;
+            }
+
+            long remaining = deadline - System.nanoTime();
+            if(remaining <= 0) {
+                break;
+            }
+
+            Message msg = messageQueue.poll(remaining, TimeUnit.NANOSECONDS);
+            if(msg == null) {
+                break;
+            }
+            batch.add(msg);
+        }
+    }
+
+    private void process(Shard shard, List<Message> batch) throws InterruptedException {
+        int start = 0;
+        for(int i = 0; i < batch.size(); ++i) {
+            Message msg = batch.get(i);
+            if(msg.getTarget().isPresent()) {
+                continue;
+            }
+
+            if(start < i) {
+                send(batch.subList(start, i));
+            }
+            broadcast(shard, msg);
+            start = i + 1;
+        }
+
+        if(start < batch.size()) {
+            send(batch.subList(start, batch.size()));
+        }
+    }
+
+    private void broadcast(Shard shard, Message msg) throws InterruptedException {
+        long id = shard.barriers++;
+        Barrier barrier = barriers.get(id);
+        if(barrier.remaining.decrementAndGet() == 0) {
+            // Last shard to get there sends it and releases the others
+            barriers.remove(id);
+            send(Collections.singletonList(msg));
+            barrier.done.countDown();
+        } else {
+            barrier.done.await();
+        }
+    }
+
+    void send(List<Message> batch) {
+        Scrollback scrollback = server.getScrollback();
+        EventLog eventLog = server.getEventLog();
+        SearchIndex searchIndex = server.getSearchIndex();
+        Publisher publisher = server.getPublisher();
+        Metrics metrics = server.getMetrics();
+
+        // Collect the indexes of the messages each connection should receive
+        Map<WebSocket, BitSet> pending = new HashMap<>();
+        for(int i = 0; i < batch.size(); ++i) {
+            Message msg = batch.get(i);
+            Collection<WebSocket> webSockets;
+            if(!msg.getTarget().isPresent()) {
+                webSockets = server.connections();
+                if(publisher != null) {
+                    publisher.publish(msg);
+                }
+            } else {
+                // Messages are only serialized once we know someone gets them
+                String target = msg.getTarget().get();
+                metrics.channelMessage(target, msg.getSizeHint());
+                // Numbers the event, before the log and the index serialize it
+                webSockets = scrollback.append(target, msg, () -> {
+                    // Relays get the events in sequence order as well
+                    if(publisher != null) {
+                        publisher.publish(msg);
+                    }
+                    return server.getSubscribers(target, msg);
+                });
+                if(msg instanceof EventMessage) {
+                    if(eventLog != null) {
+                        eventLog.append(target, ((EventMessage) msg).getTime(), msg);
+                    }
+                    if(searchIndex != null) {
+                        searchIndex.append((EventMessage) msg);
+                    }
+                }
+            }
+
+            for(WebSocket conn : webSockets) {
+                pending.computeIfAbsent(conn, k -> new BitSet(batch.size())).set(i);
+            }
+        }
+        if(pending.isEmpty()) {
+            return;
+        }
+
+        // Connections listening to the same channels receive the exact same frame
+        Map<BitSet, List<WebSocket>> groups = new HashMap<>();
+        pending.forEach((conn, indexes) -> groups.computeIfAbsent(indexes, k -> new ArrayList<>()).add(conn));
+
+        BinaryPayload[] records = new BinaryPayload[batch.size()];
+        // Every record of the batch is written with the same symbols
+        SymbolTable.Generation symbols = server.getSymbols().current();
+        // Events don't keep their json, each of them is serialized once per batch
+        String[] jsons = new String[batch.size()];
+        for(Map.Entry<BitSet, List<WebSocket>> group : groups.entrySet()) {
+            BitSet indexes = group.getKey();
+            SharedFrame frame = null;
+            BinaryPayload binary = null;
+            for(WebSocket conn : group.getValue()) {
+                ClientConnection client = server.getClient(conn);
+                if(client == null) {
+                    continue;
+                }
+
+                if(client.isBinary()) {
+                    if(binary == null) {
+                        long start = System.nanoTime();
+                        binary = createBinaryPayload(batch, indexes, records, symbols);
+                        metrics.serialization.record(System.nanoTime() - start);
+                    }
+                    if(binary != BinaryPayload.NONE) {
+                        client.enqueue(server, binary.frame, binary.generation, binary.symbols);
+                        continue;
+                    }
+                }
+
+                if(frame == null) {
+                    long start = System.nanoTime();
+                    frame = new SharedFrame(createPayload(batch, indexes, jsons), oldestEventTime(batch, indexes));
+                    metrics.serialization.record(System.nanoTime() - start);
+                }
+                client.enqueue(server, frame);
+            }
+        }
+    }
+
+    /**
+     * Encodes the messages of a group as binary records, only events have a
+     * binary representation so other messages are always sent as text.
+     *
+     * @return {@link BinaryPayload#NONE} if any of the messages is not an event
+     */
+    private BinaryPayload createBinaryPayload(List<Message> batch, BitSet indexes, BinaryPayload[] records, SymbolTable.Generation generation) {
+        BinaryBuffer buffer = new BinaryBuffer();
+        int[] symbols = new int[indexes.cardinality() * 2];
+        int count = 0;
+        for(int i = indexes.nextSetBit(0); i >= 0; i = indexes.nextSetBit(i + 1)) {
+            if(!(batch.get(i) instanceof EventMessage)) {
+                return BinaryPayload.NONE;
+            }
+
+            if(records[i] == null) {
+                BinaryBuffer record = new BinaryBuffer();
+                int[] ids = ((EventMessage) batch.get(i)).writeBinary(record, generation);
+                byte[] bytes = record.toByteArray();
+                records[i] = new BinaryPayload(SharedFrame.binary(bytes, ((EventMessage) batch.get(i)).getTime()), generation, ids, bytes);
+            }
+            buffer.raw(records[i].bytes);
+            for(int id : records[i].symbols) {
+                symbols[count++] = id;
+            }
+        }
+
+        if(indexes.cardinality() == 1) {
+            return records[indexes.nextSetBit(0)];
+        }
+        byte[] bytes = buffer.toByteArray();
+        return new BinaryPayload(SharedFrame.binary(bytes, oldestEventTime(batch, indexes)), generation, symbols, bytes);
+    }
+
+    /**
+     * @return epoch milliseconds of the oldest event of a group, 0 if there is none
+     */
+    private static long oldestEventTime(List<Message> batch, BitSet indexes) {
+        long oldest = 0;
+        for(int i = indexes.nextSetBit(0); i >= 0; i = indexes.nextSetBit(i + 1)) {
+            if(batch.get(i) instanceof EventMessage) {
+                long time = ((EventMessage) batch.get(i)).getTime();
+                if(oldest == 0 || time < oldest) {
+                    oldest = time;
+                }
+            }
+        }
+        return oldest;
+    }
+
+    private static String createPayload(List<Message> batch, BitSet indexes, String[] jsons) {
+        if(indexes.cardinality() == 1) {
+            return json(batch, indexes.nextSetBit(0), jsons);
+        }
+
+        StringJoiner joiner = new StringJoiner(",", "[", "]");
+        for(int i = indexes.nextSetBit(0); i >= 0; i = indexes.nextSetBit(i + 1)) {
+            joiner.add(json(batch, i, jsons));
+        }
+        return joiner.toString();
+    }
+
+    private static String json(List<Message> batch, int index, String[] jsons) {
+        if(jsons[index] == null) {
+            jsons[index] = batch.get(index).toJson();
+        }
+        return jsons[index];
+    }
+
+    private class Shard implements Runnable {
+
+        private final RingBuffer<Message> queue;
+        private final Thread thread;
+        // Barriers read so far, only used by the thread of the shard
+        private long barriers = 0;
+
+        private Shard(int id) {
+            this.queue = new RingBuffer<>(options.dispatchQueueSize, options.dispatchWaitStrategy);
+            this.thread = new Thread(this, "dispatcher-" + id);
+        }
+
+        @Override
+        public void run() {
+            List<Message> batch = new ArrayList<>(Math.max(options.batchSize, 1));
+
+            while(running) {
+                try {
+                    collect(queue, batch);
+                    process(this, batch);
+                } catch(InterruptedException e) {
+                    break;
+                }
+                batch.clear();
+            }
+        }
+
+    }
+
+    private static class BinaryPayload {
+
+        private static final BinaryPayload NONE = new BinaryPayload(null, null, null, null);
+
+        private final SharedFrame frame;
+        private final SymbolTable.Generation generation;
+        private final int[] symbols;
+        private final byte[] bytes;
+
+        private BinaryPayload(SharedFrame frame, SymbolTable.Generation generation, int[] symbols, byte[] bytes) {
+            this.frame = frame;
+            this.generation = generation;
+            this.symbols = symbols;
+            this.bytes = bytes;
+        }
+
+    }
+
+    private static class Barrier {
+
+        private final AtomicInteger remaining;
+        private final CountDownLatch done;
+
+        private Barrier(int shards) {
+            this.remaining = new AtomicInteger(shards);
+            this.done = new CountDownLatch(1);
+        }
+
+    }
+
+}
@@ -0,0 +1,207 @@
+package be.bendem.irc.ircsockets.ws;
+
+import be.bendem.irc.ircsockets.ws.protocol.EventMessage;
+import be.bendem.irc.ircsockets.ws.protocol.Message;
+import be.bendem.irc.ircsockets.ws.protocol.Request;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Objects;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+/**
+ * Which events of a channel a connection wants, compiled from the filter of
+ * a listen request. Filters are compared by value so connections asking for
+ * the same thing share a subscriber group and the filter is evaluated once
+ * per event for all of them.
+ *
+ * Only events are filtered, other messages always pass.
+ */
+public final class Filter {
+
+    public static final Filter NONE = new Filter(EnumSet.allOf(EventMessage.Kind.class),
+        Collections.emptySet(), Collections.emptySet(), Collections.emptyList(), null);
+
+    private static final int MAX_REGEX_LENGTH = 256;
+    // Characters a regex can look at before it is considered as not matching
+    private static final int MAX_REGEX_STEPS = 64 * 1024;
+
+    private final EnumSet<EventMessage.Kind> kinds;
+    private final Set<String> includedNicks;
+    private final Set<String> excludedNicks;
+    private final List<String> keywords;
+    private final Pattern regex;
+
+    private Filter(EnumSet<EventMessage.Kind> kinds, Set<String> includedNicks, Set<String> excludedNicks, List<String> keywords, Pattern regex) {
+        this.kinds = kinds;
+        this.includedNicks = includedNicks;
+        this.excludedNicks = excludedNicks;
+        this.keywords = keywords;
+        this.regex = regex;
+    }
+
+    /**
+     * @throws IllegalArgumentException if a kind is unknown or the regex is invalid
+     */
+    public static Filter compile(Request.FilterSpec spec) {
+        if(spec == null) {
+            return NONE;
+        }
+
+        EnumSet<EventMessage.Kind> kinds;
+        if(spec.getKinds().isEmpty()) {
+            kinds = EnumSet.allOf(EventMessage.Kind.class);
+        } else {
+            kinds = EnumSet.noneOf(EventMessage.Kind.class);
+            for(String kind : spec.getKinds()) {
+                kinds.add(EventMessage.Kind.valueOf(kind.toUpperCase(Locale.ROOT)));
+            }
+        }
+
+        Pattern regex = null;
+        if(spec.getRegex() != null) {
+            if(spec.getRegex().length() > MAX_REGEX_LENGTH) {
+                throw new IllegalArgumentException("Regex too long");
+            }
+            regex = Pattern.compile(spec.getRegex(), Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE);
+        }
+
+        List<String> keywords = new ArrayList<>(lowerCase(spec.getKeywords()));
+        Collections.sort(keywords);
+
+        Filter filter = new Filter(kinds, lowerCase(spec.getIncludedNicks()), lowerCase(spec.getExcludedNicks()), keywords, regex);
+        return filter.equals(NONE) ? NONE : filter;
+    }
+
+    private static Set<String> lowerCase(List<String> values) {
+        Set<String> set = new HashSet<>();
+        values.forEach(value -> set.add(value.toLowerCase(Locale.ROOT)));
+        return set;
+    }
+
+    public boolean test(Message message) {
+        if(this == NONE || !(message instanceof EventMessage)) {
+            return true;
+        }
+
+        EventMessage event = (EventMessage) message;
+        if(!kinds.contains(event.getKind())) {
+            return false;
+        }
+
+        if(!includedNicks.isEmpty() || !excludedNicks.isEmpty()) {
+            String nick = event.getNick() == null ? null : event.getNick().toLowerCase(Locale.ROOT);
+            if(!includedNicks.isEmpty() && !includedNicks.contains(nick)) {
+                return false;
+            }
+            if(nick != null && excludedNicks.contains(nick)) {
+                return false;
+            }
+        }
+
+        if(!keywords.isEmpty()) {
+            String text = event.getMessage().toLowerCase(Locale.ROOT);
+            boolean found = false;
+            for(String keyword : keywords) {
+                if(text.contains(keyword)) {
+                    found = true;
+                    break;
+                }
+            }
+            if(!found) {
+                return false;
+            }
+        }
+
+        if(regex != null) {
+            try {
+                return regex.matcher(new BoundedCharSequence(event.getMessage(), MAX_REGEX_STEPS)).find();
+            } catch(BoundedCharSequence.ExhaustedException e) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if(this == o) {
+            return true;
+        }
+        if(!(o instanceof Filter)) {
+            return false;
+        }
+        Filter filter = (Filter) o;
+        return kinds.equals(filter.kinds)
+            && includedNicks.equals(filter.includedNicks)
+            && excludedNicks.equals(filter.excludedNicks)
+            && keywords.equals(filter.keywords)
+            && Objects.equals(regex == null ? null : regex.pattern(), filter.regex == null ? null : filter.regex.pattern());
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(kinds, includedNicks, excludedNicks, keywords, regex == null ? null : regex.pattern());
+    }
+
+    /**
+     * Text giving up after a number of reads so a pathological regex from a
+     * client can't hold up a dispatch thread.
+     */
+    private static final class BoundedCharSequence implements CharSequence {
+
+        private final String text;
+        private final int[] remaining;
+
+        private BoundedCharSequence(String text, int steps) {
+            this(text, new int[] { steps });
+        }
+
+        private BoundedCharSequence(String text, int[] remaining) {
+            this.text = text;
+            this.remaining = remaining;
+        }
+
+        @Override
+        public char charAt(int index) {
+            if(--remaining[0] < 0) {
+                throw ExhaustedException.INSTANCE;
+            }
+            return text.charAt(index);
+        }
+
+        @Override
+        public int length() {
+            return text.length();
+        }
+
+        @Override
+        public CharSequence subSequence(int start, int end) {
+            return new BoundedCharSequence(text.substring(start, end), remaining);
+        }
+
+        @Override
+        public String toString() {
+            return text;
+        }
+
+        private static final class ExhaustedException extends RuntimeException {
+
+            private static final long serialVersionUID = 1L;
+            // Without a stack trace nor suppressed exceptions, nothing differs between two of them
+            private static final ExhaustedException INSTANCE = new ExhaustedException();
+
+            private ExhaustedException() {
+                super(null, null, false, false);
+            }
+
+        }
+
+    }
+
+}
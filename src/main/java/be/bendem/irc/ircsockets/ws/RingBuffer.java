@@ -0,0 +1,224 @@
+package be.bendem.irc.ircsockets.ws;
+
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Bounded queue with any amount of producers and a single consumer. Slots
+ * are allocated upfront and claimed with a compare and set on the tail, each
+ * slot has a sequence telling whether it holds an element or is free (see
+ * Dmitry Vyukov's bounded mpmc queue), so offering never locks nor allocates.
+ *
+ * Only the consumer thread is allowed to take elements, it waits for them
+ * according to the {@link WaitStrategy} of the buffer.
+ */
+public class RingBuffer<T> {
+
+    public enum WaitStrategy {
+        // Parks the consumer, producers wake it up when it is waiting
+        BLOCKING,
+        // Yields the cpu between checks, lower latency at the cost of a busy core
+        YIELDING,
+        // Never gives up the cpu, lowest latency, one core per consumer
+        BUSY_SPIN
+    }
+
+    private static final int SPINS = 100;
+    private static final long PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private final Object[] elements;
+    private final AtomicLongArray sequences;
+    private final int mask;
+    private final WaitStrategy waitStrategy;
+    private final AtomicLong tail;
+    private final AtomicLong head;
+    private volatile Thread consumer;
+    private volatile boolean waiting = false;
+
+    /**
+     * @param capacity rounded up to the next power of two, at least 2
+     */
+    public RingBuffer(int capacity, WaitStrategy waitStrategy) {
+        if(capacity <= 0 || capacity > 1 << 30) {
+            throw new IllegalArgumentException("Invalid capacity " + capacity);
+        }
+
+        int size = Integer.highestOneBit(capacity);
+        if(size < capacity) {
+            size <<= 1;
+        }
+        // With a single slot, a full slot looks free to the next lap
+        size = Math.max(size, 2);
+        this.elements = new Object[size];
+        this.sequences = new AtomicLongArray(size);
+        for(int i = 0; i < size; ++i) {
+            sequences.set(i, i);
+        }
+        this.mask = size - 1;
+        this.waitStrategy = waitStrategy;
+        this.tail = new AtomicLong();
+        this.head = new AtomicLong();
+    }
+
+    /**
+     * @return false if the buffer is full
+     */
+    public boolean offer(T element) {
+        if(element == null) {
+            throw new NullPointerException();
+        }
+
+        long position = tail.get();
+        while(true) {
+            int index = (int) position & mask;
+            long difference = sequences.get(index) - position;
+            if(difference == 0) {
+                if(tail.compareAndSet(position, position + 1)) {
+                    elements[index] = element;
+                    // Publishes the element, a full fence so it can't be reordered
+                    // with reading the waiting flag below
+                    sequences.set(index, position + 1);
+                    break;
+                }
+                position = tail.get();
+            } else if(difference < 0) {
+                // The consumer hasn't freed this slot yet
+                return false;
+            } else {
+                // Another producer claimed it
+                position = tail.get();
+            }
+        }
+
+        if(waiting) {
+            LockSupport.unpark(consumer);
+        }
+        return true;
+    }
+
+    /**
+     * Offers until there is room, yielding in between.
+     */
+    public void put(T element) throws InterruptedException {
+        while(!offer(element)) {
+            if(Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+            Thread.yield();
+        }
+    }
+
+    /**
+     * Consumer only.
+     *
+     * @return null if the buffer is empty
+     */
+    @SuppressWarnings("unchecked")
+    public T poll() {
+        long position = head.get();
+        int index = (int) position & mask;
+        if(sequences.get(index) != position + 1) {
+            return null;
+        }
+
+        T element = (T) elements[index];
+        elements[index] = null;
+        // Frees the slot for the producers of the next lap
+        sequences.lazySet(index, position + elements.length);
+        head.lazySet(position + 1);
+        return element;
+    }
+
+    /**
+     * Consumer only, waits for an element.
+     */
+    public T take() throws InterruptedException {
+        return poll(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Consumer only, waits for an element at most timeout.
+     *
+     * @return null if nothing was offered in time
+     */
+    public T poll(long timeout, TimeUnit unit) throws InterruptedException {
+        T element = poll();
+        if(element != null) {
+            return element;
+        }
+
+        long nanos = unit.toNanos(timeout);
+        long deadline = nanos == Long.MAX_VALUE ? Long.MAX_VALUE : System.nanoTime() + nanos;
+        for(int idle = 0; ; ++idle) {
+            if(Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+            element = poll();
+            if(element != null) {
+                return element;
+            }
+
+            long remaining = deadline == Long.MAX_VALUE ? Long.MAX_VALUE : deadline - System.nanoTime();
+            if(remaining <= 0) {
+                return null;
+            }
+            idle(idle, remaining);
+        }
+    }
+
+    private void idle(int idle, long remaining) {
+        if(waitStrategy == WaitStrategy.BUSY_SPIN || idle < SPINS) {
+            return;
+        }
+        if(waitStrategy == WaitStrategy.YIELDING) {
+            Thread.yield();
+            return;
+        }
+
+        consumer = Thread.currentThread();
+        waiting = true;
+        // An element offered before the flag was visible doesn't unpark us
+        if(!isEmpty()) {
+            waiting = false;
+            return;
+        }
+        LockSupport.parkNanos(this, Math.min(remaining, PARK_NANOS));
+        waiting = false;
+    }
+
+    /**
+     * Consumer only, moves up to max available elements to the collection.
+     *
+     * @return the amount of elements moved
+     */
+    public int drainTo(Collection<? super T> collection, int max) {
+        int count = 0;
+        T element;
+        while(count < max && (element = poll()) != null) {
+            collection.add(element);
+            ++count;
+        }
+        return count;
+    }
+
+    public boolean isEmpty() {
+        long position = head.get();
+        return sequences.get((int) position & mask) != position + 1;
+    }
+
+    /**
+     * @return an approximation of the amount of elements in the buffer
+     */
+    public int size() {
+        long size = tail.get() - head.get();
+        return (int) Math.max(0, Math.min(size, elements.length));
+    }
+
+    public int capacity() {
+        return elements.length;
+    }
+
+}
@@ -0,0 +1,288 @@
+package be.bendem.irc.ircsockets.ws;
+
+import be.bendem.irc.ircsockets.ws.protocol.EventMessage;
+import be.bendem.irc.ircsockets.ws.protocol.GapMessage;
+import be.bendem.irc.ircsockets.ws.protocol.Message;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * Numbers the events of each channel and keeps the last ones so they can be
+ * replayed to new listeners or to reconnecting listeners which missed them.
+ * Bytes are counted as the estimated length of their json, events are only
+ * serialized when they are replayed.
+ *
+ * Sequences start over when the server restarts, the epoch tells runs apart.
+ * Relays keep the sequences and the epoch of their ingest node instead.
+ *
+ * Once the total bytes go over their bound, the oldest events of the channels
+ * which were appended to the longest ago are evicted first.
+ */
+public class Scrollback {
+
+    private final ServerOptions options;
+    private final Map<String, ChannelBuffer> buffers;
+    private final AtomicLong totalBytes;
+    // Channels holding events, least recently appended to first
+    private final LinkedHashMap<ChannelBuffer, Boolean> recent;
+    // Relays keep the sequences their ingest node gave to the events
+    private final boolean numberedUpstream;
+    private volatile String epoch;
+
+    public Scrollback(ServerOptions options) {
+        this.options = options;
+        this.buffers = new ConcurrentHashMap<>();
+        this.totalBytes = new AtomicLong();
+        this.recent = new LinkedHashMap<>(16, 0.75f, true);
+        this.numberedUpstream = options.upstream != null;
+        this.epoch = Long.toHexString(System.currentTimeMillis());
+    }
+
+    public boolean isEnabled() {
+        return options.scrollbackEvents > 0;
+    }
+
+    public String getEpoch() {
+        return epoch;
+    }
+
+    /**
+     * Takes the epoch of the ingest node a relay gets its events from,
+     * forgetting the events numbered in the previous one.
+     *
+     * @return whether the epoch changed
+     */
+    public boolean setEpoch(String epoch) {
+        if(epoch.equals(this.epoch)) {
+            return false;
+        }
+
+        this.epoch = epoch;
+        for(ChannelBuffer buffer : buffers.values()) {
+            synchronized(buffer) {
+                clear(buffer);
+                buffer.sequence = 0;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Numbers and stores an event and gets the connections it should be sent
+     * to without any subscription happening in between, so that a new
+     * listener either gets the event replayed or sent, never both nor none.
+     * Events have to be appended before anything serializes them. On a relay
+     * events keep the sequence their ingest node gave them and a gap clears
+     * the channel, resuming from before it gets a gap as well.
+     */
+    public <T> T append(String channel, Message message, Supplier<T> subscribers) {
+        ChannelBuffer buffer = getBuffer(channel);
+        T result;
+        synchronized(buffer) {
+            if(numberedUpstream && message instanceof GapMessage) {
+                clear(buffer);
+                buffer.sequence = ((GapMessage) message).getSequence();
+                return subscribers.get();
+            }
+
+            long sequence;
+            if(numberedUpstream && message instanceof EventMessage) {
+                sequence = ((EventMessage) message).getSequence();
+                if(sequence != buffer.sequence + 1) {
+                    // Some were missed, what's kept can't be resumed from anymore
+                    clear(buffer);
+                }
+                buffer.sequence = sequence;
+            } else {
+                sequence = ++buffer.sequence;
+                if(message instanceof EventMessage) {
+                    ((EventMessage) message).setSequence(sequence);
+                }
+            }
+
+            if(isEnabled()) {
+                Entry entry = new Entry(message, sequence);
+                buffer.events.add(entry);
+                buffer.bytes += entry.size;
+                totalBytes.addAndGet(entry.size);
+
+                while(buffer.events.size() > options.scrollbackEvents
+                        || buffer.bytes > options.scrollbackChannelBytes) {
+                    evict(buffer);
+                }
+            }
+
+            result = subscribers.get();
+        }
+
+        if(isEnabled()) {
+            // Outside of the channel, evicting takes other channels
+            synchronized(recent) {
+                recent.put(buffer, Boolean.TRUE);
+            }
+            evictOverTotal();
+        }
+        return result;
+    }
+
+    /**
+     * Evicts the oldest events of the least recently appended to channels
+     * until the total bytes are within their bound.
+     */
+    private void evictOverTotal() {
+        while(totalBytes.get() > options.scrollbackTotalBytes) {
+            ChannelBuffer victim;
+            synchronized(recent) {
+                if(recent.isEmpty()) {
+                    return;
+                }
+                victim = recent.keySet().iterator().next();
+            }
+
+            synchronized(victim) {
+                while(totalBytes.get() > options.scrollbackTotalBytes && !victim.events.isEmpty()) {
+                    evict(victim);
+                }
+            }
+
+            synchronized(recent) {
+                // An append puts the channel back after adding to it
+                if(victim.bytes == 0) {
+                    recent.remove(victim);
+                }
+            }
+        }
+    }
+
+    private void evict(ChannelBuffer buffer) {
+        Entry evicted = buffer.events.poll();
+        buffer.bytes -= evicted.size;
+        totalBytes.addAndGet(-evicted.size);
+    }
+
+    /**
+     * Returns the last (at most) count events of the channel, oldest first.
+     *
+     * @param subscription subscribes the connection and queues the events,
+     *     it runs with the channel held so no later event can be sent first
+     */
+    public List<Message> subscribe(String channel, int count, Consumer<List<Message>> subscription) {
+        ChannelBuffer buffer = getBuffer(channel);
+        synchronized(buffer) {
+            int replayed = Math.max(0, Math.min(count, buffer.events.size()));
+            List<Message> events = new ArrayList<>(replayed);
+            Iterator<Entry> it = buffer.events.descendingIterator();
+            while(events.size() < replayed) {
+                events.add(it.next().message);
+            }
+            Collections.reverse(events);
+            subscription.accept(events);
+            return events;
+        }
+    }
+
+    /**
+     * Returns the events of the channel numbered after sequence, oldest
+     * first.
+     *
+     * @param epoch the epoch sequence comes from
+     * @param subscription subscribes the connection and queues the catchup,
+     *     it runs with the channel held so no later event can be sent first
+     */
+    public Catchup resume(String channel, String epoch, long sequence, Consumer<Catchup> subscription) {
+        ChannelBuffer buffer = getBuffer(channel);
+        synchronized(buffer) {
+            long oldest = buffer.events.isEmpty() ? buffer.sequence + 1 : buffer.events.peekFirst().sequence;
+            if(!this.epoch.equals(epoch) || sequence > buffer.sequence || sequence + 1 < oldest) {
+                Catchup gap = new Catchup(null, buffer.sequence);
+                subscription.accept(gap);
+                return gap;
+            }
+
+            List<Message> events = new ArrayList<>((int) (buffer.sequence - sequence));
+            for(Entry entry : buffer.events) {
+                if(entry.sequence > sequence) {
+                    events.add(entry.message);
+                }
+            }
+            Catchup catchup = new Catchup(events, buffer.sequence);
+            subscription.accept(catchup);
+            return catchup;
+        }
+    }
+
+    private void clear(ChannelBuffer buffer) {
+        totalBytes.addAndGet(-buffer.bytes);
+        buffer.events.clear();
+        buffer.bytes = 0;
+    }
+
+    private ChannelBuffer getBuffer(String channel) {
+        return buffers.computeIfAbsent(channel, k -> new ChannelBuffer());
+    }
+
+    private static class ChannelBuffer {
+
+        private final Deque<Entry> events = new ArrayDeque<>();
+        // Read without the channel held when evicting over the total
+        private volatile long bytes = 0;
+        private long sequence = 0;
+
+    }
+
+    private static class Entry {
+
+        private final Message message;
+        private final long sequence;
+        // Kept so eviction subtracts what was added
+        private final int size;
+
+        private Entry(Message message, long sequence) {
+            this.message = message;
+            this.sequence = sequence;
+            this.size = message.getSizeHint();
+        }
+
+    }
+
+    /**
+     * What a reconnecting listener missed.
+     */
+    public static class Catchup {
+
+        private final List<Message> events;
+        private final long sequence;
+
+        private Catchup(List<Message> events, long sequence) {
+            this.events = events;
+            this.sequence = sequence;
+        }
+
+        /**
+         * @return the missed events, null if they are not all kept anymore
+         */
+        public List<Message> getEvents() {
+            return events;
+        }
+
+        /**
+         * @return the sequence of the last event of the channel when the listener subscribed
+         */
+        public long getSequence() {
+            return sequence;
+        }
+
+    }
+
+}
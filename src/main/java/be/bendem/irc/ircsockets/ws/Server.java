@@ -1,14 +1,31 @@
 package be.bendem.irc.ircsockets.ws;
 
 import be.bendem.irc.ircsockets.Application;
-import be.bendem.irc.ircsockets.ws.protocol.ChannelListMessage;
+import be.bendem.irc.ircsockets.ChannelList;
+import be.bendem.irc.ircsockets.metrics.Metrics;
+import be.bendem.irc.ircsockets.metrics.MetricsEndpoint;
+import be.bendem.irc.ircsockets.relay.Publisher;
+import be.bendem.irc.ircsockets.search.SearchIndex;
+import be.bendem.irc.ircsockets.store.EventLog;
+import be.bendem.irc.ircsockets.ws.protocol.BinaryBuffer;
 import be.bendem.irc.ircsockets.ws.protocol.ErrorMessage;
+import be.bendem.irc.ircsockets.ws.protocol.EventMessage;
+import be.bendem.irc.ircsockets.ws.protocol.GapMessage;
+import be.bendem.irc.ircsockets.ws.protocol.HistoryMessage;
 import be.bendem.irc.ircsockets.ws.protocol.Message;
-import com.google.gson.JsonElement;
-import com.google.gson.JsonObject;
-import com.google.gson.JsonSyntaxException;
+import be.bendem.irc.ircsockets.ws.protocol.Request;
+import be.bendem.irc.ircsockets.ws.protocol.SearchResultMessage;
+import be.bendem.irc.ircsockets.ws.protocol.SessionMessage;
+import be.bendem.irc.ircsockets.ws.protocol.StatsMessage;
+import be.bendem.irc.ircsockets.ws.protocol.SymbolTable;
 import org.java_websocket.WebSocket;
+import org.java_websocket.drafts.Draft;
+import org.java_websocket.drafts.Draft_10;
+import org.java_websocket.drafts.Draft_75;
+import org.java_websocket.drafts.Draft_76;
+import org.java_websocket.exceptions.InvalidDataException;
 import org.java_websocket.handshake.ClientHandshake;
+import org.java_websocket.handshake.ServerHandshakeBuilder;
 import org.java_websocket.server.DefaultSSLWebSocketServerFactory;
 import org.java_websocket.server.WebSocketServer;
 
@@ -18,12 +35,19 @@ import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.security.GeneralSecurityException;
 import java.security.KeyStore;
-import java.util.Collections;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
 
 import javax.net.ssl.KeyManagerFactory;
 import javax.net.ssl.SSLContext;
@@ -31,55 +55,209 @@ import javax.net.ssl.TrustManagerFactory;
 
 public class Server extends WebSocketServer {
 
+    private static final long FLUSH_INTERVAL = 50;
+    private static final long RATE_INTERVAL = 10;
+    private static final int DEFAULT_HISTORY_PAGE = 100;
+    private static final int MAX_HISTORY_PAGE = 1000;
+    private static final String PROTOCOL_HEADER = "Sec-WebSocket-Protocol";
+    private static final String JSON_PROTOCOL = "ircsockets.json.v1";
+    // Version of the channel list a reconnecting client already has, passed in the query string
+    private static final String CHANNELS_VERSION_PARAMETER = "channels";
+
     private final Application app;
-    private final Map<String, Set<WebSocket>> channelWebSocketMap;
-    private final Thread thread;
+    private final ServerOptions options;
+    private final Metrics metrics;
+    private final SubscriptionRegistry subscriptions;
+    private final SymbolTable symbols;
+    private final Map<WebSocket, ClientConnection> clients;
+    private final Scrollback scrollback;
+    private volatile SharedFrame sessionFrame;
+    private final EventLog eventLog;
+    private final SearchIndex searchIndex;
+    // Separate so slow searches don't hold up history pages
+    private final ExecutorService historyExecutor;
+    private final ExecutorService searchExecutor;
+    private final Set<ClientConnection> backlogged;
+    private final ScheduledExecutorService flusher;
+    private final Dispatcher dispatcher;
+    private final MetricsEndpoint metricsEndpoint;
+    private final Publisher publisher;
     private volatile boolean running = true;
 
-    public Server(Application app, BlockingQueue<Message> messageQueue, int port, boolean wsSsl) {
-        super(new InetSocketAddress(port), 2, Collections.emptyList(), new CopyOnWriteArraySet<>());
+    public Server(Application app, int port, boolean wsSsl, ServerOptions options) {
+        // Same drafts as the library's defaults with permessage-deflate support added to rfc 6455
+        super(
+            new InetSocketAddress(port), 2,
+            Arrays.asList(new ServerDraft(options), new Draft_10(), new Draft_76(), new Draft_75()),
+            ConcurrentHashMap.newKeySet()
+        );
         this.app = app;
-        this.channelWebSocketMap = new ConcurrentHashMap<>();
+        this.options = options;
+        this.metrics = new Metrics();
+        this.subscriptions = new SubscriptionRegistry();
+        this.symbols = new SymbolTable(options.binarySymbols);
+        this.clients = new ConcurrentHashMap<>();
+        this.scrollback = new Scrollback(options);
+        this.sessionFrame = new SharedFrame(new SessionMessage(scrollback.getEpoch()).toJson());
+        this.backlogged = ConcurrentHashMap.newKeySet();
 
         if(wsSsl) {
             try {
                 setWebSocketFactory(new DefaultSSLWebSocketServerFactory(setupSsl()));
             } catch(GeneralSecurityException | IOException e) {
-                app.getClient().shutdown();
+                app.shutdownClients();
+                throw new RuntimeException(e);
+            }
+        }
+
+        if(options.storeDirectory != null) {
+            try {
+                eventLog = new EventLog(
+                    Paths.get(options.storeDirectory),
+                    options.storeSegmentBytes, options.storeSegmentAge,
+                    options.storeRetention, options.storeMaxBytes,
+                    options.storeQueueSize
+                );
+            } catch(IOException e) {
+                app.shutdownClients();
+                throw new RuntimeException(e);
+            }
+        } else {
+            eventLog = null;
+        }
+        if(options.relayPort > 0) {
+            try {
+                publisher = new Publisher(options.relayHost, options.relayPort, scrollback, () -> app.getChannelList().getSnapshot().getMessage());
+            } catch(IOException e) {
+                app.shutdownClients();
                 throw new RuntimeException(e);
             }
+        } else {
+            publisher = null;
         }
+        searchIndex = options.searchMaxBytes > 0 ? new SearchIndex(options.searchMaxBytes, options.searchQueueSize) : null;
+        historyExecutor = Executors.newSingleThreadExecutor();
+        searchExecutor = Executors.newSingleThreadExecutor();
 
         start();
 
-        thread = new Thread(() -> {
-            Message msg;
-            Set<WebSocket> webSockets;
+        dispatcher = new Dispatcher(this, options);
+        dispatcher.start();
 
-            while(running) {
-                // TODO Collect and send all at once?
-                try {
-                    msg = messageQueue.take();
-                } catch(InterruptedException e) {
-                    break;
-                }
-                String json = msg.toJson();
+        // Connections which couldn't send everything when their messages were dispatched
+        // are retried periodically, the library doesn't tell us when it wrote its queue.
+        flusher = Executors.newSingleThreadScheduledExecutor();
+        flusher.scheduleWithFixedDelay(
+            () -> backlogged.forEach(client -> client.flush(this)),
+            FLUSH_INTERVAL, FLUSH_INTERVAL, TimeUnit.MILLISECONDS
+        );
+        flusher.scheduleAtFixedRate(metrics::sample, RATE_INTERVAL, RATE_INTERVAL, TimeUnit.SECONDS);
 
-                if(msg.getTarget().isPresent()) {
-                    // Send to target channel
-                    webSockets = channelWebSocketMap.getOrDefault(msg.getTarget().get(), Collections.emptySet());
-                    if(webSockets.isEmpty()) {
-                        continue;
-                    }
+        registerGauges();
+        if(options.metricsPort > 0) {
+            MetricsEndpoint endpoint = null;
+            try {
+                endpoint = new MetricsEndpoint(options.metricsHost, options.metricsPort, metrics);
+            } catch(IOException e) {
+                System.err.println("[ERROR] Could not start the metrics endpoint");
+                e.printStackTrace();
+            }
+            metricsEndpoint = endpoint;
+        } else {
+            metricsEndpoint = null;
+        }
+    }
 
-                    webSockets.forEach(conn -> conn.send(json));
-                } else {
-                    // Send everywhere
-                    connections().forEach(conn -> conn.send(json));
-                }
+    private void registerGauges() {
+        metrics.gauge("dispatch_queue_depth", "Messages waiting to be dispatched", dispatcher::getQueueDepth);
+        metrics.gauge("connections", "Open websocket connections", clients::size);
+        metrics.gauge("backlogged_connections", "Connections with frames left in their queue", backlogged::size);
+        metrics.gauge("queued_frames", "Frames waiting in the queues of every connection",
+            () -> clients.values().stream().mapToLong(ClientConnection::getQueued).sum());
+        metrics.gauge("queued_bytes", "Bytes waiting in the queues of every connection",
+            () -> clients.values().stream().mapToLong(ClientConnection::getQueuedBytes).sum());
+        metrics.gauge("max_queued_bytes", "Bytes waiting in the longest connection queue",
+            () -> clients.values().stream().mapToLong(ClientConnection::getQueuedBytes).max().orElse(0));
+        metrics.gauge("library_queued_frames", "Frames handed to the websocket library but not written yet",
+            () -> clients.values().stream().mapToLong(ClientConnection::libraryBacklog).sum());
+        if(searchIndex != null) {
+            metrics.gauge("search_indexed_events", "Events which can be searched", searchIndex::getDocuments);
+            metrics.gauge("search_index_bytes", "Estimated memory used by the search index", searchIndex::getBytes);
+            metrics.gauge("search_dropped_events", "Events not indexed because the indexer couldn't keep up", searchIndex::getDropped);
+            metrics.gauge("search_failed_events", "Events not indexed because they couldn't be read", searchIndex::getFailed);
+            metrics.gauge("search_evicted_events", "Events forgotten to keep the search index within its budget", searchIndex::getEvicted);
+        }
+        if(app != null) {
+            metrics.gauge("ingest_queue_depth", "Irc events waiting to be turned into messages", app.getIngest()::getQueueDepth);
+            metrics.gauge("ingest_dropped_events", "Irc events dropped because the queue of their network was full", app.getIngest()::getDropped);
+            metrics.gauge("ingest_waits", "Irc events which had to wait for room in the queue of their network", app.getIngest()::getWaits);
+        }
+        if(publisher != null) {
+            metrics.gauge("relays", "Relays connected to this ingest node", publisher::getRelays);
+        }
+        metrics.gauge("symbols", "Symbols defined for binary connections", symbols::size);
+        metrics.gauge("interned_symbols", "Channels and nicks shared by the events kept in memory", EventMessage::getInternedSymbols);
+    }
+
+    public void dispatch(Message message) {
+        dispatcher.dispatch(message);
+    }
+
+    /**
+     * @return the connections listening to the channel whose filter lets the message through
+     */
+    List<WebSocket> getSubscribers(String channel, Message message) {
+        List<WebSocket> subscribers = new ArrayList<>();
+        subscriptions.getGroups(channel).forEach((filter, group) -> {
+            if(filter.test(message)) {
+                subscribers.addAll(group);
             }
         });
-        thread.start();
+        return subscribers;
+    }
+
+    /**
+     * @return whether any connection listens to the channel
+     */
+    public boolean hasSubscribers(String channel) {
+        return !subscriptions.getGroups(channel).isEmpty();
+    }
+
+    /**
+     * Takes the epoch of the ingest node this relay gets its events from.
+     */
+    public void setEpoch(String epoch) {
+        if(scrollback.setEpoch(epoch)) {
+            sessionFrame = new SharedFrame(new SessionMessage(epoch).toJson());
+        }
+    }
+
+    SymbolTable getSymbols() {
+        return symbols;
+    }
+
+    EventLog getEventLog() {
+        return eventLog;
+    }
+
+    SearchIndex getSearchIndex() {
+        return searchIndex;
+    }
+
+    Publisher getPublisher() {
+        return publisher;
+    }
+
+    Scrollback getScrollback() {
+        return scrollback;
+    }
+
+    Metrics getMetrics() {
+        return metrics;
+    }
+
+    ClientConnection getClient(WebSocket conn) {
+        return clients.get(conn);
     }
 
     private SSLContext setupSsl() throws GeneralSecurityException, IOException {
@@ -107,12 +285,24 @@ public class Server extends WebSocketServer {
     public void kill() {
         running = false;
 
-        try {
-            System.out.println("[DEBUG] Joining sending thread");
-            thread.interrupt();
-            thread.join();
-        } catch(InterruptedException e) {
-            e.printStackTrace();
+        System.out.println("[DEBUG] Joining dispatcher threads");
+        dispatcher.kill();
+        flusher.shutdownNow();
+        if(metricsEndpoint != null) {
+            metricsEndpoint.kill();
+        }
+        historyExecutor.shutdownNow();
+        searchExecutor.shutdownNow();
+        if(publisher != null) {
+            System.out.println("[DEBUG] Disconnecting relays");
+            publisher.kill();
+        }
+        if(eventLog != null) {
+            System.out.println("[DEBUG] Closing event log");
+            eventLog.kill();
+        }
+        if(searchIndex != null) {
+            searchIndex.kill();
         }
 
         try {
@@ -127,52 +317,308 @@ public class Server extends WebSocketServer {
         System.out.println("[DEBUG] Stopped");
     }
 
+    @Override
+    public ServerHandshakeBuilder onWebsocketHandshakeReceivedAsServer(WebSocket conn, Draft draft, ClientHandshake request) throws InvalidDataException {
+        ServerHandshakeBuilder builder = super.onWebsocketHandshakeReceivedAsServer(conn, draft, request);
+        String protocol = negotiateProtocol(request);
+        if(protocol != null) {
+            builder.put(PROTOCOL_HEADER, protocol);
+        }
+        return builder;
+    }
+
+    /**
+     * @return the first protocol asked for by the client this server speaks
+     */
+    private static String negotiateProtocol(ClientHandshake request) {
+        if(!request.hasFieldValue(PROTOCOL_HEADER)) {
+            return null;
+        }
+
+        for(String protocol : request.getFieldValue(PROTOCOL_HEADER).split(",")) {
+            protocol = protocol.trim();
+            if(protocol.equals(BinaryBuffer.PROTOCOL) || protocol.equals(JSON_PROTOCOL)) {
+                return protocol;
+            }
+        }
+        return null;
+    }
+
     @Override
     public void onOpen(WebSocket conn, ClientHandshake handshake) {
+        boolean binary = BinaryBuffer.PROTOCOL.equals(negotiateProtocol(handshake));
         System.out.printf(
-            "[DEBUG] New connection from %s%n",
+            "[DEBUG] New %s connection from %s%n",
+            binary ? "binary" : "json",
             conn.getRemoteSocketAddress().getHostString()
         );
 
-        conn.send(new ChannelListMessage(app.getClient()).toJson());
+        metrics.connectionsOpened.increment();
+        ClientConnection client = clients.get(conn);
+        if(client == null) {
+            return;
+        }
+        client.setBinary(binary);
+
+        // Queued like every other frame, deflating shares a context so frames
+        // have to be compressed in the order they are sent
+        client.enqueue(this, sessionFrame);
+        // Clients reconnecting with the list they already have don't need it again
+        ChannelList.Snapshot channels = app.getChannelList().getSnapshot();
+        if(!channels.getVersion().equals(getQueryParameter(handshake, CHANNELS_VERSION_PARAMETER))) {
+            client.enqueue(this, channels.getFrame());
+        }
+    }
+
+    private static String getQueryParameter(ClientHandshake handshake, String name) {
+        String resource = handshake.getResourceDescriptor();
+        int query = resource == null ? -1 : resource.indexOf('?');
+        if(query < 0) {
+            return null;
+        }
+
+        for(String parameter : resource.substring(query + 1).split("&")) {
+            int equals = parameter.indexOf('=');
+            if(equals > 0 && parameter.substring(0, equals).equals(name)) {
+                return parameter.substring(equals + 1);
+            }
+        }
+        return null;
     }
 
     @Override
     public void onClose(WebSocket conn, int code, String reason, boolean remote) {
+        ClientConnection client = clients.remove(conn);
+        if(client != null) {
+            client.close();
+        }
+        metrics.connectionsClosed.increment();
+        if(conn.getDraft() instanceof ServerDraft) {
+            ((ServerDraft) conn.getDraft()).release();
+        }
+
         System.out.printf(
-            "[DEBUG] Closing connection from %s (%d: %s)%n",
+            "[DEBUG] Closing connection from %s (%d: %s) %s%n",
             conn.getRemoteSocketAddress().getHostString(),
-            code, reason
+            code, reason, client
         );
 
-        channelWebSocketMap.forEach((k, set) -> set.remove(conn));
+        subscriptions.remove(conn);
     }
 
     @Override
     public void onMessage(WebSocket conn, String message) {
-        JsonObject obj;
+        Request request;
         try {
-            obj = Application.GSON.fromJson(message, JsonObject.class);
-        } catch(JsonSyntaxException e) {
-            conn.send(new ErrorMessage("Invalid json string").toJson());
+            request = Request.parse(message);
+        } catch(IOException | IllegalStateException | NumberFormatException e) {
+            reply(conn, new ErrorMessage("Invalid request"));
             return;
         }
 
-        switch(obj.get("_type").getAsString()) {
+        switch(request.getType()) {
             case "listen_request":
-                channelWebSocketMap.forEach((k, set) -> set.remove(conn));
-                for(JsonElement channel : obj.get("channels").getAsJsonArray()) {
-                    channelWebSocketMap
-                        .computeIfAbsent(channel.getAsString(), k -> new CopyOnWriteArraySet<>())
-                            .add(conn);
+            case "subscribe":
+                Map<String, Filter> filters;
+                try {
+                    filters = compileFilters(request, request.getChannels());
+                } catch(IllegalArgumentException e) {
+                    reply(conn, new ErrorMessage("Invalid filter"));
+                    return;
+                }
+                if(request.getType().equals("listen_request")) {
+                    for(String channel : subscriptions.getChannels(conn)) {
+                        if(!filters.containsKey(channel)) {
+                            subscriptions.unsubscribe(conn, channel);
+                        }
+                    }
+                }
+                filters.forEach((channel, filter) -> listen(conn, channel, filter, request.getReplay()));
+                break;
+            case "resume_request":
+                Map<String, Filter> resumed;
+                try {
+                    resumed = compileFilters(request, request.getSequences().keySet());
+                } catch(IllegalArgumentException e) {
+                    reply(conn, new ErrorMessage("Invalid filter"));
+                    return;
                 }
+                resumed.forEach((channel, filter) ->
+                    resume(conn, channel, filter, request.getEpoch(), request.getSequences().get(channel)));
+                break;
+            case "unsubscribe":
+                request.getChannels().forEach(channel -> subscriptions.unsubscribe(conn, channel));
+                break;
+            case "history_request":
+                if(request.getChannel() == null) {
+                    reply(conn, new ErrorMessage("Missing channel"));
+                    return;
+                }
+                sendHistory(
+                    conn,
+                    request.getChannel(),
+                    request.getFrom(0),
+                    request.getTo(System.currentTimeMillis()),
+                    request.getPage(DEFAULT_HISTORY_PAGE),
+                    request.getCursor()
+                );
+                break;
+            case "search_request":
+                search(conn, request);
+                break;
+            case "stats_request":
+                ClientConnection client = clients.get(conn);
+                reply(conn, new StatsMessage(metrics, client == null ? null : client.getStats()));
                 break;
             default:
-                System.err.println("[WARN] Unhandled _type " + obj.get("_type").getAsString());
+                System.err.println("[WARN] Unhandled _type " + request.getType());
                 break;
         }
     }
 
+    private static Map<String, Filter> compileFilters(Request request, Collection<String> channels) {
+        Map<String, Filter> filters = new LinkedHashMap<>();
+        for(String channel : channels) {
+            filters.put(channel, Filter.compile(request.getFilter(channel)));
+        }
+        return filters;
+    }
+
+    private void listen(WebSocket conn, String channel, Filter filter, int replay) {
+        if(subscriptions.isSubscribed(conn, channel)) {
+            // Already listening, only the filter can change, nothing to replay
+            subscriptions.subscribe(conn, channel, filter);
+            return;
+        }
+
+        scrollback.subscribe(channel, replay, events -> {
+            subscriptions.subscribe(conn, channel, filter);
+            replay(conn, events, filter);
+        });
+        channelWanted(channel);
+    }
+
+    /**
+     * Subscribes a reconnecting connection to a channel and sends it the
+     * events it missed, or a gap if they are not all kept anymore.
+     */
+    private void resume(WebSocket conn, String channel, Filter filter, String epoch, long sequence) {
+        if(subscriptions.isSubscribed(conn, channel)) {
+            subscriptions.subscribe(conn, channel, filter);
+            return;
+        }
+
+        metrics.resumes.increment();
+        scrollback.resume(channel, epoch, sequence, catchup -> {
+            subscriptions.subscribe(conn, channel, filter);
+            if(catchup.getEvents() != null) {
+                replay(conn, catchup.getEvents(), filter);
+                return;
+            }
+
+            ClientConnection client = clients.get(conn);
+            if(client != null) {
+                metrics.resumeGaps.increment();
+                client.enqueue(this, new SharedFrame(new GapMessage(channel, catchup.getSequence()).toJson()));
+            }
+        });
+        channelWanted(channel);
+    }
+
+    private void channelWanted(String channel) {
+        // Benchmarks run without an application
+        if(app != null) {
+            app.channelWanted(channel);
+        }
+    }
+
+    private void replay(WebSocket conn, List<Message> replayed, Filter filter) {
+        List<Message> events = replayed.stream()
+            .filter(filter::test)
+            .collect(Collectors.toList());
+        ClientConnection client = clients.get(conn);
+        if(events.isEmpty() || client == null) {
+            return;
+        }
+
+        client.enqueue(this, new SharedFrame(events.size() == 1
+            ? events.get(0).toJson()
+            : events.stream().map(Message::toJson).collect(Collectors.joining(",", "[", "]"))));
+    }
+
+    /**
+     * Queues a reply behind the frames already waiting for the connection.
+     */
+    private void reply(WebSocket conn, Message message) {
+        ClientConnection client = clients.get(conn);
+        if(client != null) {
+            client.enqueue(this, new SharedFrame(message.toJson()));
+        }
+    }
+
+    /**
+     * Sends a single page, the client asks for the next one with its cursor.
+     */
+    private void sendHistory(WebSocket conn, String channel, long from, long to, int pageSize, String cursor) {
+        ClientConnection client = clients.get(conn);
+        if(client == null) {
+            return;
+        }
+        if(eventLog == null) {
+            reply(conn, new ErrorMessage("History is not available"));
+            return;
+        }
+
+        int size = Math.max(1, Math.min(pageSize, MAX_HISTORY_PAGE));
+        historyExecutor.execute(() -> {
+            EventLog.Page page;
+            try {
+                page = eventLog.history(channel, from, to, size, cursor);
+            } catch(IllegalArgumentException e) {
+                client.enqueue(this, new SharedFrame(new ErrorMessage("Invalid cursor").toJson()));
+                return;
+            } catch(RuntimeException e) {
+                System.err.println("[ERROR] Could not read the history of " + channel);
+                e.printStackTrace();
+                client.enqueue(this, new SharedFrame(new ErrorMessage("History is not available").toJson()));
+                return;
+            }
+            client.enqueue(this, new SharedFrame(new HistoryMessage(channel, page.getEvents(), page.getNext()).toJson()));
+        });
+    }
+
+    private void search(WebSocket conn, Request request) {
+        ClientConnection client = clients.get(conn);
+        if(client == null) {
+            return;
+        }
+        if(searchIndex == null) {
+            reply(conn, new ErrorMessage("Search is not available"));
+            return;
+        }
+        if(request.getQuery() == null) {
+            reply(conn, new ErrorMessage("Missing query"));
+            return;
+        }
+
+        List<String> terms;
+        try {
+            terms = SearchIndex.parse(request.getQuery(), request.getChannel());
+        } catch(IllegalArgumentException e) {
+            reply(conn, new ErrorMessage("Invalid query"));
+            return;
+        }
+
+        long from = request.getFrom(0);
+        long to = request.getTo(Long.MAX_VALUE);
+        long before = request.getBefore(Long.MAX_VALUE);
+        int size = Math.max(1, Math.min(request.getPage(DEFAULT_HISTORY_PAGE), MAX_HISTORY_PAGE));
+        searchExecutor.execute(() -> {
+            SearchIndex.Result result = searchIndex.search(terms, from, to, before, size);
+            client.enqueue(this, new SharedFrame(new SearchResultMessage(request.getQuery(), result.getEvents(), result.getNext()).toJson()));
+        });
+    }
+
     @Override
     public void onError(WebSocket conn, Exception ex) {
         System.err.println("[ERROR] Connection error");
@@ -181,7 +627,7 @@ public class Server extends WebSocketServer {
         if(conn == null) {
             return;
         }
-        channelWebSocketMap.forEach((k, set) -> set.remove(conn));
+        subscriptions.remove(conn);
 
         if(!conn.isClosing() && !conn.isClosed()) {
             conn.close();
@@ -190,7 +636,11 @@ public class Server extends WebSocketServer {
 
     @Override
     protected boolean addConnection(WebSocket ws) {
-        return running && connections().add(ws);
+        if(running && connections().add(ws)) {
+            clients.put(ws, new ClientConnection(ws, options, metrics, backlogged));
+            return true;
+        }
+        return false;
     }
 
     @Override
@@ -0,0 +1,312 @@
+package be.bendem.irc.ircsockets.ws;
+
+import org.java_websocket.drafts.Draft;
+import org.java_websocket.drafts.Draft_17;
+import org.java_websocket.exceptions.InvalidDataException;
+import org.java_websocket.exceptions.InvalidFrameException;
+import org.java_websocket.exceptions.InvalidHandshakeException;
+import org.java_websocket.framing.CloseFrame;
+import org.java_websocket.framing.FrameBuilder;
+import org.java_websocket.framing.Framedata;
+import org.java_websocket.handshake.ClientHandshake;
+import org.java_websocket.handshake.HandshakeBuilder;
+import org.java_websocket.handshake.ServerHandshakeBuilder;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * rfc 6455 draft negotiating permessage-deflate (rfc 7692). One instance is
+ * copied for each connection and holds its compression state.
+ *
+ * java.util.zip can't deflate with less than a 15 bits window, offers asking
+ * the server to use a smaller one are declined.
+ */
+public class ServerDraft extends Draft_17 {
+
+    private static final String EXTENSIONS_HEADER = "Sec-WebSocket-Extensions";
+    private static final String PERMESSAGE_DEFLATE = "permessage-deflate";
+    private static final byte RSV1 = 0x40;
+    private static final byte[] TAIL = { 0, 0, (byte) 0xFF, (byte) 0xFF };
+
+    private static final ThreadLocal<Deflater> SHARED_DEFLATER = new ThreadLocal<>();
+
+    private final ServerOptions options;
+    private boolean negotiated = false;
+    private boolean serverContextTakeover;
+    private boolean clientContextTakeover;
+    private Deflater deflater;
+    private Inflater inflater;
+    private boolean inflating = false;
+    // Bytes inflated so far for the current message
+    private int inflated = 0;
+
+    public ServerDraft(ServerOptions options) {
+        this.options = options;
+    }
+
+    @Override
+    public Draft copyInstance() {
+        return new ServerDraft(options);
+    }
+
+    @Override
+    public HandshakeBuilder postProcessHandshakeResponseAsServer(ClientHandshake request, ServerHandshakeBuilder response) throws InvalidHandshakeException {
+        HandshakeBuilder builder = super.postProcessHandshakeResponseAsServer(request, response);
+        if(!options.deflate || !request.hasFieldValue(EXTENSIONS_HEADER)) {
+            return builder;
+        }
+
+        for(String offer : request.getFieldValue(EXTENSIONS_HEADER).split(",")) {
+            String accepted = negotiate(offer);
+            if(accepted != null) {
+                builder.put(EXTENSIONS_HEADER, accepted);
+                negotiated = true;
+                inflater = new Inflater(true);
+                if(serverContextTakeover) {
+                    deflater = new Deflater(options.deflateLevel, true);
+                }
+                break;
+            }
+        }
+        return builder;
+    }
+
+    /**
+     * @return the response to the offer or null if it can't be accepted
+     */
+    private String negotiate(String offer) {
+        String[] params = offer.split(";");
+        if(!params[0].trim().equalsIgnoreCase(PERMESSAGE_DEFLATE)) {
+            return null;
+        }
+
+        boolean serverTakeover = options.deflateServerContextTakeover;
+        boolean serverWindowBits = false;
+        boolean clientWindowBits = false;
+        int clientMaxWindowBits = 15;
+        for(int i = 1; i < params.length; ++i) {
+            String[] param = params[i].split("=", 2);
+            String name = param[0].trim();
+            String value = param.length == 2 ? param[1].trim().replace("\"", "") : null;
+            switch(name) {
+                case "server_no_context_takeover":
+                    serverTakeover = false;
+                    break;
+                case "client_no_context_takeover":
+                    break;
+                case "server_max_window_bits":
+                    if(value == null || parseWindowBits(value) != 15) {
+                        return null;
+                    }
+                    serverWindowBits = true;
+                    break;
+                case "client_max_window_bits":
+                    clientWindowBits = true;
+                    if(value != null) {
+                        clientMaxWindowBits = parseWindowBits(value);
+                        if(clientMaxWindowBits < 0) {
+                            return null;
+                        }
+                    }
+                    break;
+                default:
+                    return null;
+            }
+        }
+
+        serverContextTakeover = serverTakeover;
+        clientContextTakeover = options.deflateClientContextTakeover;
+
+        StringBuilder response = new StringBuilder(PERMESSAGE_DEFLATE);
+        if(!serverContextTakeover) {
+            response.append("; server_no_context_takeover");
+        }
+        if(!clientContextTakeover) {
+            response.append("; client_no_context_takeover");
+        }
+        // An accepted parameter has to be in the response
+        if(serverWindowBits) {
+            response.append("; server_max_window_bits=15");
+        }
+        // Can only be sent if the client said it supports it
+        int windowBits = Math.min(clientMaxWindowBits, options.deflateClientWindowBits);
+        if(clientWindowBits && windowBits < 15) {
+            response.append("; client_max_window_bits=").append(windowBits);
+        }
+        return response.toString();
+    }
+
+    private static int parseWindowBits(String value) {
+        try {
+            int bits = Integer.parseInt(value);
+            return bits >= 8 && bits <= 15 ? bits : -1;
+        } catch(NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    public boolean isDeflating() {
+        return negotiated;
+    }
+
+    /**
+     * Whether each message is compressed on its own, compressed frames can
+     * then be shared between connections.
+     */
+    public boolean isSharingFrames() {
+        return !serverContextTakeover;
+    }
+
+    public int getMinSize() {
+        return options.deflateMinSize;
+    }
+
+    /**
+     * Compresses a message with the context of this connection.
+     */
+    public synchronized byte[] deflate(byte[] payload) {
+        if(deflater == null) {
+            throw new IllegalStateException("No compression context");
+        }
+        return deflate(deflater, payload);
+    }
+
+    /**
+     * Compresses a message on its own so the result can be sent to any
+     * connection without context takeover.
+     */
+    public byte[] deflateShared(byte[] payload) {
+        Deflater deflater = SHARED_DEFLATER.get();
+        if(deflater == null) {
+            deflater = new Deflater(options.deflateLevel, true);
+            SHARED_DEFLATER.set(deflater);
+        }
+        byte[] compressed = deflate(deflater, payload);
+        deflater.reset();
+        return compressed;
+    }
+
+    private static byte[] deflate(Deflater deflater, byte[] payload) {
+        deflater.setInput(payload);
+        ByteArrayOutputStream out = new ByteArrayOutputStream(payload.length / 2 + 16);
+        byte[] chunk = new byte[Math.min(Math.max(payload.length, 64), 64 * 1024)];
+        int length;
+        do {
+            length = deflater.deflate(chunk, 0, chunk.length, Deflater.SYNC_FLUSH);
+            out.write(chunk, 0, length);
+        } while(length == chunk.length);
+
+        // The sync flush ends with an empty block the receiver adds back
+        byte[] compressed = out.toByteArray();
+        if(compressed.length <= TAIL.length) {
+            return new byte[] { 0 };
+        }
+        return Arrays.copyOf(compressed, compressed.length - TAIL.length);
+    }
+
+    /**
+     * @return the header of a final frame with the rsv1 bit marking compressed messages
+     */
+    static byte compressedHeader(byte header) {
+        return (byte) (header | RSV1);
+    }
+
+    @Override
+    public Framedata translateSingleFrame(ByteBuffer buffer) throws InvalidDataException {
+        int start = buffer.position();
+        byte header = buffer.remaining() > 0 ? buffer.get(start) : 0;
+        boolean compressed = negotiated && (header & RSV1) != 0;
+        if(compressed) {
+            // Draft_10 refuses any rsv bit
+            buffer.put(start, (byte) (header & ~RSV1));
+        }
+
+        Framedata frame;
+        try {
+            frame = super.translateSingleFrame(buffer);
+        } catch(Throwable t) {
+            // Incomplete frames are read again once the rest arrives
+            buffer.put(start, header);
+            throw ServerDraft.<InvalidDataException>rethrow(t);
+        }
+
+        Framedata.Opcode opcode = frame.getOpcode();
+        boolean control = opcode == Framedata.Opcode.PING || opcode == Framedata.Opcode.PONG || opcode == Framedata.Opcode.CLOSING;
+        if(compressed && (control || opcode == Framedata.Opcode.CONTINUOUS)) {
+            throw new InvalidFrameException("rsv1 set on a " + opcode + " frame");
+        }
+        if(compressed) {
+            inflating = true;
+        }
+        if(!inflating || control) {
+            return frame;
+        }
+
+        if(frame.isFin()) {
+            inflating = false;
+        }
+        ((FrameBuilder) frame).setPayload(ByteBuffer.wrap(inflate(frame.getPayloadData(), frame.isFin())));
+        return frame;
+    }
+
+    private synchronized byte[] inflate(ByteBuffer payload, boolean fin) throws InvalidDataException {
+        if(inflater == null) {
+            throw new InvalidDataException(CloseFrame.NORMAL, "Connection closed");
+        }
+
+        byte[] input = new byte[payload.remaining() + (fin ? TAIL.length : 0)];
+        payload.get(input, 0, payload.remaining());
+        if(fin) {
+            System.arraycopy(TAIL, 0, input, input.length - TAIL.length, TAIL.length);
+        }
+        inflater.setInput(input);
+
+        int maxSize = options.deflateMaxMessageSize - inflated;
+        ByteArrayOutputStream out = new ByteArrayOutputStream(Math.min(input.length * 4, Math.max(maxSize, 0)));
+        byte[] chunk = new byte[Math.min(Math.max(input.length * 4, 256), 64 * 1024)];
+        try {
+            int length;
+            do {
+                length = inflater.inflate(chunk);
+                out.write(chunk, 0, length);
+                if(out.size() > maxSize) {
+                    throw new InvalidDataException(CloseFrame.TOOBIG, "Message bigger than " + options.deflateMaxMessageSize + " bytes");
+                }
+            } while(length > 0 && !inflater.finished() && (length == chunk.length || !inflater.needsInput()));
+        } catch(DataFormatException e) {
+            throw new InvalidDataException(CloseFrame.NO_UTF8, e.getMessage());
+        }
+
+        inflated = fin ? 0 : inflated + out.size();
+        // A final block ends the stream, the next message starts a new one
+        if(fin && (!clientContextTakeover || inflater.finished())) {
+            inflater.reset();
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Frees the native memory used by the compression state.
+     */
+    public synchronized void release() {
+        if(deflater != null) {
+            deflater.end();
+            deflater = null;
+        }
+        if(inflater != null) {
+            inflater.end();
+            inflater = null;
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T extends Throwable> RuntimeException rethrow(Throwable t) throws T {
+        throw (T) t;
+    }
+
+}
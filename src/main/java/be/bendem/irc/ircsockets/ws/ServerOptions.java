@@ -0,0 +1,86 @@
+package be.bendem.irc.ircsockets.ws;
+
+import java.util.concurrent.TimeUnit;
+
+public class ServerOptions {
+
+    // Amount of threads fanning out messages, 0 or less uses one per core
+    public int dispatchThreads = 0;
+    // Messages each dispatch thread can have waiting (rounded up to a power of two),
+    // what to do with more and how the dispatch threads wait for messages
+    public int dispatchQueueSize = 64 * 1024;
+    public Dispatcher.OverflowPolicy dispatchOverflowPolicy = Dispatcher.OverflowPolicy.DROP_NEWEST;
+    public RingBuffer.WaitStrategy dispatchWaitStrategy = RingBuffer.WaitStrategy.BLOCKING;
+
+    // Maximum amount of messages handled in one pass of the dispatch thread,
+    // 1 sends every message in its own frame like it always did
+    public int batchSize = 1;
+    // How long the dispatch thread waits for more messages before sending an incomplete batch
+    public long batchLinger = 0;
+
+    // Bounds of the outbound queue of each connection, clientQueueBytes <= 0 disables the byte bound
+    public int clientQueueSize = 1000;
+    public long clientQueueBytes = 4 * 1024 * 1024;
+    // What to do with the messages of a connection once its queue is full
+    public ClientConnection.SlowConsumerPolicy slowConsumerPolicy = ClientConnection.SlowConsumerPolicy.DROP_NEWEST;
+
+    // Threads turning irc events into messages, 0 or less uses one per network. Each network
+    // has a queue of ingestQueueSize events and ingestOverflowPolicy tells what to do with more,
+    // waiting holds up the irc client reading them
+    public int ingestThreads = 0;
+    public int ingestQueueSize = 64 * 1024;
+    public Dispatcher.OverflowPolicy ingestOverflowPolicy = Dispatcher.OverflowPolicy.DROP_NEWEST;
+
+    // Joins, parts and quits of a channel above coalesceThreshold within coalesceWindow (ms)
+    // are summarized in a single event per window, 0 disables coalescing
+    public int coalesceThreshold = 10;
+    public long coalesceWindow = 2000;
+
+    // Bounds of the events kept to be replayed to new listeners, 0 events disables the scrollback
+    public int scrollbackEvents = 100;
+    public long scrollbackChannelBytes = 64 * 1024;
+    public long scrollbackTotalBytes = 16 * 1024 * 1024;
+
+    // Where to persist events, null disables the event log and history requests
+    public String storeDirectory = null;
+    public int storeSegmentBytes = 16 * 1024 * 1024;
+    public long storeSegmentAge = TimeUnit.DAYS.toMillis(1);
+    // Segments older than storeRetention or making the store bigger than storeMaxBytes are deleted, 0 disables either
+    public long storeRetention = TimeUnit.DAYS.toMillis(30);
+    public long storeMaxBytes = 1024L * 1024 * 1024;
+    // Events waiting to be written, more are dropped
+    public int storeQueueSize = 64 * 1024;
+
+    // Memory the full text index can use before forgetting the oldest events, 0 disables search requests
+    public long searchMaxBytes = 64 * 1024 * 1024;
+    // Events waiting to be indexed, more are dropped
+    public int searchQueueSize = 64 * 1024;
+
+    // Channels and nicks binary connections are given ids for before they are told to forget them
+    public int binarySymbols = 64 * 1024;
+
+    // permessage-deflate, only messages of at least deflateMinSize bytes are compressed
+    public boolean deflate = true;
+    public int deflateLevel = 6;
+    public int deflateMinSize = 64;
+    // Without server context takeover every message is compressed on its own and the
+    // compressed frame is shared by all connections, with it each connection compresses
+    // its own frames, better ratio but one deflate per connection and per message
+    public boolean deflateServerContextTakeover = false;
+    public boolean deflateClientContextTakeover = true;
+    // Window the clients compress with (8-15), the server always uses 15
+    public int deflateClientWindowBits = 15;
+    // Compressed client messages inflating past this many bytes close the connection (1009)
+    public int deflateMaxMessageSize = 1024 * 1024;
+
+    // Plaintext metrics endpoint served at /metrics, 0 disables it
+    public int metricsPort = 0;
+    public String metricsHost = "localhost";
+
+    // Port relays connect to in order to get the events of this ingest node, 0 disables it
+    public int relayPort = 0;
+    public String relayHost = "localhost";
+    // host:port of the ingest node this relay gets its events from instead of connecting to irc, null for an ingest node
+    public String upstream = null;
+
+}
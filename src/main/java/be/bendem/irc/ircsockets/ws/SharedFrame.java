@@ -0,0 +1,157 @@
+package be.bendem.irc.ircsockets.ws;
+
+import org.java_websocket.WebSocket;
+import org.java_websocket.WebSocketImpl;
+import org.java_websocket.drafts.Draft;
+import org.java_websocket.drafts.Draft_10;
+import org.java_websocket.server.WebSocketServer;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A text or binary message encoded and framed once, then handed as is to
+ * every connection it needs to go to.
+ */
+public class SharedFrame {
+
+    private static final byte FIN_TEXT = (byte) 0x81;
+    private static final byte FIN_BINARY = (byte) 0x82;
+
+    private final String text;
+    private final byte[] binary;
+    private final boolean pinned;
+    private final long eventTime;
+    private volatile byte[] payload;
+    private volatile ByteBuffer frame;
+    private volatile ByteBuffer compressed;
+
+    public SharedFrame(String text) {
+        this(text, 0);
+    }
+
+    /**
+     * @param eventTime epoch milliseconds of the oldest event of the frame, 0 if it holds none
+     */
+    public SharedFrame(String text, long eventTime) {
+        this(text, null, false, eventTime);
+    }
+
+    private SharedFrame(String text, byte[] binary, boolean pinned, long eventTime) {
+        this.text = text;
+        this.binary = binary;
+        this.pinned = pinned;
+        this.eventTime = eventTime;
+    }
+
+    /**
+     * @param eventTime epoch milliseconds of the oldest event of the frame, 0 if it holds none
+     */
+    public static SharedFrame binary(byte[] payload, long eventTime) {
+        return new SharedFrame(null, payload, false, eventTime);
+    }
+
+    /**
+     * A binary frame which slow consumer policies never drop, later frames
+     * depend on it.
+     */
+    public static SharedFrame pinned(byte[] payload) {
+        return new SharedFrame(null, payload, true, 0);
+    }
+
+    public String getText() {
+        return text;
+    }
+
+    public boolean isPinned() {
+        return pinned;
+    }
+
+    /**
+     * @return epoch milliseconds of the oldest event of the frame, 0 if it holds none
+     */
+    public long getEventTime() {
+        return eventTime;
+    }
+
+    public int size() {
+        return getFrame().remaining();
+    }
+
+    public void send(WebSocketServer server, WebSocket conn) {
+        // Only rfc 6455 connections (Draft_17 and its Draft_10 parent) share the
+        // same unmasked server framing, anything else goes through the library.
+        if(!(conn instanceof WebSocketImpl) || !(conn.getDraft() instanceof Draft_10)) {
+            if(binary != null) {
+                conn.send(binary);
+            } else {
+                conn.send(text);
+            }
+            return;
+        }
+        if(!conn.isOpen()) {
+            return;
+        }
+
+        ((WebSocketImpl) conn).outQueue.add(getFrame(conn.getDraft()));
+        server.onWriteDemand(conn);
+    }
+
+    private ByteBuffer getFrame(Draft draft) {
+        if(!(draft instanceof ServerDraft)) {
+            return getFrame().duplicate();
+        }
+        ServerDraft serverDraft = (ServerDraft) draft;
+        if(!serverDraft.isDeflating() || getPayload().length < serverDraft.getMinSize()) {
+            return getFrame().duplicate();
+        }
+
+        byte header = ServerDraft.compressedHeader(binary != null ? FIN_BINARY : FIN_TEXT);
+        if(!serverDraft.isSharingFrames()) {
+            return encode(header, serverDraft.deflate(getPayload()));
+        }
+        if(compressed == null) {
+            compressed = encode(header, serverDraft.deflateShared(getPayload()));
+        }
+        return compressed.duplicate();
+    }
+
+    private ByteBuffer getFrame() {
+        if(frame == null) {
+            frame = encode(binary != null ? FIN_BINARY : FIN_TEXT, getPayload());
+        }
+        return frame;
+    }
+
+    private byte[] getPayload() {
+        if(binary != null) {
+            return binary;
+        }
+        if(payload == null) {
+            payload = text.getBytes(StandardCharsets.UTF_8);
+        }
+        return payload;
+    }
+
+    static ByteBuffer encode(byte header, byte[] payload) {
+        int length = payload.length;
+        int lengthBytes = length < 126 ? 0 : length <= 0xFFFF ? 2 : 8;
+        ByteBuffer buffer = ByteBuffer.allocate(2 + lengthBytes + length);
+
+        buffer.put(header);
+        if(lengthBytes == 0) {
+            buffer.put((byte) length);
+        } else if(lengthBytes == 2) {
+            buffer.put((byte) 126);
+            buffer.putShort((short) length);
+        } else {
+            buffer.put((byte) 127);
+            buffer.putLong(length);
+        }
+        buffer.put(payload);
+        buffer.flip();
+
+        return buffer.asReadOnlyBuffer();
+    }
+
+}
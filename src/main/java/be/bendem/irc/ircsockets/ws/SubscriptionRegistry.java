@@ -0,0 +1,120 @@
+package be.bendem.irc.ircsockets.ws;
+
+import org.java_websocket.WebSocket;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps track of which connections listen to which channels in both
+ * directions so that subscribing, unsubscribing and disconnecting only touch
+ * the channels of the connection concerned. The subscribers of a channel are
+ * grouped by {@link Filter}.
+ *
+ * Subscribers are iterated without locking, an iteration sees every
+ * connection which was subscribed for its whole duration at least once, and
+ * only once unless it changed its filter meanwhile.
+ */
+public class SubscriptionRegistry {
+
+    private final Map<String, Map<Filter, Set<WebSocket>>> subscribers;
+    private final Map<WebSocket, Map<String, Filter>> channels;
+
+    public SubscriptionRegistry() {
+        this.subscribers = new ConcurrentHashMap<>();
+        this.channels = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Subscribes a connection to a channel or changes the filter it listens
+     * to it with.
+     *
+     * @return true if the connection wasn't already listening to the channel
+     */
+    public boolean subscribe(WebSocket conn, String channel, Filter filter) {
+        Filter previous = channels.computeIfAbsent(conn, k -> new ConcurrentHashMap<>()).put(channel, filter);
+        if(filter.equals(previous)) {
+            return false;
+        }
+
+        // Empty groups are removed by unsubscribe, so additions go through
+        // compute to never add to a set which was just dropped from the map.
+        // The new group is joined before leaving the old one so the connection
+        // is never missing.
+        subscribers.compute(channel, (k, groups) -> {
+            if(groups == null) {
+                groups = new ConcurrentHashMap<>();
+            }
+            groups.computeIfAbsent(filter, f -> ConcurrentHashMap.newKeySet()).add(conn);
+            return groups;
+        });
+        if(previous != null) {
+            removeSubscriber(conn, channel, previous);
+        }
+        return previous == null;
+    }
+
+    /**
+     * @return true if the connection was listening to the channel
+     */
+    public boolean unsubscribe(WebSocket conn, String channel) {
+        Map<String, Filter> connChannels = channels.get(conn);
+        Filter filter = connChannels == null ? null : connChannels.remove(channel);
+        return filter != null && removeSubscriber(conn, channel, filter);
+    }
+
+    /**
+     * Unsubscribes a connection from all of its channels.
+     */
+    public void remove(WebSocket conn) {
+        Map<String, Filter> connChannels = channels.remove(conn);
+        if(connChannels != null) {
+            connChannels.forEach((channel, filter) -> removeSubscriber(conn, channel, filter));
+        }
+    }
+
+    public boolean isSubscribed(WebSocket conn, String channel) {
+        return getFilter(conn, channel) != null;
+    }
+
+    /**
+     * @return the filter the connection listens to the channel with, null if it doesn't
+     */
+    public Filter getFilter(WebSocket conn, String channel) {
+        Map<String, Filter> connChannels = channels.get(conn);
+        return connChannels == null ? null : connChannels.get(channel);
+    }
+
+    /**
+     * @return the subscribers of a channel grouped by the filter they use
+     */
+    public Map<Filter, Set<WebSocket>> getGroups(String channel) {
+        Map<Filter, Set<WebSocket>> groups = subscribers.get(channel);
+        return groups == null ? Collections.emptyMap() : Collections.unmodifiableMap(groups);
+    }
+
+    /**
+     * @return a copy of the channels the connection listens to
+     */
+    public Collection<String> getChannels(WebSocket conn) {
+        Map<String, Filter> connChannels = channels.get(conn);
+        return connChannels == null ? Collections.emptyList() : new ArrayList<>(connChannels.keySet());
+    }
+
+    private boolean removeSubscriber(WebSocket conn, String channel, Filter filter) {
+        boolean[] removed = { false };
+        subscribers.computeIfPresent(channel, (k, groups) -> {
+            groups.computeIfPresent(filter, (f, set) -> {
+                removed[0] = set.remove(conn);
+                return set.isEmpty() ? null : set;
+            });
+            return groups.isEmpty() ? null : groups;
+        });
+        return removed[0];
+    }
+
+}
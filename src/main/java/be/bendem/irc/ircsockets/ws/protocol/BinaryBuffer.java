@@ -0,0 +1,92 @@
+package be.bendem.irc.ircsockets.ws.protocol;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Writes records of the binary protocol, clients get it by asking for the
+ * {@link #PROTOCOL} subprotocol. A frame is a sequence of records, each one
+ * starting with its tag:
+ * <ul>
+ *     <li>{@link #SYMBOL}: id, name</li>
+ *     <li>{@link #EVENT}: channel id, prefix id, epoch millis, sequence (0 if none), message</li>
+ *     <li>{@link #FORGET}: nothing, every symbol defined so far is forgotten</li>
+ * </ul>
+ * Numbers are unsigned LEB128 varints, strings are a varint byte length
+ * followed by utf-8 bytes. Symbols are always defined before being used, ids
+ * are reused after a {@link #FORGET}.
+ */
+public class BinaryBuffer {
+
+    public static final String PROTOCOL = "ircsockets.binary.v3";
+
+    public static final byte SYMBOL = 1;
+    public static final byte EVENT = 2;
+    public static final byte FORGET = 3;
+
+    private byte[] bytes;
+    private int size = 0;
+
+    public BinaryBuffer() {
+        this(64);
+    }
+
+    public BinaryBuffer(int capacity) {
+        this.bytes = new byte[capacity];
+    }
+
+    public BinaryBuffer symbol(int id, String name) {
+        return tag(SYMBOL).varint(id).string(name);
+    }
+
+    public BinaryBuffer forget() {
+        return tag(FORGET);
+    }
+
+    public BinaryBuffer tag(byte tag) {
+        ensureCapacity(1);
+        bytes[size++] = tag;
+        return this;
+    }
+
+    public BinaryBuffer varint(long value) {
+        ensureCapacity(10);
+        while((value & ~0x7FL) != 0) {
+            bytes[size++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        bytes[size++] = (byte) value;
+        return this;
+    }
+
+    public BinaryBuffer string(String value) {
+        return bytes(value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    public BinaryBuffer bytes(byte[] value) {
+        varint(value.length);
+        return raw(value);
+    }
+
+    public BinaryBuffer raw(byte[] value) {
+        ensureCapacity(value.length);
+        System.arraycopy(value, 0, bytes, size, value.length);
+        size += value.length;
+        return this;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public byte[] toByteArray() {
+        return Arrays.copyOf(bytes, size);
+    }
+
+    private void ensureCapacity(int needed) {
+        if(size + needed > bytes.length) {
+            bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, size + needed));
+        }
+    }
+
+}
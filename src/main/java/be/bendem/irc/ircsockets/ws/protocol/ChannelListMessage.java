@@ -3,32 +3,48 @@ package be.bendem.irc.ircsockets.ws.protocol;
 import com.google.gson.JsonArray;
 import com.google.gson.JsonObject;
 import com.google.gson.JsonPrimitive;
-import org.kitteh.irc.client.library.Client;
-import org.kitteh.irc.client.library.element.Channel;
 
-import java.util.stream.Stream;
+import java.util.List;
 
 public class ChannelListMessage extends Message {
 
-    private final JsonArray channels;
+    private static final JsonBuffer.Field VERSION = new JsonBuffer.Field("version");
+    private static final JsonBuffer.Field CHANNELS = new JsonBuffer.Field("channels");
 
-    public ChannelListMessage(Client client) {
-        this(client.getChannels().stream().map(Channel::getName));
-    }
+    private final String version;
+    private final List<String> channels;
 
-    public ChannelListMessage(Stream<String> channels) {
+    public ChannelListMessage(String version, List<String> channels) {
         super(Type.CHANNEL_LIST);
 
-        this.channels = channels
-            .map(JsonPrimitive::new)
-            .collect(JsonArray::new, JsonArray::add, JsonArray::addAll);
+        this.version = version;
+        this.channels = channels;
+    }
+
+    public String getVersion() {
+        return version;
+    }
+
+    public List<String> getChannels() {
+        return channels;
     }
 
     @Override
     protected JsonObject createJson() {
         JsonObject obj = new JsonObject();
-        obj.add("channels", channels);
+        obj.addProperty("version", version);
+        obj.add("channels", channels.stream()
+            .map(JsonPrimitive::new)
+            .collect(JsonArray::new, JsonArray::add, JsonArray::addAll));
         return obj;
     }
 
+    @Override
+    protected boolean writeJson(JsonBuffer buffer) {
+        buffer
+            .field(VERSION, version)
+            .field(CHANNELS, channels);
+        return true;
+    }
+
 }
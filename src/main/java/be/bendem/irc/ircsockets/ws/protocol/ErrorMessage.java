@@ -4,6 +4,8 @@ import com.google.gson.JsonObject;
 
 public class ErrorMessage extends Message {
 
+    private static final JsonBuffer.Field ERROR_MSG = new JsonBuffer.Field("errorMsg");
+
     private final String msg;
 
     public ErrorMessage(String msg) {
@@ -20,4 +22,10 @@ public class ErrorMessage extends Message {
         return obj;
     }
 
+    @Override
+    protected boolean writeJson(JsonBuffer buffer) {
+        buffer.field(ERROR_MSG, msg);
+        return true;
+    }
+
 }
@@ -1,53 +1,258 @@
 package be.bendem.irc.ircsockets.ws.protocol;
 
 import com.google.gson.JsonObject;
-import org.kitteh.irc.client.library.element.Channel;
-import org.kitteh.irc.client.library.element.User;
 
-import java.time.Instant;
-import java.time.ZoneOffset;
-import java.time.ZonedDateTime;
-import java.time.format.DateTimeFormatter;
+import java.nio.charset.StandardCharsets;
 import java.util.Optional;
+import java.util.function.Function;
 
+/**
+ * An event of a channel, kept compact since the scrollback and the queues
+ * hold a lot of them: the time is in epoch milliseconds and the channel and
+ * the nicks are shared with the other events of the channel. The message is
+ * only formatted once something needs it, an event nobody listens to is never
+ * formatted on the dispatch path, it is then kept as utf-8. Events don't keep
+ * their json, the dispatcher serializes them once per batch.
+ */
 public class EventMessage extends Message {
 
-    public final ZonedDateTime time;
-    public final String channel;
-    public final String prefix;
-    public final String msg;
+    public enum Kind {
+        MESSAGE,
+        ACTION,
+        JOIN,
+        PART,
+        QUIT,
+        MODE,
+        TOPIC,
+        OTHER
+    }
+
+    private static final JsonBuffer.Field TIME = new JsonBuffer.Field("time");
+    private static final JsonBuffer.Field NETWORK = new JsonBuffer.Field("network");
+    private static final JsonBuffer.Field CHANNEL = new JsonBuffer.Field("channel");
+    private static final JsonBuffer.Field PREFIX = new JsonBuffer.Field("prefix");
+    private static final JsonBuffer.Field MESSAGE = new JsonBuffer.Field("message");
+    private static final JsonBuffer.Field SEQUENCE = new JsonBuffer.Field("seq");
+    // Keys, quotes and separators of the json of an event
+    private static final int JSON_OVERHEAD = 96;
+
+    private static final Interner<ChannelKey> CHANNELS = new Interner<>(64 * 1024);
+    // Nicks and prefixes
+    private static final Interner<String> NICKS = new Interner<>(256 * 1024);
 
-    public EventMessage(Instant time, Channel channel, User user, String msg, Object... params) {
-        this(time, channel, user.getNick(), msg, params);
+    private final Kind kind;
+    private final long time;
+    private final ChannelKey channel;
+    private final String nick;
+    private final String prefix;
+    // The message as given (a String or a Template) until it is first needed, its utf-8 bytes afterwards
+    private volatile Object message;
+    private volatile long sequence = 0;
+
+    /**
+     * @param time epoch milliseconds
+     * @param nick the user the event is about, null if there is none
+     * @param msg a {@link String#format(String, Object...)} template if there are params, the message otherwise
+     */
+    public EventMessage(String network, Kind kind, long time, String channel, String nick, String prefix, String msg, Object... params) {
+        super(Type.EVENT);
+        this.kind = kind;
+        this.time = time;
+        this.channel = CHANNELS.intern(routingKey(network, channel), key -> new ChannelKey(network, channel, key));
+        this.nick = nick == null ? null : NICKS.intern(nick, Function.identity());
+        this.prefix = prefix == null ? null : NICKS.intern(prefix, Function.identity());
+        this.message = params.length == 0 ? msg : new Template(msg, params);
     }
 
-    public EventMessage(Instant time, Channel channel, String prefix, String msg, Object... params) {
-        this(time, channel.getName(), prefix, msg, params);
+    public Kind getKind() {
+        return kind;
     }
 
-    public EventMessage(Instant time, String channel, String prefix, String msg, Object... params) {
-        super(Type.EVENT);
-        this.time = time.atZone(ZoneOffset.systemDefault());
-        this.channel = channel;
-        this.prefix = prefix;
-        this.msg = String.format(msg, params);
+    /**
+     * @return epoch milliseconds
+     */
+    public long getTime() {
+        return time;
+    }
+
+    public String getNetwork() {
+        return channel.network;
+    }
+
+    public String getChannel() {
+        return channel.channel;
+    }
+
+    public String getNick() {
+        return nick;
+    }
+
+    public String getPrefix() {
+        return prefix;
+    }
+
+    /**
+     * @return the position of this event in its channel, starting at 1, 0 until it is dispatched
+     */
+    public long getSequence() {
+        return sequence;
+    }
+
+    /**
+     * Set once when the event is dispatched, before anything serializes it.
+     */
+    public void setSequence(long sequence) {
+        this.sequence = sequence;
+    }
+
+    /**
+     * @return the message, decoded on every call once it was formatted
+     */
+    public String getMessage() {
+        Object current = message;
+        if(current instanceof byte[]) {
+            return new String((byte[]) current, StandardCharsets.UTF_8);
+        }
+
+        String formatted = current instanceof Template ? ((Template) current).format() : (String) current;
+        message = formatted.getBytes(StandardCharsets.UTF_8);
+        return formatted;
+    }
+
+    private byte[] getMessageBytes() {
+        Object current = message;
+        if(current instanceof byte[]) {
+            return (byte[]) current;
+        }
+        getMessage();
+        return (byte[]) message;
     }
 
     @Override
     public Optional<String> getTarget() {
-        return Optional.of(channel);
+        return channel.target;
+    }
+
+    @Override
+    public int getSizeHint() {
+        int size = JSON_OVERHEAD + channel.network.length() + channel.channel.length();
+        Object current = message;
+        if(current instanceof byte[]) {
+            size += ((byte[]) current).length;
+        } else if(current instanceof Template) {
+            size += ((Template) current).getSizeHint();
+        } else {
+            size += ((String) current).length();
+        }
+        if(prefix != null) {
+            size += prefix.length();
+        }
+        return size;
+    }
+
+    @Override
+    protected boolean keepsJson() {
+        return false;
     }
 
     @Override
     protected JsonObject createJson() {
         JsonObject obj = new JsonObject();
 
-        obj.addProperty("time", time.format(DateTimeFormatter.ISO_LOCAL_TIME));
-        obj.addProperty("channel", channel);
+        obj.addProperty("time", time);
+        obj.addProperty("network", channel.network);
+        obj.addProperty("channel", channel.channel);
         obj.addProperty("prefix", prefix);
-        obj.addProperty("message", msg);
+        obj.addProperty("message", getMessage());
+        if(sequence != 0) {
+            obj.addProperty("seq", sequence);
+        }
 
         return obj;
     }
 
+    @Override
+    protected boolean writeJson(JsonBuffer buffer) {
+        buffer
+            .field(TIME, time)
+            .field(NETWORK, channel.network)
+            .field(CHANNEL, channel.channel)
+            .field(PREFIX, prefix)
+            .field(MESSAGE, getMessage());
+        if(sequence != 0) {
+            buffer.field(SEQUENCE, sequence);
+        }
+        return true;
+    }
+
+    /**
+     * Writes this event as a binary record, the channel symbol is its
+     * routing key.
+     *
+     * @return the ids of the symbols the record references
+     */
+    public int[] writeBinary(BinaryBuffer buffer, SymbolTable.Generation symbols) {
+        int channelId = symbols.intern(channel.target.get());
+        int prefixId = symbols.intern(prefix);
+        buffer
+            .tag(BinaryBuffer.EVENT)
+            .varint(channelId)
+            .varint(prefixId)
+            .varint(time)
+            .varint(sequence)
+            .bytes(getMessageBytes());
+        return new int[] { channelId, prefixId };
+    }
+
+    /**
+     * @return the amount of channels and nicks shared by events
+     */
+    public static int getInternedSymbols() {
+        return CHANNELS.size() + NICKS.size();
+    }
+
+    /**
+     * A {@link String#format(String, Object...)} template and its params.
+     */
+    private static class Template {
+
+        private final String template;
+        private final Object[] params;
+
+        private Template(String template, Object[] params) {
+            this.template = template;
+            this.params = params;
+        }
+
+        private String format() {
+            return String.format(template, params);
+        }
+
+        private int getSizeHint() {
+            int size = template.length();
+            for(Object param : params) {
+                size += String.valueOf(param).length();
+            }
+            return size;
+        }
+
+    }
+
+    /**
+     * Shared by the events of a channel.
+     */
+    private static class ChannelKey {
+
+        private final String network;
+        private final String channel;
+        private final Optional<String> target;
+
+        private ChannelKey(String network, String channel, String routingKey) {
+            this.network = network;
+            this.channel = channel;
+            this.target = Optional.of(routingKey);
+        }
+
+    }
+
 }
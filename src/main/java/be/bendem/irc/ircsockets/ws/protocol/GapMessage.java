@@ -0,0 +1,56 @@
+package be.bendem.irc.ircsockets.ws.protocol;
+
+import com.google.gson.JsonObject;
+
+import java.util.Optional;
+
+/**
+ * Tells a reconnecting client that events it missed in a channel are not
+ * kept anymore (or come from a previous run of the server), the channel
+ * continues after sequence.
+ *
+ * Relays also dispatch it to a channel when their ingest node couldn't send
+ * them some of its events.
+ */
+public class GapMessage extends Message {
+
+    private static final JsonBuffer.Field CHANNEL = new JsonBuffer.Field("channel");
+    private static final JsonBuffer.Field SEQUENCE = new JsonBuffer.Field("seq");
+
+    private final String channel;
+    private final long sequence;
+
+    public GapMessage(String channel, long sequence) {
+        super(Type.GAP);
+        this.channel = channel;
+        this.sequence = sequence;
+    }
+
+    public long getSequence() {
+        return sequence;
+    }
+
+    @Override
+    public Optional<String> getTarget() {
+        return Optional.of(channel);
+    }
+
+    @Override
+    protected JsonObject createJson() {
+        JsonObject obj = new JsonObject();
+
+        obj.addProperty("channel", channel);
+        obj.addProperty("seq", sequence);
+
+        return obj;
+    }
+
+    @Override
+    protected boolean writeJson(JsonBuffer buffer) {
+        buffer
+            .field(CHANNEL, channel)
+            .field(SEQUENCE, sequence);
+        return true;
+    }
+
+}
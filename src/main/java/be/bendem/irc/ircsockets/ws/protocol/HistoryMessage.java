@@ -0,0 +1,61 @@
+package be.bendem.irc.ircsockets.ws.protocol;
+
+import be.bendem.irc.ircsockets.Application;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+
+import java.util.List;
+
+/**
+ * A page of past events, made of already serialized events.
+ */
+public class HistoryMessage extends Message {
+
+    private static final JsonBuffer.Field CHANNEL = new JsonBuffer.Field("channel");
+    private static final JsonBuffer.Field EVENTS = new JsonBuffer.Field("events");
+    private static final JsonBuffer.Field LAST = new JsonBuffer.Field("last");
+    private static final JsonBuffer.Field NEXT = new JsonBuffer.Field("next");
+
+    private final String channel;
+    private final List<String> events;
+    private final String next;
+
+    /**
+     * @param next the cursor giving the next page, null if this is the last one
+     */
+    public HistoryMessage(String channel, List<String> events, String next) {
+        super(Type.HISTORY);
+        this.channel = channel;
+        this.events = events;
+        this.next = next;
+    }
+
+    @Override
+    protected JsonObject createJson() {
+        JsonObject obj = new JsonObject();
+
+        obj.addProperty("channel", channel);
+        obj.add("events", events.stream()
+            .map(event -> Application.GSON.fromJson(event, JsonObject.class))
+            .collect(JsonArray::new, JsonArray::add, JsonArray::addAll));
+        obj.addProperty("last", next == null);
+        if(next != null) {
+            obj.addProperty("next", next);
+        }
+
+        return obj;
+    }
+
+    @Override
+    protected boolean writeJson(JsonBuffer buffer) {
+        buffer
+            .field(CHANNEL, channel)
+            .rawField(EVENTS, events)
+            .field(LAST, next == null);
+        if(next != null) {
+            buffer.field(NEXT, next);
+        }
+        return true;
+    }
+
+}
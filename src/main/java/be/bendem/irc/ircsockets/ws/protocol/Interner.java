@@ -0,0 +1,67 @@
+package be.bendem.irc.ircsockets.ws.protocol;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+/**
+ * Bounded table of canonical instances, so the events the server keeps share
+ * their channel and nicks instead of each holding its own copy.
+ *
+ * Values looked up recently are in the current generation. Once it is full it
+ * becomes the previous generation and what isn't looked up again before the
+ * next rotation is forgotten. A forgotten instance stays valid for the events
+ * still referencing it, the next lookup creates a new one.
+ */
+final class Interner<T> {
+
+    private final int generationSize;
+    private volatile Map<String, T> current;
+    private volatile Map<String, T> previous;
+
+    /**
+     * @param maxSize amount of values kept at most
+     */
+    Interner(int maxSize) {
+        this.generationSize = Math.max(1, maxSize / 2);
+        this.current = new ConcurrentHashMap<>();
+        this.previous = new ConcurrentHashMap<>();
+    }
+
+    T intern(String key, Function<String, T> factory) {
+        Map<String, T> generation = current;
+        T value = generation.get(key);
+        if(value != null) {
+            return value;
+        }
+
+        value = previous.get(key);
+        if(value == null) {
+            value = factory.apply(key);
+        }
+        T existing = generation.putIfAbsent(key, value);
+        if(existing != null) {
+            return existing;
+        }
+        if(generation.size() >= generationSize) {
+            rotate(generation);
+        }
+        return value;
+    }
+
+    private synchronized void rotate(Map<String, T> full) {
+        // Another thread may have rotated it already
+        if(current == full) {
+            previous = full;
+            current = new ConcurrentHashMap<>();
+        }
+    }
+
+    /**
+     * @return the amount of values kept, roughly
+     */
+    int size() {
+        return current.size() + previous.size();
+    }
+
+}
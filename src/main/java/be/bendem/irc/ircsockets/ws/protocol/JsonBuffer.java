@@ -0,0 +1,185 @@
+package be.bendem.irc.ircsockets.ws.protocol;
+
+import org.kitteh.irc.client.library.util.Sanity;
+
+import java.util.Collection;
+
+/**
+ * Writes a flat json object straight into a reused per thread buffer,
+ * producing the exact same output as {@link be.bendem.irc.ircsockets.Application#GSON}
+ * would for the equivalent {@link com.google.gson.JsonObject}.
+ */
+public final class JsonBuffer {
+
+    // Gson's html safe escaping, see com.google.gson.stream.JsonWriter
+    private static final String[] REPLACEMENT_CHARS = new String[128];
+    static {
+        for(int i = 0; i <= 0x1f; i++) {
+            REPLACEMENT_CHARS[i] = String.format("\\u%04x", i);
+        }
+        REPLACEMENT_CHARS['"'] = "\\\"";
+        REPLACEMENT_CHARS['\\'] = "\\\\";
+        REPLACEMENT_CHARS['\t'] = "\\t";
+        REPLACEMENT_CHARS['\b'] = "\\b";
+        REPLACEMENT_CHARS['\n'] = "\\n";
+        REPLACEMENT_CHARS['\r'] = "\\r";
+        REPLACEMENT_CHARS['\f'] = "\\f";
+        REPLACEMENT_CHARS['<'] = "\\u003c";
+        REPLACEMENT_CHARS['>'] = "\\u003e";
+        REPLACEMENT_CHARS['&'] = "\\u0026";
+        REPLACEMENT_CHARS['='] = "\\u003d";
+        REPLACEMENT_CHARS['\''] = "\\u0027";
+    }
+
+    // Don't keep huge buffers around because of a single big message
+    private static final int MAX_RETAINED = 64 * 1024;
+
+    private static final ThreadLocal<JsonBuffer> LOCAL = ThreadLocal.withInitial(JsonBuffer::new);
+
+    private StringBuilder builder = new StringBuilder(256);
+    private boolean empty;
+
+    private JsonBuffer() {
+    }
+
+    static JsonBuffer begin() {
+        JsonBuffer buffer = LOCAL.get();
+        if(buffer.builder.capacity() > MAX_RETAINED) {
+            buffer.builder = new StringBuilder(256);
+        }
+        buffer.builder.setLength(0);
+        buffer.builder.append('{');
+        buffer.empty = true;
+        return buffer;
+    }
+
+    String end(Message.Type type, boolean error) {
+        if(!empty) {
+            builder.append(',');
+        }
+        builder.append(error ? type.errorSuffix : type.okSuffix);
+        return builder.toString();
+    }
+
+    public JsonBuffer field(Field field, String value) {
+        // Gson doesn't serialize null properties
+        if(value == null) {
+            return this;
+        }
+
+        name(field);
+        string(builder, value);
+        return this;
+    }
+
+    public JsonBuffer field(Field field, long value) {
+        name(field);
+        builder.append(value);
+        return this;
+    }
+
+    public JsonBuffer field(Field field, Collection<String> values) {
+        name(field);
+        builder.append('[');
+        boolean first = true;
+        for(String value : values) {
+            if(!first) {
+                builder.append(',');
+            }
+            first = false;
+
+            if(value == null) {
+                builder.append("null");
+            } else {
+                string(builder, value);
+            }
+        }
+        builder.append(']');
+        return this;
+    }
+
+    /**
+     * Writes an array of already serialized json values.
+     */
+    public JsonBuffer rawField(Field field, Collection<String> jsons) {
+        name(field);
+        builder.append('[');
+        boolean first = true;
+        for(String json : jsons) {
+            if(!first) {
+                builder.append(',');
+            }
+            first = false;
+            builder.append(json);
+        }
+        builder.append(']');
+        return this;
+    }
+
+    public JsonBuffer field(Field field, boolean value) {
+        name(field);
+        builder.append(value);
+        return this;
+    }
+
+    private void name(Field field) {
+        if(!empty) {
+            builder.append(',');
+        }
+        empty = false;
+        builder.append(field.prefix);
+    }
+
+    static void string(StringBuilder builder, String value) {
+        builder.append('"');
+
+        int last = 0;
+        int length = value.length();
+        for(int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            String replacement;
+            if(c < 128) {
+                replacement = REPLACEMENT_CHARS[c];
+                if(replacement == null) {
+                    continue;
+                }
+            } else if(c == '\u2028') {
+                replacement = "\\u2028";
+            } else if(c == '\u2029') {
+                replacement = "\\u2029";
+            } else {
+                continue;
+            }
+
+            if(last < i) {
+                builder.append(value, last, i);
+            }
+            builder.append(replacement);
+            last = i + 1;
+        }
+        if(last < length) {
+            builder.append(value, last, length);
+        }
+
+        builder.append('"');
+    }
+
+    /**
+     * A field name along with its precomputed json prefix.
+     */
+    public static final class Field {
+
+        private final String prefix;
+
+        public Field(String name) {
+            Sanity.truthiness(!name.equals("_type"), "_type is a reserved field name");
+            Sanity.truthiness(!name.equals("_status"), "_status is a reserved field name");
+
+            StringBuilder builder = new StringBuilder(name.length() + 3);
+            string(builder, name);
+            this.prefix = builder.append(':').toString();
+        }
+
+    }
+
+}
@@ -11,11 +11,27 @@ public abstract class Message {
     public enum Type {
         CHANNEL_LIST,
         EVENT,
-        UNKNOWN
+        GAP,
+        HISTORY,
+        SEARCH_RESULT,
+        SESSION,
+        SKIPPED,
+        STATS,
+        UNKNOWN;
+
+        final String okSuffix;
+        final String errorSuffix;
+
+        Type() {
+            String type = "\"_type\":\"" + name().toLowerCase() + "\",\"_status\":";
+            this.okSuffix = type + "\"ok\"}";
+            this.errorSuffix = type + "\"error\"}";
+        }
     }
 
     private final Type type;
     private final boolean error;
+    private volatile String json;
 
     protected Message(Type type) {
         this(type, false);
@@ -26,7 +42,35 @@ public abstract class Message {
         this.error = error;
     }
 
+    /**
+     * Messages are immutable, their json is only built once unless they
+     * don't keep it.
+     */
     public final String toJson() {
+        String result = json;
+        if(result == null) {
+            JsonBuffer buffer = JsonBuffer.begin();
+            result = writeJson(buffer) ? buffer.end(type, error) : toJsonTree();
+            if(keepsJson()) {
+                json = result;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Messages kept around for long, like events, can trade serializing
+     * again for memory.
+     */
+    protected boolean keepsJson() {
+        return true;
+    }
+
+    /**
+     * Serializes this message through a gson tree, {@link #toJson()} produces
+     * the same output.
+     */
+    public final String toJsonTree() {
         JsonObject object = createJson();
         Sanity.truthiness(!object.has("_type"), getClass().getName() + " created a json object with a reserved _type");
         Sanity.truthiness(!object.has("_status"), getClass().getName() + " created a json object with a reserved _status");
@@ -37,10 +81,37 @@ public abstract class Message {
         return Application.GSON.toJson(object);
     }
 
+    /**
+     * Key messages concerning a channel are routed by, and which clients
+     * listen to.
+     */
+    public static String routingKey(String network, String channel) {
+        return network + ':' + channel;
+    }
+
+    /**
+     * @return the routing key of the channel this message concerns, if any
+     */
     public Optional<String> getTarget() {
         return Optional.empty();
     }
 
+    /**
+     * Approximate length of the json of this message, messages able to tell
+     * without serializing themselves should override it.
+     */
+    public int getSizeHint() {
+        return toJson().length();
+    }
+
     protected abstract JsonObject createJson();
 
+    /**
+     * Streams the fields {@link #createJson()} would create, messages
+     * which don't return true are serialized using {@link #createJson()}.
+     */
+    protected boolean writeJson(JsonBuffer buffer) {
+        return false;
+    }
+
 }
@@ -0,0 +1,257 @@
+package be.bendem.irc.ircsockets.ws.protocol;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A message sent by a client, read field by field without building a json tree.
+ * Fields a request type doesn't use are left to their default values.
+ */
+public class Request {
+
+    private String type;
+    private List<String> channels = Collections.emptyList();
+    private String channel;
+    private int replay = 0;
+    private Long from;
+    private Long to;
+    private Integer page;
+    private String query;
+    private Long before;
+    private String cursor;
+    private String epoch;
+    private Map<String, Long> sequences = Collections.emptyMap();
+    private FilterSpec filter;
+    private Map<String, FilterSpec> filters = Collections.emptyMap();
+
+    private Request() {
+    }
+
+    /**
+     * @throws IOException if the message is not a json object containing a _type
+     * @throws IllegalStateException if a known field has the wrong type
+     * @throws NumberFormatException if a numeric field is not a valid number
+     */
+    public static Request parse(String message) throws IOException {
+        Request request = new Request();
+
+        JsonReader reader = new JsonReader(new StringReader(message));
+        reader.beginObject();
+        while(reader.hasNext()) {
+            switch(reader.nextName()) {
+                case "_type":
+                    request.type = reader.nextString();
+                    break;
+                case "channels":
+                    request.channels = readStrings(reader);
+                    break;
+                case "channel":
+                    request.channel = reader.nextString();
+                    break;
+                case "replay":
+                    request.replay = reader.nextInt();
+                    break;
+                case "from":
+                    request.from = reader.nextLong();
+                    break;
+                case "to":
+                    request.to = reader.nextLong();
+                    break;
+                case "page":
+                    request.page = reader.nextInt();
+                    break;
+                case "query":
+                    request.query = reader.nextString();
+                    break;
+                case "before":
+                    request.before = reader.nextLong();
+                    break;
+                case "cursor":
+                    request.cursor = reader.nextString();
+                    break;
+                case "epoch":
+                    request.epoch = reader.nextString();
+                    break;
+                case "sequences":
+                    request.sequences = new LinkedHashMap<>();
+                    reader.beginObject();
+                    while(reader.hasNext()) {
+                        request.sequences.put(reader.nextName(), reader.nextLong());
+                    }
+                    reader.endObject();
+                    break;
+                case "filter":
+                    request.filter = FilterSpec.read(reader);
+                    break;
+                case "filters":
+                    request.filters = new HashMap<>();
+                    reader.beginObject();
+                    while(reader.hasNext()) {
+                        request.filters.put(reader.nextName(), FilterSpec.read(reader));
+                    }
+                    reader.endObject();
+                    break;
+                default:
+                    reader.skipValue();
+                    break;
+            }
+        }
+        reader.endObject();
+
+        if(request.type == null) {
+            throw new IOException("Missing _type");
+        }
+        return request;
+    }
+
+    private static List<String> readStrings(JsonReader reader) throws IOException {
+        if(reader.peek() == JsonToken.STRING) {
+            return Collections.singletonList(reader.nextString());
+        }
+
+        List<String> strings = new ArrayList<>();
+        reader.beginArray();
+        while(reader.hasNext()) {
+            strings.add(reader.nextString());
+        }
+        reader.endArray();
+        return strings;
+    }
+
+    public String getType() {
+        return type;
+    }
+
+    public List<String> getChannels() {
+        return channels;
+    }
+
+    public String getChannel() {
+        return channel;
+    }
+
+    public int getReplay() {
+        return replay;
+    }
+
+    public long getFrom(long def) {
+        return from == null ? def : from;
+    }
+
+    public long getTo(long def) {
+        return to == null ? def : to;
+    }
+
+    public int getPage(int def) {
+        return page == null ? def : page;
+    }
+
+    public String getQuery() {
+        return query;
+    }
+
+    public long getBefore(long def) {
+        return before == null ? def : before;
+    }
+
+    /**
+     * @return where the history page asked for starts, null for the first one
+     */
+    public String getCursor() {
+        return cursor;
+    }
+
+    public String getEpoch() {
+        return epoch;
+    }
+
+    /**
+     * @return the sequence of the last event seen by channel
+     */
+    public Map<String, Long> getSequences() {
+        return sequences;
+    }
+
+    /**
+     * @return the filter of the channel, or the filter of the whole request
+     *     if it doesn't have its own, null if there is none
+     */
+    public FilterSpec getFilter(String channel) {
+        return filters.getOrDefault(channel, filter);
+    }
+
+    /**
+     * Filter of a listen request as sent, see {@link be.bendem.irc.ircsockets.ws.Filter}.
+     */
+    public static class FilterSpec {
+
+        private List<String> kinds = Collections.emptyList();
+        private List<String> includedNicks = Collections.emptyList();
+        private List<String> excludedNicks = Collections.emptyList();
+        private List<String> keywords = Collections.emptyList();
+        private String regex;
+
+        private FilterSpec() {
+        }
+
+        private static FilterSpec read(JsonReader reader) throws IOException {
+            FilterSpec spec = new FilterSpec();
+            reader.beginObject();
+            while(reader.hasNext()) {
+                switch(reader.nextName()) {
+                    case "kinds":
+                        spec.kinds = readStrings(reader);
+                        break;
+                    case "include_nicks":
+                        spec.includedNicks = readStrings(reader);
+                        break;
+                    case "exclude_nicks":
+                        spec.excludedNicks = readStrings(reader);
+                        break;
+                    case "keywords":
+                        spec.keywords = readStrings(reader);
+                        break;
+                    case "regex":
+                        spec.regex = reader.nextString();
+                        break;
+                    default:
+                        reader.skipValue();
+                        break;
+                }
+            }
+            reader.endObject();
+            return spec;
+        }
+
+        public List<String> getKinds() {
+            return kinds;
+        }
+
+        public List<String> getIncludedNicks() {
+            return includedNicks;
+        }
+
+        public List<String> getExcludedNicks() {
+            return excludedNicks;
+        }
+
+        public List<String> getKeywords() {
+            return keywords;
+        }
+
+        public String getRegex() {
+            return regex;
+        }
+
+    }
+
+}
@@ -0,0 +1,58 @@
+package be.bendem.irc.ircsockets.ws.protocol;
+
+import be.bendem.irc.ircsockets.Application;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+
+import java.util.List;
+
+/**
+ * A page of events matching a search, made of already serialized events.
+ */
+public class SearchResultMessage extends Message {
+
+    private static final JsonBuffer.Field QUERY = new JsonBuffer.Field("query");
+    private static final JsonBuffer.Field EVENTS = new JsonBuffer.Field("events");
+    private static final JsonBuffer.Field NEXT = new JsonBuffer.Field("next");
+
+    private final String query;
+    private final List<String> events;
+    private final long next;
+
+    /**
+     * @param next the value of before giving the next page, -1 if this is the last one
+     */
+    public SearchResultMessage(String query, List<String> events, long next) {
+        super(Type.SEARCH_RESULT);
+        this.query = query;
+        this.events = events;
+        this.next = next;
+    }
+
+    @Override
+    protected JsonObject createJson() {
+        JsonObject obj = new JsonObject();
+
+        obj.addProperty("query", query);
+        obj.add("events", events.stream()
+            .map(event -> Application.GSON.fromJson(event, JsonObject.class))
+            .collect(JsonArray::new, JsonArray::add, JsonArray::addAll));
+        if(next >= 0) {
+            obj.addProperty("next", next);
+        }
+
+        return obj;
+    }
+
+    @Override
+    protected boolean writeJson(JsonBuffer buffer) {
+        buffer
+            .field(QUERY, query)
+            .rawField(EVENTS, events);
+        if(next >= 0) {
+            buffer.field(NEXT, next);
+        }
+        return true;
+    }
+
+}
@@ -0,0 +1,35 @@
+package be.bendem.irc.ircsockets.ws.protocol;
+
+import com.google.gson.JsonObject;
+
+/**
+ * Sent when a client connects, the sequences of events are only comparable
+ * within the same epoch.
+ */
+public class SessionMessage extends Message {
+
+    private static final JsonBuffer.Field EPOCH = new JsonBuffer.Field("epoch");
+
+    private final String epoch;
+
+    public SessionMessage(String epoch) {
+        super(Type.SESSION);
+        this.epoch = epoch;
+    }
+
+    @Override
+    protected JsonObject createJson() {
+        JsonObject obj = new JsonObject();
+
+        obj.addProperty("epoch", epoch);
+
+        return obj;
+    }
+
+    @Override
+    protected boolean writeJson(JsonBuffer buffer) {
+        buffer.field(EPOCH, epoch);
+        return true;
+    }
+
+}
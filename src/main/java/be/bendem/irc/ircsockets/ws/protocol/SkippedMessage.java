@@ -0,0 +1,31 @@
+package be.bendem.irc.ircsockets.ws.protocol;
+
+import com.google.gson.JsonObject;
+
+public class SkippedMessage extends Message {
+
+    private static final JsonBuffer.Field SKIPPED = new JsonBuffer.Field("skipped");
+
+    private final long skipped;
+
+    public SkippedMessage(long skipped) {
+        super(Type.SKIPPED);
+        this.skipped = skipped;
+    }
+
+    @Override
+    protected JsonObject createJson() {
+        JsonObject obj = new JsonObject();
+
+        obj.addProperty("skipped", skipped);
+
+        return obj;
+    }
+
+    @Override
+    protected boolean writeJson(JsonBuffer buffer) {
+        buffer.field(SKIPPED, skipped);
+        return true;
+    }
+
+}
@@ -0,0 +1,78 @@
+package be.bendem.irc.ircsockets.ws.protocol;
+
+import be.bendem.irc.ircsockets.metrics.Counter;
+import be.bendem.irc.ircsockets.metrics.Gauge;
+import be.bendem.irc.ircsockets.metrics.Histogram;
+import be.bendem.irc.ircsockets.metrics.Metrics;
+import com.google.gson.JsonObject;
+
+import java.util.Map;
+
+/**
+ * Current metrics of the server along with the queue of the connection
+ * asking for them. Durations are in seconds.
+ */
+public class StatsMessage extends Message {
+
+    private final Metrics metrics;
+    private final Map<String, Long> connection;
+
+    public StatsMessage(Metrics metrics, Map<String, Long> connection) {
+        super(Type.STATS);
+        this.metrics = metrics;
+        this.connection = connection;
+    }
+
+    @Override
+    protected JsonObject createJson() {
+        JsonObject obj = new JsonObject();
+
+        obj.addProperty("uptime", metrics.getUptime());
+
+        JsonObject counters = new JsonObject();
+        for(Counter counter : metrics.getCounters()) {
+            counters.addProperty(counter.getName(), counter.get());
+        }
+        obj.add("counters", counters);
+
+        JsonObject gauges = new JsonObject();
+        for(Gauge gauge : metrics.getGauges()) {
+            gauges.addProperty(gauge.getName(), gauge.get());
+        }
+        obj.add("gauges", gauges);
+
+        JsonObject histograms = new JsonObject();
+        for(Histogram histogram : metrics.getHistograms()) {
+            Histogram.Snapshot snapshot = histogram.snapshot();
+            JsonObject values = new JsonObject();
+            values.addProperty("count", snapshot.getCount());
+            values.addProperty("sum", Metrics.seconds(snapshot.getSum()));
+            values.addProperty("p50", Metrics.seconds(snapshot.getQuantile(0.5)));
+            values.addProperty("p90", Metrics.seconds(snapshot.getQuantile(0.9)));
+            values.addProperty("p99", Metrics.seconds(snapshot.getQuantile(0.99)));
+            values.addProperty("max", Metrics.seconds(snapshot.getMax()));
+            histograms.add(histogram.getName(), values);
+        }
+        obj.add("histograms", histograms);
+
+        JsonObject channels = new JsonObject();
+        metrics.getChannels().forEach((channel, rate) -> {
+            JsonObject values = new JsonObject();
+            values.addProperty("messages", rate.getMessages());
+            values.addProperty("bytes", rate.getBytes());
+            values.addProperty("message_rate", rate.getMessageRate());
+            values.addProperty("byte_rate", rate.getByteRate());
+            channels.add(channel, values);
+        });
+        obj.add("channels", channels);
+
+        if(connection != null) {
+            JsonObject values = new JsonObject();
+            connection.forEach(values::addProperty);
+            obj.add("connection", values);
+        }
+
+        return obj;
+    }
+
+}
@@ -0,0 +1,90 @@
+package be.bendem.irc.ircsockets.ws.protocol;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Server wide ids of the channel names and nicks sent in binary events, ids
+ * start at 1, 0 stands for a missing value.
+ *
+ * Ids are given out by generation: once the current one holds maxSize
+ * symbols, the next one starts over from 1. Connections are told to forget
+ * their symbols when they get a frame of another generation than the previous
+ * one, neither the table nor what a connection knows grows past maxSize.
+ */
+public class SymbolTable {
+
+    private final int maxSize;
+    private volatile Generation current;
+
+    public SymbolTable(int maxSize) {
+        this.maxSize = Math.max(1, maxSize);
+        this.current = new Generation(0);
+    }
+
+    /**
+     * @return the generation to intern the symbols of a frame in, the ids of
+     *     a frame all have to come from the same one
+     */
+    public Generation current() {
+        Generation generation = current;
+        if(generation.size() >= maxSize) {
+            return rotate(generation);
+        }
+        return generation;
+    }
+
+    private synchronized Generation rotate(Generation full) {
+        // Another thread may have rotated it already
+        if(current == full) {
+            current = new Generation(full.number + 1);
+        }
+        return current;
+    }
+
+    public int size() {
+        return current.size();
+    }
+
+    public static class Generation {
+
+        private final long number;
+        private final Map<String, Integer> ids;
+        private final Map<Integer, String> names;
+        private final AtomicInteger nextId;
+
+        private Generation(long number) {
+            this.number = number;
+            this.ids = new ConcurrentHashMap<>();
+            this.names = new ConcurrentHashMap<>();
+            this.nextId = new AtomicInteger(1);
+        }
+
+        public long getNumber() {
+            return number;
+        }
+
+        public int intern(String name) {
+            if(name == null) {
+                return 0;
+            }
+
+            return ids.computeIfAbsent(name, k -> {
+                int id = nextId.getAndIncrement();
+                names.put(id, name);
+                return id;
+            });
+        }
+
+        public String getName(int id) {
+            return names.get(id);
+        }
+
+        public int size() {
+            return ids.size();
+        }
+
+    }
+
+}
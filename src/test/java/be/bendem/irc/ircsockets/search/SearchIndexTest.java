@@ -0,0 +1,51 @@
+package be.bendem.irc.ircsockets.search;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.assertEquals;
+
+public class SearchIndexTest {
+
+    private static List<IndexSegment> segments(int... sizes) {
+        List<IndexSegment> segments = new ArrayList<>();
+        long base = 0;
+        for(int size : sizes) {
+            IndexSegment.Builder builder = new IndexSegment.Builder(base);
+            for(int i = 0; i < size; ++i) {
+                builder.add(base + i, new byte[0], Collections.singletonList("term"));
+            }
+            segments.add(builder.build());
+            base += size;
+        }
+        return segments;
+    }
+
+    private static List<Integer> sizes(List<IndexSegment> segments) {
+        return segments.stream().map(IndexSegment::size).collect(Collectors.toList());
+    }
+
+    @Test
+    public void mergesRunsOfTheSameLevelAnywhere() {
+        // The last ones are not all of the same level
+        List<IndexSegment> segments = segments(500, 2, 2, 2, 2, 2, 2, 2, 2, 2, 2, 50);
+        SearchIndex.merge(segments);
+        assertEquals(Arrays.asList(500, 20, 50), sizes(segments));
+    }
+
+    @Test
+    public void foldsSmallSegmentsIntoTheNextOne() {
+        List<IndexSegment> segments = segments(500, 5, 300, 2);
+        SearchIndex.merge(segments);
+        assertEquals(Arrays.asList(500, 305, 2), sizes(segments));
+        assertEquals(0, segments.get(0).getBase());
+        assertEquals(500, segments.get(1).getBase());
+        assertEquals(805, segments.get(2).getBase());
+    }
+
+}
@@ -0,0 +1,86 @@
+package be.bendem.irc.ircsockets.store;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class ChannelLogTest {
+
+    private static List<String> read(ChannelLog log, long from, long to) {
+        List<String> events = new ArrayList<>();
+        for(Segment segment : log.getSegments(from, to)) {
+            segment.read(0, from, to, Integer.MAX_VALUE, events);
+        }
+        return events;
+    }
+
+    private static long countFiles(Path directory) throws IOException {
+        try(Stream<Path> files = Files.list(directory)) {
+            return files.count();
+        }
+    }
+
+    @Test
+    public void lateEventsTakeTheTimeOfTheirSegment() throws IOException {
+        ChannelLog log = new ChannelLog("network:#channel", Files.createTempDirectory("channel-log"), 64, 1000);
+        log.append(1000, "first".getBytes(StandardCharsets.UTF_8));
+        log.append(2500, "second".getBytes(StandardCharsets.UTF_8));
+        // Written to the segment starting at 2500, found where that segment is looked up
+        log.append(2000, "late".getBytes(StandardCharsets.UTF_8));
+
+        assertEquals(Arrays.asList(), read(log, 1500, 2400));
+        assertEquals(Arrays.asList("second", "late"), read(log, 2500, 2500));
+        assertEquals(Arrays.asList("first", "second", "late"), read(log, 0, 3000));
+    }
+
+    @Test
+    public void deletedSegmentsAreUnmappedAndNotRead() throws IOException {
+        Path directory = Files.createTempDirectory("channel-log");
+        ChannelLog log = new ChannelLog("network:#channel", directory, 64, 1000);
+        log.append(1000, "first".getBytes(StandardCharsets.UTF_8));
+        log.append(2500, "second".getBytes(StandardCharsets.UTF_8));
+        Segment first = log.getSegments().iterator().next();
+
+        log.delete(first);
+        assertEquals(1, countFiles(directory));
+        assertEquals(-1, first.read(0, 0, 3000, 10, new ArrayList<>()));
+        assertEquals(Arrays.asList("second"), read(log, 0, 3000));
+    }
+
+    @Test
+    public void readsOnlyFromRecordBoundaries() throws IOException {
+        ChannelLog log = new ChannelLog("network:#channel", Files.createTempDirectory("channel-log"), 1024, 1000);
+        for(int i = 0; i < 3; ++i) {
+            log.append(1000 + i, ("event " + i).getBytes(StandardCharsets.UTF_8));
+        }
+        Segment segment = log.getSegments().iterator().next();
+
+        List<String> events = new ArrayList<>();
+        int next = segment.read(0, 0, 2000, 1, events);
+        int after = segment.read(next, 0, 2000, 2, events);
+        assertEquals(Arrays.asList("event 0", "event 1"), events);
+        List<String> rest = new ArrayList<>();
+        assertEquals(-1, segment.read(after, 0, 2000, 10, rest));
+        assertEquals(Arrays.asList("event 2"), rest);
+
+        for(int offset : new int[] { 1, next + 3, 1 << 20 }) {
+            try {
+                segment.read(offset, 0, 2000, 1, new ArrayList<>());
+                fail("Read from offset " + offset);
+            } catch(IllegalArgumentException e) {
+                // Expected
+            }
+        }
+    }
+
+}
@@ -0,0 +1,208 @@
+package be.bendem.irc.ircsockets.ws;
+
+import be.bendem.irc.ircsockets.ws.protocol.EventMessage;
+import be.bendem.irc.ircsockets.ws.protocol.Message;
+import be.bendem.irc.ircsockets.ws.protocol.SessionMessage;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import org.java_websocket.WebSocket;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.reflect.Proxy;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class DispatcherTest {
+
+    private static final int PRODUCERS = 4;
+    private static final int MESSAGES = 2000;
+    private static final int CHANNELS = 16;
+
+    private Server server;
+
+    @Before
+    public void setup() {
+        ServerOptions options = new ServerOptions();
+        options.dispatchThreads = 4;
+        options.dispatchQueueSize = 64;
+        options.dispatchOverflowPolicy = Dispatcher.OverflowPolicy.BLOCK;
+        options.searchMaxBytes = 0;
+        server = new Server(null, 0, false, options);
+    }
+
+    @After
+    public void teardown() {
+        server.kill();
+    }
+
+    /**
+     * Every third message of a producer is a barrier, the others go to the
+     * channels in turn. A connection listening to every channel gets the
+     * events of each channel in sequence and each barrier after all the
+     * events its producer dispatched before it and before all those it
+     * dispatched after it.
+     */
+    @Test(timeout = 60000)
+    public void channelsStayInOrderAroundBarriers() throws InterruptedException {
+        List<JsonObject> everything = listen(0, CHANNELS);
+        List<JsonObject> half = listen(0, CHANNELS / 2);
+
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> producers = new ArrayList<>();
+        for(int p = 0; p < PRODUCERS; ++p) {
+            int producer = p;
+            Thread thread = new Thread(() -> {
+                try {
+                    start.await();
+                } catch(InterruptedException e) {
+                    return;
+                }
+                for(int i = 0; i < MESSAGES; ++i) {
+                    if(i % 3 == 0) {
+                        server.dispatch(new SessionMessage(producer + " " + i));
+                    } else {
+                        server.dispatch(new EventMessage("network", EventMessage.Kind.MESSAGE, 0, "#channel-" + (i % CHANNELS),
+                            "nick", "nick", "%d %d", producer, i));
+                    }
+                }
+            });
+            thread.start();
+            producers.add(thread);
+        }
+
+        start.countDown();
+        for(Thread producer : producers) {
+            producer.join();
+        }
+
+        int barriers = (MESSAGES + 2) / 3;
+        await(everything, PRODUCERS * MESSAGES);
+        check(everything, CHANNELS);
+        int halfEvents = 0;
+        for(int i = 0; i < MESSAGES; ++i) {
+            if(i % 3 != 0 && i % CHANNELS < CHANNELS / 2) {
+                ++halfEvents;
+            }
+        }
+        await(half, PRODUCERS * (barriers + halfEvents));
+        check(half, CHANNELS / 2);
+    }
+
+    private void check(List<JsonObject> received, int channels) {
+        Map<String, Long> sequences = new HashMap<>();
+        int[][] lastEvent = new int[PRODUCERS][CHANNELS];
+        int[] events = new int[PRODUCERS];
+        int[] lastBarrier = new int[PRODUCERS];
+        for(int p = 0; p < PRODUCERS; ++p) {
+            lastBarrier[p] = -3;
+            for(int c = 0; c < CHANNELS; ++c) {
+                lastEvent[p][c] = -1;
+            }
+        }
+
+        synchronized(received) {
+            for(JsonObject message : received) {
+                if(message.has("epoch")) {
+                    String[] barrier = message.get("epoch").getAsString().split(" ");
+                    int producer = Integer.parseInt(barrier[0]);
+                    int index = Integer.parseInt(barrier[1]);
+                    assertEquals("barriers of producer " + producer, lastBarrier[producer] + 3, index);
+                    int before = 0;
+                    for(int i = 0; i < index; ++i) {
+                        if(i % 3 != 0 && i % CHANNELS < channels) {
+                            ++before;
+                        }
+                    }
+                    assertEquals("events of producer " + producer + " before barrier " + index, before, events[producer]);
+                    lastBarrier[producer] = index;
+                    continue;
+                }
+
+                String channel = message.get("channel").getAsString();
+                long sequence = message.get("seq").getAsLong();
+                Long previous = sequences.put(channel, sequence);
+                assertEquals("sequence of " + channel, previous == null ? 1 : previous + 1, sequence);
+
+                String[] event = message.get("message").getAsString().split(" ");
+                int producer = Integer.parseInt(event[0]);
+                int index = Integer.parseInt(event[1]);
+                assertTrue("event " + index + " of producer " + producer + " after " + lastEvent[producer][index % CHANNELS],
+                    index > lastEvent[producer][index % CHANNELS]);
+                assertEquals("barrier before event " + index + " of producer " + producer, index / 3 * 3, lastBarrier[producer]);
+                lastEvent[producer][index % CHANNELS] = index;
+                ++events[producer];
+            }
+        }
+    }
+
+    private static void await(List<JsonObject> received, int count) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+        while(size(received) < count && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals("Shards are stuck or lost messages", count, size(received));
+    }
+
+    private static int size(List<JsonObject> received) {
+        synchronized(received) {
+            return received.size();
+        }
+    }
+
+    /**
+     * Connects a fake connection listening to a range of channels.
+     *
+     * @return the messages it receives, in order
+     */
+    private List<JsonObject> listen(int from, int to) {
+        List<JsonObject> received = new ArrayList<>();
+        InetSocketAddress address = new InetSocketAddress("localhost", 0);
+        WebSocket conn = (WebSocket) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] { WebSocket.class }, (proxy, method, args) -> {
+            switch(method.getName()) {
+                case "send":
+                    JsonElement frame = new JsonParser().parse((String) args[0]);
+                    synchronized(received) {
+                        if(frame.isJsonArray()) {
+                            for(JsonElement message : (JsonArray) frame) {
+                                received.add(message.getAsJsonObject());
+                            }
+                        } else {
+                            received.add(frame.getAsJsonObject());
+                        }
+                    }
+                    return null;
+                case "getRemoteSocketAddress":
+                    return address;
+                case "isOpen":
+                    return true;
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "equals":
+                    return proxy == args[0];
+                default:
+                    return method.getReturnType() == boolean.class ? false : null;
+            }
+        });
+        assertTrue(server.addConnection(conn));
+
+        StringBuilder channels = new StringBuilder();
+        for(int c = from; c < to; ++c) {
+            channels.append(c == from ? "" : ",").append('"').append(Message.routingKey("network", "#channel-" + c)).append('"');
+        }
+        server.onMessage(conn, "{\"_type\":\"subscribe\",\"channels\":[" + channels + "]}");
+        return received;
+    }
+
+}
@@ -0,0 +1,235 @@
+package be.bendem.irc.ircsockets.ws;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class RingBufferTest {
+
+    private static final int PRODUCERS = 4;
+
+    @Test
+    public void capacityIsRoundedUp() {
+        assertEquals(2, new RingBuffer<>(1, RingBuffer.WaitStrategy.BLOCKING).capacity());
+        assertEquals(8, new RingBuffer<>(5, RingBuffer.WaitStrategy.BLOCKING).capacity());
+        assertEquals(8, new RingBuffer<>(8, RingBuffer.WaitStrategy.BLOCKING).capacity());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsEmptyCapacity() {
+        new RingBuffer<>(0, RingBuffer.WaitStrategy.BLOCKING);
+    }
+
+    @Test(expected = NullPointerException.class)
+    public void rejectsNull() {
+        new RingBuffer<Integer>(4, RingBuffer.WaitStrategy.BLOCKING).offer(null);
+    }
+
+    @Test
+    public void fullAndEmpty() {
+        RingBuffer<Integer> buffer = new RingBuffer<>(4, RingBuffer.WaitStrategy.BLOCKING);
+        assertTrue(buffer.isEmpty());
+        assertNull(buffer.poll());
+
+        for(int i = 0; i < 4; ++i) {
+            assertTrue(buffer.offer(i));
+        }
+        assertFalse(buffer.offer(4));
+        assertEquals(4, buffer.size());
+        assertFalse(buffer.isEmpty());
+
+        // A single freed slot makes room for a single element
+        assertEquals(0, (int) buffer.poll());
+        assertTrue(buffer.offer(4));
+        assertFalse(buffer.offer(5));
+
+        List<Integer> drained = new ArrayList<>();
+        assertEquals(4, buffer.drainTo(drained, 10));
+        assertEquals(4, drained.size());
+        assertTrue(buffer.isEmpty());
+        assertEquals(0, buffer.size());
+        assertNull(buffer.poll());
+    }
+
+    @Test
+    public void wrapsAround() {
+        RingBuffer<Integer> buffer = new RingBuffer<>(4, RingBuffer.WaitStrategy.BLOCKING);
+        int next = 0;
+        int expected = 0;
+        // Laps with the buffer at every fill level
+        for(int lap = 0; lap < 100; ++lap) {
+            int count = lap % 4 + 1;
+            for(int i = 0; i < count; ++i) {
+                assertTrue(buffer.offer(next++));
+            }
+            assertEquals(count, buffer.size());
+            for(int i = 0; i < count; ++i) {
+                assertEquals(expected++, (int) buffer.poll());
+            }
+            assertNull(buffer.poll());
+        }
+    }
+
+    @Test
+    public void pollTimesOut() throws InterruptedException {
+        for(RingBuffer.WaitStrategy strategy : RingBuffer.WaitStrategy.values()) {
+            RingBuffer<Integer> buffer = new RingBuffer<>(4, strategy);
+            long start = System.nanoTime();
+            assertNull(buffer.poll(50, TimeUnit.MILLISECONDS));
+            long elapsed = System.nanoTime() - start;
+            assertTrue(strategy + " returned after " + elapsed + "ns", elapsed >= TimeUnit.MILLISECONDS.toNanos(50));
+
+            buffer.offer(1);
+            assertEquals(1, (int) buffer.poll(0, TimeUnit.MILLISECONDS));
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void takeIsInterrupted() throws InterruptedException {
+        RingBuffer<Integer> buffer = new RingBuffer<>(4, RingBuffer.WaitStrategy.BLOCKING);
+        AtomicReference<Throwable> thrown = new AtomicReference<>();
+        Thread consumer = new Thread(() -> {
+            try {
+                buffer.take();
+            } catch(Throwable t) {
+                thrown.set(t);
+            }
+        });
+        consumer.start();
+        // Parked by now
+        Thread.sleep(200);
+        consumer.interrupt();
+        consumer.join();
+        assertTrue(String.valueOf(thrown.get()), thrown.get() instanceof InterruptedException);
+    }
+
+    @Test(timeout = 10000)
+    public void putIsInterrupted() throws InterruptedException {
+        RingBuffer<Integer> buffer = new RingBuffer<>(2, RingBuffer.WaitStrategy.BLOCKING);
+        buffer.offer(0);
+        buffer.offer(1);
+        AtomicReference<Throwable> thrown = new AtomicReference<>();
+        Thread producer = new Thread(() -> {
+            try {
+                buffer.put(2);
+            } catch(Throwable t) {
+                thrown.set(t);
+            }
+        });
+        producer.start();
+        Thread.sleep(100);
+        producer.interrupt();
+        producer.join();
+        assertTrue(String.valueOf(thrown.get()), thrown.get() instanceof InterruptedException);
+        assertEquals(0, (int) buffer.poll());
+        assertEquals(1, (int) buffer.poll());
+        assertNull(buffer.poll());
+    }
+
+    @Test(timeout = 60000)
+    public void producersDontLoseElements() throws InterruptedException {
+        for(RingBuffer.WaitStrategy strategy : RingBuffer.WaitStrategy.values()) {
+            RingBuffer<long[]> buffer = new RingBuffer<>(64, strategy);
+            int perProducer = 10000;
+            CountDownLatch start = new CountDownLatch(1);
+            List<Thread> producers = new ArrayList<>();
+            for(int p = 0; p < PRODUCERS; ++p) {
+                long producer = p;
+                Thread thread = new Thread(() -> {
+                    try {
+                        start.await();
+                        for(long i = 0; i < perProducer; ++i) {
+                            buffer.put(new long[] { producer, i });
+                        }
+                    } catch(InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                });
+                thread.start();
+                producers.add(thread);
+            }
+
+            start.countDown();
+            long[] next = new long[PRODUCERS];
+            for(int i = 0; i < PRODUCERS * perProducer; ++i) {
+                long[] element = buffer.poll(10, TimeUnit.SECONDS);
+                if(element == null) {
+                    fail(strategy + " lost elements after " + i);
+                }
+                // Each producer's elements come in the order they were put
+                assertEquals(next[(int) element[0]]++, element[1]);
+            }
+            for(Thread producer : producers) {
+                producer.join();
+            }
+            assertNull(buffer.poll());
+        }
+    }
+
+    /**
+     * Producers wait for the consumer to take each of their elements, so it
+     * parks between most of them. A wakeup lost when an element is offered
+     * right as the consumer parks leaves the element waiting until the park
+     * times out.
+     */
+    @Test(timeout = 60000)
+    public void blockingConsumerIsWokenUp() throws InterruptedException {
+        RingBuffer<Integer> buffer = new RingBuffer<>(16, RingBuffer.WaitStrategy.BLOCKING);
+        int rounds = 5000;
+        long slow = TimeUnit.MILLISECONDS.toNanos(50);
+        Semaphore[] taken = new Semaphore[PRODUCERS];
+        AtomicInteger slowHandoffs = new AtomicInteger();
+
+        Thread consumer = new Thread(() -> {
+            try {
+                for(int i = 0; i < PRODUCERS * rounds; ++i) {
+                    taken[buffer.take()].release();
+                }
+            } catch(InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        List<Thread> producers = new ArrayList<>();
+        for(int p = 0; p < PRODUCERS; ++p) {
+            int producer = p;
+            taken[p] = new Semaphore(0);
+            producers.add(new Thread(() -> {
+                try {
+                    for(int i = 0; i < rounds; ++i) {
+                        long offered = System.nanoTime();
+                        buffer.put(producer);
+                        taken[producer].acquire();
+                        if(System.nanoTime() - offered >= slow) {
+                            slowHandoffs.incrementAndGet();
+                        }
+                    }
+                } catch(InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }));
+        }
+
+        consumer.start();
+        producers.forEach(Thread::start);
+        for(Thread producer : producers) {
+            producer.join();
+        }
+        consumer.join();
+
+        // Leaves room for a scheduling hiccup or two, not for a lost wakeup pattern
+        assertTrue(slowHandoffs.get() + " slow handoffs", slowHandoffs.get() <= 2);
+    }
+
+}
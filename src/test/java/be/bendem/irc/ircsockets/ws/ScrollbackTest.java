@@ -0,0 +1,104 @@
+package be.bendem.irc.ircsockets.ws;
+
+import be.bendem.irc.ircsockets.ws.protocol.EventMessage;
+import be.bendem.irc.ircsockets.ws.protocol.GapMessage;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class ScrollbackTest {
+
+    private static EventMessage event(String text) {
+        return event("#channel", text);
+    }
+
+    private static EventMessage event(String channel, String text) {
+        return new EventMessage("network", EventMessage.Kind.MESSAGE, 0, channel, "nick", "nick", text);
+    }
+
+    private static void append(Scrollback scrollback, EventMessage event) {
+        scrollback.append(event.getTarget().get(), event, () -> null);
+    }
+
+    @Test
+    public void numbersEvents() {
+        Scrollback scrollback = new Scrollback(new ServerOptions());
+        for(int i = 1; i <= 3; ++i) {
+            EventMessage event = event("message " + i);
+            append(scrollback, event);
+            assertEquals(i, event.getSequence());
+        }
+
+        Scrollback.Catchup catchup = scrollback.resume("network:#channel", scrollback.getEpoch(), 1, c -> {});
+        assertEquals(2, catchup.getEvents().size());
+        assertEquals(3, catchup.getSequence());
+    }
+
+    @Test
+    public void relaysKeepUpstreamSequences() {
+        ServerOptions options = new ServerOptions();
+        options.upstream = "localhost:1";
+        Scrollback scrollback = new Scrollback(options);
+        scrollback.setEpoch("upstream");
+
+        for(long sequence : new long[] { 41, 42, 43 }) {
+            EventMessage event = event("message " + sequence);
+            event.setSequence(sequence);
+            append(scrollback, event);
+        }
+        assertEquals(1, scrollback.resume("network:#channel", "upstream", 42, c -> {}).getEvents().size());
+
+        // Missed events, what was kept before them can't be resumed from
+        EventMessage event = event("message 50");
+        event.setSequence(50);
+        append(scrollback, event);
+        Scrollback.Catchup catchup = scrollback.resume("network:#channel", "upstream", 43, c -> {});
+        assertNull(catchup.getEvents());
+        assertEquals(50, catchup.getSequence());
+    }
+
+    @Test
+    public void relaysForwardUpstreamGaps() {
+        ServerOptions options = new ServerOptions();
+        options.upstream = "localhost:1";
+        Scrollback scrollback = new Scrollback(options);
+        scrollback.setEpoch("upstream");
+
+        EventMessage event = event("message 42");
+        event.setSequence(42);
+        append(scrollback, event);
+        scrollback.append("network:#channel", new GapMessage("network:#channel", 60), () -> null);
+
+        Scrollback.Catchup catchup = scrollback.resume("network:#channel", "upstream", 42, c -> {});
+        assertNull(catchup.getEvents());
+        assertEquals(60, catchup.getSequence());
+        assertEquals(0, scrollback.subscribe("network:#channel", 10, e -> {}).size());
+
+        // The channel continues after the gap
+        event = event("message 61");
+        event.setSequence(61);
+        append(scrollback, event);
+        assertEquals(1, scrollback.resume("network:#channel", "upstream", 60, c -> {}).getEvents().size());
+    }
+
+    @Test
+    public void totalBoundEvictsLeastRecentChannelsFirst() {
+        ServerOptions options = new ServerOptions();
+        int size = event("#a", "message 0").getSizeHint();
+        options.scrollbackTotalBytes = 4 * size;
+        Scrollback scrollback = new Scrollback(options);
+
+        for(int i = 0; i < 2; ++i) {
+            append(scrollback, event("#a", "message " + i));
+            append(scrollback, event("#b", "message " + i));
+        }
+        // Over the bound, #a was appended to the longest ago
+        append(scrollback, event("#b", "message 2"));
+        append(scrollback, event("#b", "message 3"));
+
+        assertEquals(0, scrollback.subscribe("network:#a", 10, e -> {}).size());
+        assertEquals(4, scrollback.subscribe("network:#b", 10, e -> {}).size());
+    }
+
+}
@@ -0,0 +1,30 @@
+package be.bendem.irc.ircsockets.ws.protocol;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class SymbolTableTest {
+
+    @Test
+    public void fullGenerationsStartOver() {
+        SymbolTable table = new SymbolTable(2);
+        SymbolTable.Generation first = table.current();
+        assertEquals(1, first.intern("network:#a"));
+        assertEquals(2, first.intern("nick"));
+        assertEquals(1, first.intern("network:#a"));
+        assertEquals(0, first.intern(null));
+
+        SymbolTable.Generation second = table.current();
+        assertEquals(first.getNumber() + 1, second.getNumber());
+        assertEquals(1, second.intern("network:#b"));
+        assertNull(second.getName(2));
+        // Frames of the previous generation still name their symbols
+        assertEquals("nick", first.getName(2));
+        assertSame(second, table.current());
+        assertEquals(1, table.size());
+    }
+
+}
@@ -2,8 +2,19 @@
     "use strict";
 
     var availableChannels = [];
+    // Version of availableChannels, the server doesn't send it again on reconnect
+    var channelsVersion = null;
+    // Channels the server knows we listen to
+    var listening = [];
     var ws;
     var retries = 0;
+    // Amount of past events to get when starting to listen to a channel
+    var replay = 50;
+    // Run of the server and last event sequence by channel, to resume after reconnecting
+    var epoch = null;
+    var sequences = {};
+    // Channel names and nicks defined by the server for the binary protocol
+    var symbols = [];
     var $channels;
     var $logs;
 
@@ -23,7 +34,7 @@
         });
 
         $channels.addEventListener("change", function() {
-            sendChannels();
+            sendChanges();
         });
     }
 
@@ -32,30 +43,27 @@
             return;
         }
         var connecting = true;
-        ws = new WebSocket("wss://" + document.location.hostname + ":8043");
+        var url = "wss://" + document.location.hostname + ":8043/";
+        if(channelsVersion !== null) {
+            url += "?channels=" + channelsVersion;
+        }
+        ws = new WebSocket(url, ["ircsockets.binary.v3", "ircsockets.json.v1"]);
+        ws.binaryType = "arraybuffer";
+        symbols = [];
 
         ws.onmessage = function(e) {
-            var data = JSON.parse(e.data);
-            console.log(data);
-
-            if(data._status !== "ok") {
-                // Notification!
-                console.error(data);
+            if(typeof e.data !== "string") {
+                decodeBinary(e.data).forEach(handleMessage);
                 return;
             }
 
-            switch(data._type.toLowerCase()){
-                case "channel_list":
-                    availableChannels = data.channels.sort();
-                    updateChannels();
-                    break;
-                case "event":
-                    insertLine(data);
-                    break;
-                case "unknown":
-                default:
-                    console.warn("unhandled message _type", data._type);
-                    break;
+            var data = JSON.parse(e.data);
+
+            if(Array.isArray(data)) {
+                // Batched messages
+                data.forEach(handleMessage);
+            } else {
+                handleMessage(data);
             }
         };
 
@@ -87,7 +95,142 @@
         };
     }
 
+    function handleMessage(data) {
+        console.log(data);
+
+        if(data._status !== "ok") {
+            // Notification!
+            console.error(data);
+            return;
+        }
+
+        switch(data._type.toLowerCase()){
+            case "channel_list":
+                if(data.version === channelsVersion) {
+                    break;
+                }
+                channelsVersion = data.version;
+                availableChannels = data.channels.sort();
+                updateChannels();
+                break;
+            case "session":
+                if(data.epoch !== epoch) {
+                    // Sequences of another run mean nothing
+                    epoch = data.epoch;
+                    sequences = {};
+                }
+                break;
+            case "event":
+                if(data.seq) {
+                    sequences[data.network + ":" + data.channel] = data.seq;
+                }
+                insertLine(data);
+                break;
+            case "gap":
+                sequences[data.channel] = data.seq;
+                insertLine({
+                    prefix: "---",
+                    message: "Messages of " + data.channel + " were missed while disconnected",
+                });
+                break;
+            case "skipped":
+                insertLine({
+                    prefix: "---",
+                    message: data.skipped + " messages skipped, the connection is too slow",
+                });
+                break;
+            case "history":
+                data.events.forEach(insertLine);
+                break;
+            case "unknown":
+            default:
+                console.warn("unhandled message _type", data._type);
+                break;
+        }
+    }
+
+    // See BinaryBuffer for the format
+    function decodeBinary(buffer) {
+        var bytes = new Uint8Array(buffer);
+        var decoder = new TextDecoder("utf-8");
+        var pos = 0;
+        var messages = [];
+
+        function readVarint() {
+            var value = 0;
+            var multiplier = 1;
+            var b;
+            do {
+                b = bytes[pos++];
+                value += (b & 0x7f) * multiplier;
+                multiplier *= 128;
+            } while(b & 0x80);
+            return value;
+        }
+
+        function readString() {
+            var length = readVarint();
+            var str = decoder.decode(bytes.subarray(pos, pos + length));
+            pos += length;
+            return str;
+        }
+
+        while(pos < bytes.length) {
+            var tag = bytes[pos++];
+            switch(tag) {
+                case 1:
+                    var id = readVarint();
+                    symbols[id] = readString();
+                    break;
+                case 2:
+                    var message = {};
+                    var channel = readVarint();
+                    var prefix = readVarint();
+                    message.time = readVarint();
+                    message.seq = readVarint();
+                    // Channels are identified by their routing key, network:channel
+                    var key = symbols[channel];
+                    var separator = key.indexOf(":");
+                    message.network = key.substring(0, separator);
+                    message.channel = key.substring(separator + 1);
+                    if(prefix !== 0) {
+                        message.prefix = symbols[prefix];
+                    }
+                    message.message = readString();
+                    message._type = "event";
+                    message._status = "ok";
+                    messages.push(message);
+                    break;
+                case 3:
+                    // Ids are given to other symbols from now on
+                    symbols = [];
+                    break;
+                default:
+                    console.error("unknown binary record", tag);
+                    return messages;
+            }
+        }
+        return messages;
+    }
+
+    function formatTime(date) {
+        function pad(n, width) {
+            return ("00" + n).slice(-width);
+        }
+
+        var time = pad(date.getHours(), 2) + ":" + pad(date.getMinutes(), 2) + ":" + pad(date.getSeconds(), 2);
+        if(date.getMilliseconds() !== 0) {
+            time += "." + pad(date.getMilliseconds(), 3).replace(/0+$/, "");
+        }
+        return time;
+    }
+
     function insertLine(data) {
+        // Events carry epoch milliseconds, shown in the timezone of the browser
+        if(typeof data.time === "number") {
+            data.time = formatTime(new Date(data.time));
+        }
+
         var moveToBottom = false;
         if($logs.offsetTop + $logs.offsetHeight < window.innerHeight + window.pageYOffset) {
             moveToBottom = true;
@@ -140,11 +283,60 @@
         }
     }
 
+    // Channels we got events of before reconnecting only get what they missed
     function sendChannels() {
-        ws.send(JSON.stringify({
-            _type: "listen_request",
-            channels: getSelected()
-        }));
+        listening = getSelected();
+        var resumed = {};
+        var others = listening.filter(function(channel) {
+            if(epoch !== null && sequences[channel] !== undefined) {
+                resumed[channel] = sequences[channel];
+                return false;
+            }
+            return true;
+        });
+
+        if(others.length !== listening.length) {
+            ws.send(JSON.stringify({
+                _type: "resume_request",
+                epoch: epoch,
+                sequences: resumed
+            }));
+        }
+        if(others.length) {
+            ws.send(JSON.stringify({
+                _type: "subscribe",
+                channels: others,
+                replay: replay
+            }));
+        }
+    }
+
+    function sendChanges() {
+        var selected = getSelected();
+        var added = selected.filter(function(channel) {
+            return listening.indexOf(channel) === -1;
+        });
+        var removed = listening.filter(function(channel) {
+            return selected.indexOf(channel) === -1;
+        });
+        listening = selected;
+
+        removed.forEach(function(channel) {
+            delete sequences[channel];
+        });
+        if(removed.length) {
+            ws.send(JSON.stringify({
+                _type: "unsubscribe",
+                channels: removed
+            }));
+        }
+        if(added.length) {
+            ws.send(JSON.stringify({
+                _type: "subscribe",
+                channels: added,
+                replay: replay
+            }));
+        }
     }
 
     function getSelected() {